@@ -0,0 +1,129 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Benchmarks for DNSResolverServer.answer, for questions answered from the cache, comparing responses encoded with
+ * DNSMessage (one record at a time, with name compression) against responses assembled from records cached in wire
+ * format (see WireRRset). Each benchmark decodes the query and builds the response, as the server does for every
+ * query, and the scenarios cover a single A record, a CNAME chain and a larger RRset.
+ * <p>
+ * A separate benchmark measures DNSLookupService.getResultsFollowingCNames for the CNAME chain, following the chain
+ * one name at a time against using the flattened chain (see DNSCache.addCNameChain).
+ */
+public class AnswerBenchmarks {
+
+    /**
+     * A server whose cache (the shared DNSCache) holds the records of all scenarios. Created lazily when the first
+     * benchmark thread starts, and closed when the benchmark ends.
+     */
+    private static class LazyServer {
+        private DNSResolverServer server;
+        private DNSLookupService service;
+
+        private synchronized DNSLookupService getService() {
+            get();
+            if (service == null) {
+                try {
+                    service = new DNSLookupService("127.0.0.1", ResponseBenchmarks.silent);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return service;
+        }
+
+        private synchronized DNSResolverServer get() {
+            if (server == null) {
+                DNSCache cache = DNSCache.getInstance();
+                record(cache, "single.example.com", RecordType.A, "192.0.2.1");
+                record(cache, "www.example.com", RecordType.CNAME, "web.example.com");
+                record(cache, "web.example.com", RecordType.CNAME, "web.cdn.example.net");
+                record(cache, "web.cdn.example.net", RecordType.A, "192.0.2.2");
+                for (int i = 1; i <= 8; i++)
+                    record(cache, "pool.example.com", RecordType.A, "192.0.2." + (10 + i));
+                try {
+                    server = new DNSResolverServer(new InetSocketAddress("127.0.0.1", 0), "127.0.0.1",
+                            DNSLookupService.DEFAULT_DNS_PORT, 1);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return server;
+        }
+
+        private synchronized void release() {
+            if (server != null) server.close();
+            if (service != null) service.close();
+            server = null;
+            service = null;
+        }
+    }
+
+    private static void record(DNSCache cache, String name, RecordType type, String result) {
+        DNSQuestion question = new DNSQuestion(name, type, RecordClass.IN);
+        try {
+            cache.addResult(type == RecordType.A ? new ResourceRecord(question, 86400, InetAddress.getByName(result))
+                    : new ResourceRecord(question, 86400, result));
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] query(String name) {
+        DNSMessage query = new DNSMessage((short) 1234);
+        query.setRD(true);
+        query.addQuestion(new DNSQuestion(name, RecordType.A, RecordClass.IN));
+        return query.getUsed();
+    }
+
+    static void register(BenchmarkRunner runner) {
+        Map<String, String> scenarios = new LinkedHashMap<>();
+        scenarios.put("a", "single.example.com");
+        scenarios.put("cname-chain", "www.example.com");
+        scenarios.put("a-x8", "pool.example.com");
+
+        List<String> names = new ArrayList<>(scenarios.keySet());
+        LazyServer lazyServer = new LazyServer();
+        for (boolean wire : new boolean[]{false, true}) {
+            for (String scenario : names) {
+                byte[] data = query(scenarios.get(scenario));
+                Map<String, String> params = new LinkedHashMap<>();
+                params.put("scenario", scenario);
+                params.put("wire", Boolean.toString(wire));
+                runner.add(new BenchmarkRunner.Benchmark("answer.fromCache", params, 1, () -> {
+                    DNSResolverServer server = lazyServer.get();
+                    server.setWireAnswers(wire);
+                    return () -> CodecBenchmarks.sink = server.answer(data, data.length, false).length;
+                }, () -> {
+                }));
+            }
+        }
+
+        DNSQuestion chain = new DNSQuestion(scenarios.get("cname-chain"), RecordType.A, RecordClass.IN);
+        for (boolean flatten : new boolean[]{false, true}) {
+            runner.add(new BenchmarkRunner.Benchmark("lookup.followCNames",
+                    Collections.singletonMap("flatten", Boolean.toString(flatten)), 1, () -> {
+                DNSLookupService service = lazyServer.getService();
+                service.setFlattenCNames(flatten);
+                return () -> {
+                    try {
+                        CodecBenchmarks.sink = service.getResultsFollowingCNames(chain, 10).size();
+                    } catch (DNSLookupService.CNameIndirectionLimitException e) {
+                        throw new IllegalStateException(e);
+                    }
+                };
+            }, flatten ? lazyServer::release : () -> {
+            }));
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CyclicBarrier;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * A small, self-contained micro-benchmark harness, modelled on JMH: each benchmark is run for a number of timed
+ * warmup iterations, followed by timed measurement iterations, and the results are printed as a table and written as
+ * a JSON file using the same layout as JMH's JSON output, so results from different versions can be compared with
+ * the same tools.
+ * <p>
+ * Each benchmark reports either the average time per operation (single-threaded benchmarks) or the total throughput
+ * (multi-threaded benchmarks), plus the number of bytes allocated per operation.
+ * <p>
+ * Usage: java ca.ubc.cs.cs317.dnslookup.BenchmarkRunner [-o output.json] [-wi warmupIterations] [-i iterations]
+ * [-t iterationMillis] [regex]
+ * <p>
+ * Only benchmarks whose name contains a match for the regular expression are run.
+ */
+public class BenchmarkRunner {
+
+    private static final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final List<Benchmark> benchmarks = new ArrayList<>();
+    private int warmupIterations = 3;
+    private int iterations = 5;
+    private long iterationMillis = 1000;
+
+    /**
+     * A single benchmark. The setup supplier is called once per measuring thread (before any iteration), and returns
+     * the operation to be measured by that thread, so threads can keep their own state.
+     */
+    public static class Benchmark {
+        private final String name;
+        private final Map<String, String> params;
+        private final int threads;
+        private final Supplier<Runnable> setup;
+        private final Runnable teardown;
+
+        public Benchmark(String name, Map<String, String> params, int threads, Supplier<Runnable> setup,
+                         Runnable teardown) {
+            this.name = name;
+            this.params = params;
+            this.threads = threads;
+            this.setup = setup;
+            this.teardown = teardown;
+        }
+
+        public Benchmark(String name, Map<String, String> params, Supplier<Runnable> setup) {
+            this(name, params, 1, setup, () -> {
+            });
+        }
+
+        public Benchmark(String name, Runnable operation) {
+            this(name, Collections.emptyMap(), () -> operation);
+        }
+
+        private String label() {
+            StringBuilder label = new StringBuilder(name);
+            params.forEach((key, value) -> label.append(' ').append(key).append('=').append(value));
+            return label.toString();
+        }
+    }
+
+    /**
+     * Result of a single iteration.
+     */
+    private static class Sample {
+        private final long operations;
+        private final long nanos;
+        private final long allocatedBytes;
+
+        private Sample(long operations, long nanos, long allocatedBytes) {
+            this.operations = operations;
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    public void add(Benchmark benchmark) {
+        benchmarks.add(benchmark);
+    }
+
+    /**
+     * Runs a benchmark, and returns the JSON description of its results.
+     */
+    private String run(Benchmark benchmark) throws Exception {
+        int threads = benchmark.threads;
+        List<Sample> samples = new ArrayList<>();
+        long[][] perThread = new long[warmupIterations + iterations][];
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        List<Thread> workers = new ArrayList<>();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    Runnable operation = benchmark.setup.get();
+                    for (int i = 0; i < warmupIterations + iterations; i++) {
+                        barrier.await();
+                        long[] result = runIteration(operation);
+                        synchronized (perThread) {
+                            if (perThread[i] == null) perThread[i] = new long[3];
+                            for (int k = 0; k < 3; k++) perThread[i][k] += result[k];
+                        }
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                    barrier.reset();
+                }
+            }, "bench-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) worker.join();
+        benchmark.teardown.run();
+        if (!errors.isEmpty()) throw new RuntimeException(errors.get(0));
+
+        for (int i = warmupIterations; i < warmupIterations + iterations; i++)
+            samples.add(new Sample(perThread[i][0], perThread[i][1] / threads, perThread[i][2]));
+
+        boolean throughput = threads > 1;
+        double[] scores = new double[samples.size()];
+        double allocated = 0;
+        long operations = 0;
+        for (int i = 0; i < scores.length; i++) {
+            Sample sample = samples.get(i);
+            scores[i] = throughput ? sample.operations * 1e6 / sample.nanos
+                    : (double) sample.nanos / sample.operations;
+            allocated += sample.allocatedBytes;
+            operations += sample.operations;
+        }
+        double mean = Arrays.stream(scores).average().orElse(0);
+        double error = scores.length < 2 ? 0 : 2 * Math.sqrt(Arrays.stream(scores)
+                .map(s -> (s - mean) * (s - mean)).sum() / (scores.length - 1) / scores.length);
+        double allocatedPerOp = allocated / operations;
+        String unit = throughput ? "ops/ms" : "ns/op";
+
+        System.out.printf("%-60s %3d %14.3f +- %10.3f %-7s %12.1f B/op%n",
+                benchmark.label(), threads, mean, error, unit, allocatedPerOp);
+
+        StringBuilder json = new StringBuilder();
+        json.append("  {\n");
+        json.append("    \"benchmark\" : \"").append(benchmark.name).append("\",\n");
+        json.append("    \"mode\" : \"").append(throughput ? "thrpt" : "avgt").append("\",\n");
+        json.append("    \"threads\" : ").append(threads).append(",\n");
+        json.append("    \"warmupIterations\" : ").append(warmupIterations).append(",\n");
+        json.append("    \"measurementIterations\" : ").append(iterations).append(",\n");
+        if (!benchmark.params.isEmpty()) {
+            json.append("    \"params\" : {");
+            StringJoiner params = new StringJoiner(", ", " ", " ");
+            benchmark.params.forEach((key, value) -> params.add("\"" + key + "\" : \"" + value + "\""));
+            json.append(params).append("},\n");
+        }
+        json.append("    \"primaryMetric\" : {\n");
+        json.append("      \"score\" : ").append(mean).append(",\n");
+        json.append("      \"scoreError\" : ").append(error).append(",\n");
+        json.append("      \"scoreUnit\" : \"").append(unit).append("\",\n");
+        StringJoiner raw = new StringJoiner(", ", "[ [ ", " ] ]");
+        for (double score : scores) raw.add(Double.toString(score));
+        json.append("      \"rawData\" : ").append(raw).append("\n");
+        json.append("    },\n");
+        json.append("    \"secondaryMetrics\" : {\n");
+        json.append("      \"alloc.rate.norm\" : {\n");
+        json.append("        \"score\" : ").append(allocatedPerOp).append(",\n");
+        json.append("        \"scoreUnit\" : \"B/op\"\n");
+        json.append("      }\n");
+        json.append("    }\n");
+        json.append("  }");
+        return json.toString();
+    }
+
+    /**
+     * Runs the operation repeatedly for iterationMillis, and returns the number of operations, the elapsed time and
+     * the number of bytes allocated by this thread.
+     */
+    private long[] runIteration(Runnable operation) {
+        long thread = Thread.currentThread().getId();
+        long bytes = threadBean.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long deadline = start + iterationMillis * 1_000_000L;
+        long operations = 0;
+        long now;
+        do {
+            for (int i = 0; i < 64; i++)
+                operation.run();
+            operations += 64;
+            now = System.nanoTime();
+        } while (now < deadline);
+        return new long[]{operations, now - start, threadBean.getThreadAllocatedBytes(thread) - bytes};
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkRunner runner = new BenchmarkRunner();
+        String output = "bench-results.json";
+        Pattern filter = Pattern.compile("");
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-o":
+                    output = args[++i];
+                    break;
+                case "-wi":
+                    runner.warmupIterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-i":
+                    runner.iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-t":
+                    runner.iterationMillis = Long.parseLong(args[++i]);
+                    break;
+                default:
+                    filter = Pattern.compile(args[i]);
+            }
+        }
+
+        CodecBenchmarks.register(runner);
+        CacheBenchmarks.register(runner);
+        ResponseBenchmarks.register(runner);
+        AnswerBenchmarks.register(runner);
+        QueryBenchmarks.register(runner);
+
+        List<String> results = new ArrayList<>();
+        for (Benchmark benchmark : runner.benchmarks)
+            if (filter.matcher(benchmark.name).find())
+                results.add(runner.run(benchmark));
+
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(output)))) {
+            writer.println("[");
+            writer.println(String.join(",\n", results));
+            writer.println("]");
+        } catch (IOException e) {
+            System.err.println("Could not write results (" + e.getMessage() + ").");
+        }
+        System.out.println("Results written to " + output);
+    }
+}
@@ -0,0 +1,96 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Benchmarks for DNSCache lookups and updates, for caches of different sizes. The sizes can be changed with the
+ * bench.cache.sizes system property (a comma-separated list of entry counts). Multi-threaded lookups on the largest
+ * size measure how reads scale with the number of threads.
+ */
+public class CacheBenchmarks {
+
+    private static final String[] sizes = System.getProperty("bench.cache.sizes", "1000,10000,100000,1000000").split(",");
+    private static final int[] threadCounts = {2, 4, 8};
+
+    /**
+     * A cache filled with a number of records, and the records themselves. Created lazily when the first benchmark
+     * thread starts, and released when the benchmark ends, so only one filled cache exists at a time.
+     */
+    private static class State {
+        private final DNSCache cache = new DNSCache();
+        private final ResourceRecord[] records;
+
+        private State(int size) {
+            records = new ResourceRecord[size];
+            for (int i = 0; i < size; i++) {
+                DNSQuestion question = new DNSQuestion("host" + i + ".example" + (i % 97) + ".com", RecordType.A,
+                        RecordClass.IN);
+                try {
+                    records[i] = new ResourceRecord(question, 86400, InetAddress.getByAddress(
+                            new byte[]{10, (byte) (i >> 16), (byte) (i >> 8), (byte) i}));
+                } catch (UnknownHostException e) {
+                    throw new IllegalStateException(e);
+                }
+                cache.addResult(records[i]);
+            }
+        }
+    }
+
+    private static class LazyState {
+        private final int size;
+        private State state;
+
+        private LazyState(int size) {
+            this.size = size;
+        }
+
+        private synchronized State get() {
+            if (state == null) state = new State(size);
+            return state;
+        }
+
+        private synchronized void release() {
+            state = null;
+        }
+    }
+
+    static void register(BenchmarkRunner runner) {
+        for (String sizeString : sizes) {
+            int size = Integer.parseInt(sizeString.trim());
+            Map<String, String> params = Collections.singletonMap("size", Integer.toString(size));
+            LazyState state = new LazyState(size);
+
+            runner.add(new BenchmarkRunner.Benchmark("cache.getCachedResults", params, 1,
+                    () -> getCachedResults(state.get()), state::release));
+            runner.add(new BenchmarkRunner.Benchmark("cache.getCachedResults.miss", params, 1, () -> {
+                State s = state.get();
+                DNSQuestion missing = new DNSQuestion("missing.example.com", RecordType.A, RecordClass.IN);
+                return () -> CodecBenchmarks.sink = s.cache.getCachedResults(missing, true).size();
+            }, state::release));
+            runner.add(new BenchmarkRunner.Benchmark("cache.addResult", params, 1, () -> {
+                State s = state.get();
+                return () -> s.cache.addResult(s.records[ThreadLocalRandom.current().nextInt(s.records.length)]);
+            }, state::release));
+        }
+
+        int largest = Integer.parseInt(sizes[sizes.length - 1].trim());
+        LazyState state = new LazyState(largest);
+        for (int threads : threadCounts)
+            runner.add(new BenchmarkRunner.Benchmark("cache.getCachedResults.concurrent",
+                    Collections.singletonMap("size", Integer.toString(largest)), threads,
+                    () -> getCachedResults(state.get()), threads == threadCounts[threadCounts.length - 1] ?
+                    state::release : () -> {
+            }));
+    }
+
+    private static Runnable getCachedResults(State state) {
+        return () -> {
+            ResourceRecord record = state.records[ThreadLocalRandom.current().nextInt(state.records.length)];
+            CodecBenchmarks.sink = state.cache.getCachedResults(record.getQuestion(), true).size();
+        };
+    }
+}
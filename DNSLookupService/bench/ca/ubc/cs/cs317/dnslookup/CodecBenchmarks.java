@@ -0,0 +1,141 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Benchmarks for encoding and decoding messages with DNSMessage (and DNSMessageView). Most benchmarks use a typical
+ * referral response: a single question, 13 nameservers, and an address for each nameserver. The hex benchmarks use a
+ * large response with records of types not supported by the application, whose data is formatted as hex strings.
+ */
+public class CodecBenchmarks {
+
+    private static final DNSQuestion question = new DNSQuestion("www.cs.ubc.ca", RecordType.A, RecordClass.IN);
+    private static final List<ResourceRecord> nameServers = new ArrayList<>();
+    private static final List<ResourceRecord> glue = new ArrayList<>();
+
+    static {
+        try {
+            for (char c = 'a'; c <= 'm'; c++) {
+                nameServers.add(new ResourceRecord(new DNSQuestion("ca", RecordType.NS, RecordClass.IN),
+                        172800, c + ".ca-servers.ca"));
+                glue.add(new ResourceRecord(new DNSQuestion(c + ".ca-servers.ca", RecordType.A, RecordClass.IN),
+                        172800, InetAddress.getByAddress(new byte[]{(byte) 199, 4, (byte) 144, (byte) c})));
+            }
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Prevents the JIT from optimizing away unused results
+    static volatile int sink;
+
+    /**
+     * Returns the encoded referral response used by all decoding benchmarks.
+     */
+    static byte[] buildReferral() {
+        DNSMessage response = new DNSMessage((short) 1234);
+        response.setQR(true);
+        response.addQuestion(question);
+        for (ResourceRecord record : nameServers)
+            response.addResourceRecord(record, "nameserver");
+        for (ResourceRecord record : glue)
+            response.addResourceRecord(record, "additional");
+        return response.getUsed();
+    }
+
+    /**
+     * Returns a response (over TCP) with 32 records of an unsupported type, each with the given data.
+     */
+    private static byte[] buildLargeResponse(byte[] rdata) {
+        DNSMessage response = new DNSMessage((short) 1234, DNSMessage.MAX_TCP_MESSAGE_LENGTH);
+        response.setQR(true);
+        ResourceRecord record = new ResourceRecord(new DNSQuestion("www.cs.ubc.ca", RecordType.OTHER, RecordClass.IN),
+                3600, DNSMessage.byteArrayToHexString(rdata));
+        for (int i = 0; i < 32; i++)
+            response.addResourceRecord(record, "answer");
+        return response.getUsed();
+    }
+
+    static void register(BenchmarkRunner runner) {
+        runner.add(new BenchmarkRunner.Benchmark("codec.encode.addQuestion", () -> {
+            DNSMessage message = new DNSMessage((short) 1);
+            message.addQuestion(question);
+            sink = message.getUsed().length;
+        }));
+        runner.add(new BenchmarkRunner.Benchmark("codec.encode.addResourceRecord", () -> {
+            DNSMessage message = new DNSMessage((short) 1);
+            for (ResourceRecord record : glue)
+                message.addResourceRecord(record, "additional");
+            sink = message.getUsed().length;
+        }));
+        runner.add(new BenchmarkRunner.Benchmark("codec.encode.addName", () -> {
+            // Every name after the first is mostly (or entirely) compressed
+            DNSMessage message = new DNSMessage((short) 1);
+            for (ResourceRecord record : nameServers)
+                message.addName(record.getTextResult());
+            sink = message.getUsed().length;
+        }));
+        runner.add(new BenchmarkRunner.Benchmark("codec.encode.referral", () -> sink = buildReferral().length));
+
+        byte[] referral = buildReferral();
+        runner.add(new BenchmarkRunner.Benchmark("codec.decode.getQuestion", () -> {
+            DNSMessage message = new DNSMessage(referral, referral.length);
+            sink = message.getQuestion().hashCode();
+        }));
+        runner.add(new BenchmarkRunner.Benchmark("codec.decode.getRR", () -> {
+            DNSMessage message = new DNSMessage(referral, referral.length);
+            message.getQuestion();
+            int records = message.getNSCount() + message.getARCount();
+            int hash = 0;
+            for (int i = 0; i < records; i++)
+                hash += message.getRR().hashCode();
+            sink = hash;
+        }));
+        runner.add(new BenchmarkRunner.Benchmark("codec.decode.view", Collections.emptyMap(), () -> {
+            DNSMessageView view = new DNSMessageView();
+            return () -> {
+                view.wrap(referral, referral.length);
+                int ttl = 0;
+                while (view.next())
+                    if (view.nameEquals("a.ca-servers.ca")) ttl += view.getTTL();
+                sink = ttl;
+            };
+        }));
+
+        // Validating a response in a receive buffer: the former check, which hex-encoded the whole buffer to read the
+        // transaction ID, against the header and question checks of DNSLookupService.isResponseTo
+        byte[] received = Arrays.copyOf(referral, Math.max(DNSMessage.MAX_DNS_MESSAGE_LENGTH, referral.length));
+        runner.add(new BenchmarkRunner.Benchmark("codec.validate", Collections.singletonMap("check", "hex-id"),
+                () -> () -> sink = Integer.parseInt(DNSMessage.byteArrayToHexString(received).substring(0, 4), 16)));
+        runner.add(new BenchmarkRunner.Benchmark("codec.validate", Collections.singletonMap("check", "view"), () -> {
+            DNSMessageView view = new DNSMessageView();
+            return () -> sink = DNSLookupService.isResponseTo(view, received, referral.length, 1234, question) ? 1 : 0;
+        }));
+
+        // Formatting the data of unsupported records: the former formatter, which concatenated one formatted string per
+        // byte (quadratic in the length of the data), against DNSMessage.byteArrayToHexString
+        byte[] rdata = new byte[1024];
+        new Random(1).nextBytes(rdata);
+        runner.add(new BenchmarkRunner.Benchmark("codec.hex", Collections.singletonMap("impl", "stream"),
+                () -> () -> sink = IntStream.range(0, rdata.length).mapToObj(i -> String.format("%02x", rdata[i]))
+                        .reduce("", String::concat).length()));
+        runner.add(new BenchmarkRunner.Benchmark("codec.hex", Collections.singletonMap("impl", "table"),
+                () -> () -> sink = DNSMessage.byteArrayToHexString(rdata).length()));
+
+        byte[] large = buildLargeResponse(rdata);
+        runner.add(new BenchmarkRunner.Benchmark("codec.decode.largeRecords", () -> {
+            DNSMessage message = new DNSMessage(large, large.length);
+            int hash = 0;
+            for (int i = message.getANCount(); i > 0; i--)
+                hash += message.getRR().hashCode();
+            sink = hash;
+        }));
+    }
+}
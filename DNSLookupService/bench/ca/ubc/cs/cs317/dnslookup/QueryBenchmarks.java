@@ -0,0 +1,77 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+
+/**
+ * Benchmarks for the query path of DNSLookupService, mostly to measure allocation (B/op): building a query with a
+ * new DNSMessage (and copying it with getUsed) against reusing a message from a DNSMessagePool, and a complete query
+ * (build, send, receive and process the response) to a DNSZoneServer on the loopback interface. Allocation is only
+ * measured on the benchmark thread, so the server's own allocation is not included.
+ */
+public class QueryBenchmarks {
+
+    private static final DNSQuestion question = new DNSQuestion("www.bench.test", RecordType.A, RecordClass.IN);
+
+    /**
+     * A zone server and a lookup service that queries it. Created lazily when the benchmark thread starts, and closed
+     * when the benchmark ends.
+     */
+    private static class LazyServer {
+        private DNSZoneServer server;
+        private DNSLookupService service;
+
+        private synchronized DNSLookupService get() {
+            if (service == null) {
+                try {
+                    server = new DNSZoneServer(new InetSocketAddress("127.0.0.1", 0), "bench.test", new StringReader(
+                            "$ORIGIN bench.test.\n@ SOA ns1 hostmaster 1 3600 600 86400 300\nwww A 10.0.0.1\n"));
+                    service = new DNSLookupService("127.0.0.1", ResponseBenchmarks.silent);
+                    service.setPort(server.getAddress().getPort());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return service;
+        }
+
+        private synchronized void release() {
+            if (service != null) service.close();
+            if (server != null) server.close();
+            service = null;
+            server = null;
+        }
+    }
+
+    static void register(BenchmarkRunner runner) {
+        runner.add(new BenchmarkRunner.Benchmark("query.build", Collections.singletonMap("pooled", "false"), () -> {
+            return () -> {
+                DNSMessage message = new DNSMessage((short) 1234);
+                message.addQuestion(question);
+                message.addOpt(DNSLookupService.DEFAULT_EDNS_BUFFER_SIZE);
+                CodecBenchmarks.sink = message.getUsed().length;
+            };
+        }));
+        runner.add(new BenchmarkRunner.Benchmark("query.build", Collections.singletonMap("pooled", "true"), () -> {
+            DNSMessagePool pool = new DNSMessagePool(1, DNSMessage.MAX_DNS_MESSAGE_LENGTH, false);
+            return () -> {
+                DNSMessage message = pool.acquire((short) 1234);
+                message.addQuestion(question);
+                message.addOpt(DNSLookupService.DEFAULT_EDNS_BUFFER_SIZE);
+                CodecBenchmarks.sink = message.getData()[message.getLength() - 1];
+                pool.release(message);
+            };
+        }));
+
+        LazyServer lazyServer = new LazyServer();
+        runner.add(new BenchmarkRunner.Benchmark("query.individualQueryProcess", Collections.emptyMap(), 1, () -> {
+            DNSLookupService service = lazyServer.get();
+            InetAddress server = InetAddress.getLoopbackAddress();
+            return () -> CodecBenchmarks.sink = service.individualQueryProcess(question, server).size();
+        }, lazyServer::release));
+    }
+}
@@ -0,0 +1,133 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+
+/**
+ * Measures the sustained throughput of a DNS server, such as DNSResolverServer. A fixed number of UDP queries is
+ * kept outstanding at all times: each response (or timeout) is immediately followed by a new query, for the next name
+ * in the list. The number of queries answered per second is printed every second, followed by a summary with the
+ * average rate and the latency percentiles of the whole run.
+ * <p>
+ * Queries that are not answered within TIMEOUT_MILLIS are counted as lost. Names are repeated in a loop, so after the
+ * first round most queries are answered from the cache of a caching server.
+ * <p>
+ * Usage: java ca.ubc.cs.cs317.dnslookup.ResolverLoadGenerator [-s address (127.0.0.1)] [-p port (5300)]
+ * [-c outstanding (64)] [-d seconds (10)] [-t type (A)] name...
+ */
+public class ResolverLoadGenerator {
+
+    private static final long TIMEOUT_MILLIS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        String address = "127.0.0.1";
+        int port = DNSResolverServer.DEFAULT_PORT, outstanding = 64, seconds = 10, first = args.length;
+        RecordType type = RecordType.A;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-s": address = args[++i]; break;
+                case "-p": port = Integer.parseInt(args[++i]); break;
+                case "-c": outstanding = Integer.parseInt(args[++i]); break;
+                case "-d": seconds = Integer.parseInt(args[++i]); break;
+                case "-t": type = RecordType.valueOf(args[++i].toUpperCase()); break;
+                default: first = i; i = args.length;
+            }
+        }
+        if (first == args.length || outstanding < 1 || outstanding > 0x10000) {
+            System.err.println("Usage: java ca.ubc.cs.cs317.dnslookup.ResolverLoadGenerator [-s address] " +
+                    "[-p port] [-c outstanding (1-65536)] [-d seconds] [-t type] name...");
+            System.exit(1);
+        }
+
+        // Queries are encoded once, and only their ID is changed when sent
+        byte[][] queries = new byte[args.length - first][];
+        for (int i = first; i < args.length; i++) {
+            DNSMessage query = new DNSMessage((short) 0);
+            query.setRD(true);
+            query.addQuestion(new DNSQuestion(args[i], type, RecordClass.IN));
+            queries[i - first] = query.getUsed();
+        }
+
+        try (DatagramChannel channel = DatagramChannel.open(); Selector selector = Selector.open()) {
+            channel.connect(new InetSocketAddress(address, port));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+
+            // Send time of the query with each ID, or 0 if there is no outstanding query with that ID
+            long[] sentAt = new long[0x10000];
+            long[] latencies = new long[1024];
+            int nextId = 0, nextName = 0, pending = 0;
+            long answered = 0, lost = 0, lastAnswered = 0;
+            ByteBuffer receive = ByteBuffer.allocate(DNSMessage.MAX_TCP_MESSAGE_LENGTH);
+
+            long start = System.nanoTime(), end = start + seconds * 1_000_000_000L;
+            long nextReport = start + 1_000_000_000L, nextTimeoutCheck = start;
+            while (true) {
+                long now = System.nanoTime();
+                if (now >= end) break;
+                while (pending < outstanding) {
+                    while (sentAt[nextId] != 0) nextId = (nextId + 1) & 0xffff;
+                    byte[] query = queries[nextName];
+                    nextName = (nextName + 1) % queries.length;
+                    query[0] = (byte) (nextId >> 8);
+                    query[1] = (byte) nextId;
+                    channel.write(ByteBuffer.wrap(query));
+                    sentAt[nextId] = Math.max(now, 1);
+                    nextId = (nextId + 1) & 0xffff;
+                    pending++;
+                }
+
+                selector.select(100);
+                selector.selectedKeys().clear();
+                now = System.nanoTime();
+                while (true) {
+                    receive.clear();
+                    if (channel.receive(receive) == null) break;
+                    if (receive.position() < 12) continue;
+                    int id = receive.getShort(0) & 0xffff;
+                    if (sentAt[id] == 0) continue; // Late response to a query already counted as lost
+                    if (answered == latencies.length)
+                        latencies = Arrays.copyOf(latencies, latencies.length * 2);
+                    latencies[(int) answered++] = now - sentAt[id];
+                    sentAt[id] = 0;
+                    pending--;
+                }
+
+                if (now >= nextTimeoutCheck) {
+                    long timeout = now - TIMEOUT_MILLIS * 1_000_000L;
+                    for (int id = 0; id < sentAt.length; id++) {
+                        if (sentAt[id] != 0 && sentAt[id] < timeout) {
+                            sentAt[id] = 0;
+                            lost++;
+                            pending--;
+                        }
+                    }
+                    nextTimeoutCheck = now + 100_000_000L;
+                }
+                if (now >= nextReport) {
+                    System.out.printf("%6d queries/s%n", answered - lastAnswered);
+                    lastAnswered = answered;
+                    nextReport += 1_000_000_000L;
+                }
+            }
+
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            long[] sorted = Arrays.copyOf(latencies, (int) answered);
+            Arrays.sort(sorted);
+            System.out.printf("answered %d queries in %.1f s (%.0f queries/s), %d lost, %d outstanding%n",
+                    answered, elapsed, answered / elapsed, lost, pending);
+            if (answered > 0)
+                System.out.printf("latency: p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                        percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99),
+                        sorted[sorted.length - 1] / 1e6);
+        }
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        return sorted[(int) Math.min(sorted.length - 1, (long) (sorted.length * fraction))] / 1e6;
+    }
+}
@@ -0,0 +1,151 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Benchmarks for DNSLookupService.processResponse, which decodes a response and adds all its records to the cache.
+ * By default, a set of synthetic responses modelled on real ones (root and TLD referrals, an answer with a CNAME chain
+ * and a negative answer) is used. If the bench.packets system property names a directory, each file in it is read
+ * as a raw captured response (the UDP payload only) and benchmarked instead.
+ */
+public class ResponseBenchmarks {
+
+    /**
+     * A verbose printer that ignores all events, so only the processing itself is measured.
+     */
+    static final DNSVerbosePrinter silent = new DNSVerbosePrinter() {
+        public void printQueryToSend(DNSQuestion question, InetAddress server, int transactionID) {
+        }
+
+        public void printResponseHeaderInfo(int receivedTransactionId, boolean authoritative, int errorCode) {
+        }
+
+        public void printAnswersHeader(int num_answers) {
+        }
+
+        public void printNameserversHeader(int num_nameservers) {
+        }
+
+        public void printAdditionalInfoHeader(int num_additional) {
+        }
+
+        public void printIndividualResourceRecord(ResourceRecord record, int typeCode, int classCode) {
+        }
+    };
+
+    private static ResourceRecord record(String name, RecordType type, int ttl, String result) {
+        DNSQuestion question = new DNSQuestion(name, type, RecordClass.IN);
+        try {
+            if (type == RecordType.A || type == RecordType.AAAA)
+                return new ResourceRecord(question, ttl, InetAddress.getByName(result));
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+        return new ResourceRecord(question, ttl, result);
+    }
+
+    private static byte[] response(DNSQuestion question, boolean authoritative, int rcode,
+                                   List<ResourceRecord> answers, List<ResourceRecord> nameServers,
+                                   List<ResourceRecord> additional) {
+        DNSMessage message = new DNSMessage((short) 4321);
+        message.setQR(true);
+        message.setAA(authoritative);
+        message.setRcode(rcode);
+        message.addQuestion(question);
+        answers.forEach(r -> message.addResourceRecord(r, "answer"));
+        nameServers.forEach(r -> message.addResourceRecord(r, "nameserver"));
+        additional.forEach(r -> message.addResourceRecord(r, "additional"));
+        return message.getUsed();
+    }
+
+    static List<Object[]> syntheticPackets() {
+        List<Object[]> packets = new ArrayList<>();
+        DNSQuestion question = new DNSQuestion("www.cs.ubc.ca", RecordType.A, RecordClass.IN);
+
+        List<ResourceRecord> ns = new ArrayList<>(), glue = new ArrayList<>();
+        for (char c = 'a'; c <= 'd'; c++) {
+            ns.add(record("ca", RecordType.NS, 172800, c + ".ca-servers.ca"));
+            glue.add(record(c + ".ca-servers.ca", RecordType.A, 172800, "199.4.144." + (int) c));
+            glue.add(record(c + ".ca-servers.ca", RecordType.AAAA, 172800, "2001:500:a7::" + (int) c));
+        }
+        packets.add(new Object[]{"root-referral", response(question, false, 0, Collections.emptyList(), ns, glue)});
+
+        ns = new ArrayList<>();
+        glue = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            ns.add(record("ubc.ca", RecordType.NS, 86400, "ns" + i + ".ubc.ca"));
+            glue.add(record("ns" + i + ".ubc.ca", RecordType.A, 86400, "137.82.1." + i));
+        }
+        packets.add(new Object[]{"tld-referral", response(question, false, 0, Collections.emptyList(), ns, glue)});
+
+        List<ResourceRecord> answers = new ArrayList<>();
+        answers.add(record("www.cs.ubc.ca", RecordType.CNAME, 3600, "cs.ubc.ca"));
+        answers.add(record("cs.ubc.ca", RecordType.A, 3600, "142.103.6.5"));
+        ns = new ArrayList<>();
+        for (int i = 1; i <= 2; i++)
+            ns.add(record("cs.ubc.ca", RecordType.NS, 3600, "ns" + i + ".cs.ubc.ca"));
+        packets.add(new Object[]{"cname-answer", response(question, true, 0, answers, ns, Collections.emptyList())});
+
+        packets.add(new Object[]{"nxdomain", negativeResponse(new DNSQuestion("nosuchhost.ubc.ca", RecordType.A,
+                RecordClass.IN))});
+        return packets;
+    }
+
+    /**
+     * Builds an NXDOMAIN response with an SOA record for ubc.ca in the authority section. DNSMessage cannot encode
+     * SOA data, so the record is appended by hand.
+     */
+    private static byte[] negativeResponse(DNSQuestion question) {
+        byte[] header = response(question, true, 3, Collections.emptyList(), Collections.emptyList(),
+                Collections.emptyList());
+        ByteBuffer buffer = ByteBuffer.allocate(DNSMessage.MAX_DNS_MESSAGE_LENGTH);
+        buffer.put(header);
+        buffer.putShort(8, (short) 1);
+        buffer.put(new byte[]{3, 'u', 'b', 'c', 2, 'c', 'a', 0});
+        buffer.putShort((short) RecordType.SOA.getCode()).putShort((short) RecordClass.IN.getCode()).putInt(3600);
+        int lengthPosition = buffer.position();
+        buffer.putShort((short) 0);
+        buffer.put(new byte[]{3, 'n', 's', '1', (byte) 0xc0, (byte) (header.length)});
+        buffer.put(new byte[]{10, 'h', 'o', 's', 't', 'm', 'a', 's', 't', 'e', 'r', (byte) 0xc0, (byte) (header.length)});
+        buffer.putInt(2023010101).putInt(3600).putInt(600).putInt(86400).putInt(300);
+        buffer.putShort(lengthPosition, (short) (buffer.position() - lengthPosition - 2));
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static List<Object[]> capturedPackets(String directory) {
+        List<Object[]> packets = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(directory))) {
+            for (Path file : files)
+                packets.add(new Object[]{file.getFileName().toString(), Files.readAllBytes(file)});
+        } catch (IOException e) {
+            System.err.println("Could not read captured packets (" + e.getMessage() + ").");
+        }
+        Collections.sort(packets, (a, b) -> ((String) a[0]).compareTo((String) b[0]));
+        return packets;
+    }
+
+    static void register(BenchmarkRunner runner) {
+        String directory = System.getProperty("bench.packets");
+        List<Object[]> packets = directory == null ? syntheticPackets() : capturedPackets(directory);
+        for (Object[] packet : packets) {
+            byte[] data = (byte[]) packet[1];
+            runner.add(new BenchmarkRunner.Benchmark("response.processResponse",
+                    Collections.singletonMap("packet", (String) packet[0]), () -> {
+                DNSCache cache = new DNSCache();
+                return () -> CodecBenchmarks.sink =
+                        DNSLookupService.processResponse(new DNSMessage(data, data.length), cache, silent).size();
+            }));
+        }
+    }
+}
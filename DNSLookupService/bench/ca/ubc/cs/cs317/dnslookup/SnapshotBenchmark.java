@@ -0,0 +1,48 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Measures the time needed to save and load a cache snapshot. Loading a snapshot is a single long operation, so
+ * instead of going through BenchmarkRunner, the snapshot is simply saved and loaded a few times in a row, and the
+ * time of each run is printed.
+ * <p>
+ * Usage: java ca.ubc.cs.cs317.dnslookup.SnapshotBenchmark [questions (1000000)] [runs (5)]
+ */
+public class SnapshotBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int questions = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        DNSCache cache = new DNSCache();
+        for (int i = 0; i < questions; i++) {
+            DNSQuestion question = new DNSQuestion("host" + i + ".example" + (i % 1000) + ".com", RecordType.A,
+                    RecordClass.IN);
+            byte[] address = {10, (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+            cache.addResult(new ResourceRecord(question, 3600, InetAddress.getByAddress(address)));
+        }
+
+        Path file = Files.createTempFile("dnscache", ".snapshot");
+        try {
+            for (int run = 1; run <= runs; run++) {
+                long start = System.nanoTime();
+                int saved = cache.saveSnapshot(file);
+                long saveNanos = System.nanoTime() - start;
+
+                DNSCache loaded = new DNSCache();
+                start = System.nanoTime();
+                int records = loaded.loadSnapshot(file);
+                long loadNanos = System.nanoTime() - start;
+
+                System.out.printf("run %d: saved %d questions (%.1f MB) in %.1f ms, loaded %d records in %.1f ms " +
+                                "(%.0f ns/record)%n", run, saved, Files.size(file) / 1e6, saveNanos / 1e6, records,
+                        loadNanos / 1e6, (double) loadNanos / records);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
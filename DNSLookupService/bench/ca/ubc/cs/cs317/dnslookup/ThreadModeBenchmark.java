@@ -0,0 +1,108 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Compares two ways of running many blocking lookups at once: a fixed pool of platform threads, each reusing its own
+ * DNSLookupService (the baseline, as in DNSResolverServer with workers), and a new thread per lookup, with its own
+ * DNSLookupService, from DNSLookupService.newThreadPerTaskExecutor (virtual threads on Java 21 and later, platform
+ * threads otherwise).
+ * <p>
+ * A zone is served by DNSZoneServer on 127.0.0.4, with a fixed latency, so each lookup waits for the network as it
+ * would with real nameservers. Lookups start at that server, so each of them sends a single query, and are all for
+ * different names, so they are neither answered from the cache nor coalesced. Each mode is run a few times, and the
+ * time of each run is printed.
+ * <p>
+ * Usage: java ca.ubc.cs.cs317.dnslookup.ThreadModeBenchmark [lookups (2000)] [poolThreads (64)] [latencyMs (50)]
+ * [runs (3)]
+ */
+public class ThreadModeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int poolThreads = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int latency = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int runs = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        String exampleZone = "$ORIGIN example.test.\n@ SOA ns1 hostmaster 1 3600 600 86400 300\n" +
+                IntStream.range(0, lookups * runs * 2).mapToObj(i -> "host" + i + " A 10.0.0.1")
+                        .collect(Collectors.joining("\n"));
+        try (DNSZoneServer example = new DNSZoneServer(new InetSocketAddress("127.0.0.4", 0), "example.test",
+                new StringReader(exampleZone))) {
+            example.setLatency(latency, 0);
+            int port = example.getAddress().getPort();
+
+            System.out.printf("%d lookups, %d ms latency, virtual threads %savailable%n", lookups, latency,
+                    DNSLookupService.VIRTUAL_THREADS_AVAILABLE ? "" : "not ");
+            AtomicInteger nextName = new AtomicInteger();
+            for (int run = 1; run <= runs; run++) {
+                ExecutorService pool = Executors.newFixedThreadPool(poolThreads);
+                List<DNSLookupService> services = Collections.synchronizedList(new ArrayList<>());
+                ThreadLocal<DNSLookupService> service = ThreadLocal.withInitial(() -> {
+                    DNSLookupService lookupService = newLookupService(port);
+                    services.add(lookupService);
+                    return lookupService;
+                });
+                run("pool of " + poolThreads + " threads", run, lookups, pool, nextName,
+                        question -> service.get().getResults(question));
+                services.forEach(DNSLookupService::close);
+
+                run("thread per lookup", run, lookups, DNSLookupService.newThreadPerTaskExecutor("lookup"), nextName,
+                        question -> {
+                            DNSLookupService lookupService = newLookupService(port);
+                            try {
+                                return lookupService.getResults(question);
+                            } finally {
+                                lookupService.close();
+                            }
+                        });
+            }
+        }
+    }
+
+    private interface Lookup {
+        Object lookup(DNSQuestion question) throws Exception;
+    }
+
+    private static DNSLookupService newLookupService(int port) {
+        try {
+            DNSLookupService lookupService = new DNSLookupService("127.0.0.4", new DNSLookupCUI());
+            lookupService.setPort(port);
+            return lookupService;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void run(String mode, int run, int lookups, ExecutorService executor, AtomicInteger nextName,
+                            Lookup lookup) throws Exception {
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (int i = 0; i < lookups; i++) {
+            DNSQuestion question = new DNSQuestion("host" + nextName.getAndIncrement() + ".example.test",
+                    RecordType.A, RecordClass.IN);
+            tasks.add(() -> lookup.lookup(question));
+        }
+        long start = System.nanoTime();
+        int failed = 0;
+        for (Future<Object> result : executor.invokeAll(tasks)) {
+            try {
+                if (((Collection<?>) result.get()).isEmpty()) failed++;
+            } catch (ExecutionException e) {
+                failed++;
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        executor.shutdown();
+        System.out.printf("run %d, %-20s %8.1f ms (%.0f lookups/s), %d failed%n", run, mode + ":", nanos / 1e6,
+                lookups / (nanos / 1e9), failed);
+    }
+}
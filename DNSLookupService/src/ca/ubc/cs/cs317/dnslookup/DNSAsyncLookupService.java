@@ -0,0 +1,862 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * A non-blocking version of the lookup service. All queries are sent through a single non-blocking DatagramChannel,
+ * and a single I/O thread waits on a Selector for responses, matching them to outstanding queries by transaction ID.
+ * Each lookup is an instance of a small state machine that follows the same steps as
+ * DNSLookupService.iterativeQuery, but instead of blocking for each response, it continues when the response (or
+ * timeout) for its current query is dispatched. This way a single thread can walk many delegation chains at once.
+ * <p>
+ * All state (outstanding queries, timeouts and lookups) is only ever touched by the I/O thread. Other threads submit
+ * work to it through a task queue, and receive results through CompletableFuture objects. Dependent actions attached
+ * to these futures without an explicit executor will run on the I/O thread, so they must not block.
+ */
+public class DNSAsyncLookupService implements AutoCloseable {
+    private static final int MAX_INDIRECTION_LEVEL_NS = 10;
+    private static final int MAX_QUERY_ATTEMPTS = 3;
+    private static final int MAX_IN_FLIGHT = 0x8000;
+    private static final int MAX_INDIRECTION_LEVEL_CNAME = 10;
+    public static final int DEFAULT_BATCH_PARALLELISM = 256;
+
+    private final DNSCache cache = DNSCache.getInstance();
+    private final Random random = new SecureRandom();
+    private final DNSVerbosePrinter verbose;
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Thread ioThread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Map<Integer, PendingQuery> inFlight = new HashMap<>();
+    // Size of inFlight, readable from other threads
+    private volatile int inFlightCount = 0;
+    private final Queue<PendingQuery> waiting = new ArrayDeque<>();
+    private final PriorityQueue<PendingQuery> timeouts = new PriorityQueue<>(Comparator.comparingLong(q -> q.deadline));
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(t -> t.deadline));
+    private final Map<DNSQuestion, CompletableFuture<Void>> activeLookups = new HashMap<>();
+    private final InfrastructureCache infrastructure = InfrastructureCache.getInstance();
+    private final DNSMetrics metrics = DNSMetrics.getInstance();
+    // Queries are sent through the channel straight from direct buffers, which are reused once queries finish
+    private final DNSMessagePool messagePool = new DNSMessagePool(1024, DNSMessage.MAX_DNS_MESSAGE_LENGTH, true);
+    private final DNSMessageView view = new DNSMessageView();
+    private volatile boolean racing = false;
+    private volatile boolean closed = false;
+    private volatile InetAddress nameServer;
+    private volatile int port = DNSLookupService.DEFAULT_DNS_PORT;
+    private volatile int ednsBufferSize = DNSLookupService.DEFAULT_EDNS_BUFFER_SIZE;
+    private final DNSTcpTransport tcp = new DNSTcpTransport();
+    private final ExecutorService tcpExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "dns-async-tcp");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Creates a new asynchronous lookup service, and starts its I/O thread.
+     *
+     * @param nameServer The nameserver to be used initially. If set to null, "root" or "random", will choose a random
+     *                   pre-determined root nameserver.
+     * @param verbose    A DNSVerbosePrinter listener object with methods to be called at key events in the query
+     *                   processing. Methods are called from the I/O thread.
+     * @throws IOException If the channel or selector cannot be created, or the nameserver is not a valid server.
+     */
+    public DNSAsyncLookupService(String nameServer, DNSVerbosePrinter verbose) throws IOException {
+        this.verbose = verbose;
+        this.setNameServer(nameServer);
+        this.selector = Selector.open();
+        this.channel = DatagramChannel.open();
+        this.channel.configureBlocking(false);
+        this.channel.bind(null);
+        this.channel.register(selector, SelectionKey.OP_READ);
+        this.ioThread = new Thread(this::run, "dns-async-io");
+        this.ioThread.setDaemon(true);
+        this.ioThread.start();
+    }
+
+    /**
+     * Returns the nameserver currently being used for queries.
+     *
+     * @return The string representation of the nameserver IP address.
+     */
+    public String getNameServer() {
+        return this.nameServer.getHostAddress();
+    }
+
+    /**
+     * Updates the nameserver to be used in all future lookups. Lookups already in progress are not affected.
+     *
+     * @param nameServer The nameserver to be used initially. If set to null, "root" or "random", will choose a random
+     *                   pre-determined root nameserver.
+     * @throws UnknownHostException If the nameserver is not a valid server.
+     */
+    public void setNameServer(String nameServer) throws UnknownHostException {
+        if (nameServer == null || nameServer.equalsIgnoreCase("random") || nameServer.equalsIgnoreCase("root")) {
+            List<ResourceRecord> rootNameServers = cache.getCachedResults(DNSCache.rootQuestion, false);
+            nameServer = rootNameServers.get(0).getTextResult();
+        }
+        this.nameServer = InetAddress.getByName(nameServer);
+    }
+
+    /**
+     * Returns the UDP port to which all queries are sent.
+     *
+     * @return The port number.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Updates the UDP port to which all queries are sent, for all nameservers.
+     *
+     * @param port The port number.
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public int getEdnsBufferSize() {
+        return ednsBufferSize;
+    }
+
+    /**
+     * Updates the UDP payload size advertised to nameservers through EDNS(0), as in
+     * DNSLookupService.setEdnsBufferSize. Truncated responses are retried over TCP, without blocking the I/O thread.
+     *
+     * @param ednsBufferSize The payload size in bytes, between 512 and 65535, or 0 to disable EDNS.
+     */
+    public void setEdnsBufferSize(int ednsBufferSize) {
+        if (ednsBufferSize != 0 && (ednsBufferSize < DNSMessage.MAX_DNS_MESSAGE_LENGTH ||
+                ednsBufferSize > DNSMessage.MAX_TCP_MESSAGE_LENGTH))
+            throw new IllegalArgumentException("Invalid EDNS buffer size: " + ednsBufferSize);
+        this.ednsBufferSize = ednsBufferSize;
+    }
+
+    /**
+     * Stops the I/O thread and closes the channel. Lookups still in progress are completed with no results. When
+     * called on the I/O thread (e.g., from an action attached to a returned future), the thread stops once the
+     * current action returns, without being waited for.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        if (Thread.currentThread() != ioThread) {
+            try {
+                ioThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        tcpExecutor.shutdownNow();
+        tcp.close();
+    }
+
+    /**
+     * Returns the number of queries currently sent and waiting for a response. Only meant for monitoring, the value
+     * may be slightly out of date.
+     *
+     * @return The number of outstanding queries.
+     */
+    public int getInFlightCount() {
+        return inFlightCount;
+    }
+
+    public boolean isRacing() {
+        return racing;
+    }
+
+    /**
+     * Enables or disables racing queries between the nameservers of a delegation, as in DNSLookupService.setRacing.
+     *
+     * @param racing true to enable racing, false to contact a single nameserver per delegation.
+     */
+    public void setRacing(boolean racing) {
+        this.racing = racing;
+    }
+
+    /**
+     * Asynchronous equivalent of DNSLookupService.getResults. If there are valid results in the cache, the returned
+     * future is already complete, otherwise it is completed once the iterative lookup ends. Concurrent calls for the
+     * same question share a single lookup.
+     *
+     * @param question Host and record type to be used for search.
+     * @return A future for the (possibly empty) set of resource records corresponding to the question.
+     */
+    public CompletableFuture<Collection<ResourceRecord>> getResults(DNSQuestion question) {
+        Collection<ResourceRecord> results = cache.getClientResults(question, true);
+        if (!results.isEmpty() || cache.hasNegativeResult(question))
+            return CompletableFuture.completedFuture(results);
+
+        InetAddress server = this.nameServer;
+        return submit(() -> lookup(question, server)).thenApply(ignored -> cache.getCachedResults(question, true));
+    }
+
+    /**
+     * Starts an iterative lookup for a question, or returns the lookup already in progress for the same question.
+     * Must be called on the I/O thread.
+     *
+     * @param question Host name and record type/class to be resolved.
+     * @param server   Address of the server to be used for the first query of a new lookup.
+     * @return A future completed when the lookup ends. Results are found in the cache.
+     */
+    private CompletableFuture<Void> lookup(DNSQuestion question, InetAddress server) {
+        CompletableFuture<Void> lookup = activeLookups.get(question);
+        if (lookup != null)
+            return lookup;
+        long start = metrics.startTimer();
+        CompletableFuture<Void> started = startLookup(question, server, false, 0);
+        // Delegations are not counted here, since a lookup may follow several of them concurrently
+        started.whenComplete((ignored, error) -> metrics.lookupCompleted(start, -1));
+        if (!started.isDone()) {
+            activeLookups.put(question, started);
+            started.whenComplete((ignored, error) -> activeLookups.remove(question, started));
+        }
+        return started;
+    }
+
+    /**
+     * Resolves a question again from the nameserver, even if it has valid results in the cache, so that the cached
+     * records are renewed. Suitable as the refresher of the cache (see DNSCache.setRefresher).
+     *
+     * @param question Host and record type to be refreshed.
+     * @return A future completed once the lookup ends. New results are found in the cache.
+     */
+    public CompletableFuture<Void> refresh(DNSQuestion question) {
+        InetAddress server = this.nameServer;
+        return submit(() -> startLookup(question, server, true, 0));
+    }
+
+    /**
+     * Starts an iterative lookup at the nameservers of the closest enclosing zone with a cached delegation (see
+     * DNSLookupService.closestNameServers), which are raced if racing is enabled. If that does not resolve the
+     * question, it is looked up again from the configured nameserver, as when there is no cached delegation. Must be
+     * called on the I/O thread.
+     *
+     * @param question  Host name and record type/class to be resolved.
+     * @param server    Address of the configured nameserver.
+     * @param refresh   true if the question is being refreshed (see refresh).
+     * @param glueDepth Number of enclosing lookups that are resolving the address of a nameserver.
+     * @return A future completed when the lookup ends. Results are found in the cache.
+     */
+    private CompletableFuture<Void> startLookup(DNSQuestion question, InetAddress server, boolean refresh,
+                                                int glueDepth) {
+        List<InetAddress> closest = DNSLookupService.closestNameServers(question, cache);
+        if (closest.isEmpty())
+            return iterativeQuery(question, Collections.singletonList(server), MAX_INDIRECTION_LEVEL_NS, refresh,
+                    glueDepth);
+        CompletableFuture<Void> fromClosest = iterativeQuery(question, racing ? closest : closest.subList(0, 1),
+                MAX_INDIRECTION_LEVEL_NS, refresh, glueDepth);
+        return fromClosest.thenCompose(ignored -> refresh || DNSLookupService.isResolved(question, cache)
+                ? CompletableFuture.completedFuture(null)
+                : iterativeQuery(question, Collections.singletonList(server), MAX_INDIRECTION_LEVEL_NS, false,
+                glueDepth));
+    }
+
+    /**
+     * Asynchronous equivalent of DNSLookupService.getResultsFollowingCNames. CNAME records found in the results are
+     * followed concurrently. As in DNSLookupService, flattened CNAME chains are used and cached (see
+     * DNSCache.addCNameChain).
+     *
+     * @param question             Host and record type to be used for search.
+     * @param maxIndirectionLevels Number of CNAME indirection levels to support.
+     * @return A future for the set of resource records corresponding to the question. If the number of CNAME
+     * redirection levels exceeds maxIndirectionLevels, the future completes exceptionally with a
+     * DNSLookupService.CNameIndirectionLimitException.
+     */
+    public CompletableFuture<Collection<ResourceRecord>> getResultsFollowingCNames(DNSQuestion question,
+                                                                                  int maxIndirectionLevels) {
+        if (maxIndirectionLevels < 0)
+            return CompletableFuture.failedFuture(new DNSLookupService.CNameIndirectionLimitException());
+        if (question.getRecordType() != RecordType.CNAME) {
+            List<ResourceRecord> chain = cache.getCNameChain(question);
+            if (chain != null)
+                return DNSLookupService.countCNames(chain) > maxIndirectionLevels
+                        ? CompletableFuture.failedFuture(new DNSLookupService.CNameIndirectionLimitException())
+                        : CompletableFuture.completedFuture(chain);
+        }
+
+        return getResults(question).thenCompose(directResults -> {
+            if (directResults.isEmpty() || question.getRecordType() == RecordType.CNAME)
+                return CompletableFuture.completedFuture(directResults);
+
+            List<CompletableFuture<Collection<ResourceRecord>>> parts = new ArrayList<>();
+            for (ResourceRecord record : directResults) {
+                parts.add(CompletableFuture.completedFuture(Collections.singletonList(record)));
+                if (record.getRecordType() == RecordType.CNAME)
+                    parts.add(getResultsFollowingCNames(
+                            new DNSQuestion(record.getTextResult(), question.getRecordType(), question.getRecordClass()),
+                            maxIndirectionLevels - 1));
+            }
+            return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+                List<ResourceRecord> newResults = new ArrayList<>();
+                parts.forEach(part -> newResults.addAll(part.join()));
+                if (DNSLookupService.isCNameChain(question, directResults, newResults))
+                    cache.addCNameChain(question, newResults);
+                return newResults;
+            });
+        });
+    }
+
+    /**
+     * Finds the results for many questions, following CNAME records, with at most maxParallel lookups in progress at
+     * any time. Lookups share the cache, so delegations found by one lookup are used by all later ones. Results are
+     * passed to the consumer as each lookup completes (not necessarily in the order of the questions); the consumer
+     * runs on the calling thread. This method returns once all lookups are complete.
+     *
+     * @param questions   Questions to be resolved.
+     * @param maxParallel Maximum number of lookups in progress at the same time.
+     * @param consumer    Action to be performed with the results of each question. Questions that could not be
+     *                    resolved (including those exceeding the CNAME indirection limit) receive an empty collection.
+     * @return Statistics about the whole batch.
+     * @throws InterruptedException If the calling thread is interrupted while waiting for results.
+     */
+    public BatchStatistics resolveAll(Collection<DNSQuestion> questions, int maxParallel,
+                                      BiConsumer<DNSQuestion, Collection<ResourceRecord>> consumer)
+            throws InterruptedException {
+        BlockingQueue<CompletedLookup> completed = new LinkedBlockingQueue<>();
+        BatchStatistics statistics = new BatchStatistics(questions.size());
+        Iterator<DNSQuestion> pending = questions.iterator();
+        int outstanding = 0;
+
+        while (pending.hasNext() || outstanding > 0) {
+            while (outstanding < maxParallel && pending.hasNext()) {
+                DNSQuestion question = pending.next();
+                long start = System.nanoTime();
+                getResultsFollowingCNames(question, MAX_INDIRECTION_LEVEL_CNAME).whenComplete((results, error) ->
+                        completed.add(new CompletedLookup(question,
+                                error != null ? Collections.emptyList() : results, System.nanoTime() - start)));
+                outstanding++;
+            }
+            CompletedLookup lookup = completed.take();
+            outstanding--;
+            statistics.add(lookup.latency, !lookup.results.isEmpty());
+            consumer.accept(lookup.question, lookup.results);
+        }
+        statistics.finish();
+        return statistics;
+    }
+
+    /**
+     * Finds the results for many questions, following CNAME records, with a default limit of lookups in progress.
+     *
+     * @param questions Questions to be resolved.
+     * @return A map linking each question to its (possibly empty) results.
+     * @throws InterruptedException If the calling thread is interrupted while waiting for results.
+     */
+    public Map<DNSQuestion, Collection<ResourceRecord>> resolveAll(Collection<DNSQuestion> questions)
+            throws InterruptedException {
+        Map<DNSQuestion, Collection<ResourceRecord>> results = new LinkedHashMap<>();
+        resolveAll(questions, DEFAULT_BATCH_PARALLELISM, results::put);
+        return results;
+    }
+
+    /**
+     * Runs an action on the I/O thread, and returns a future completed with the result of the future it produces. If
+     * the action throws an exception, the returned future is completed exceptionally with it. If the service is
+     * closed, the action is not run, and the returned future is completed with null.
+     */
+    <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> action) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable task = () -> {
+            try {
+                action.get().whenComplete((value, error) -> {
+                    if (error != null) result.completeExceptionally(error);
+                    else result.complete(value);
+                });
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        };
+        tasks.add(task);
+        selector.wakeup();
+        // If the I/O thread is gone, it may never see the task, unless it picked it up already
+        if (closed && tasks.remove(task))
+            result.complete(null);
+        return result;
+    }
+
+    /**
+     * State machine equivalent to DNSLookupService.iterativeQuery. Each step sends the question to the current
+     * server, and the next step is decided when the response arrives: stop if the cache has an answer or there are
+     * no nameservers to follow, otherwise continue with a nameserver, resolving its address first if needed.
+     * When refreshing, answers already in the cache are ignored, and the lookup only stops once a server answers
+     * the question itself. If racing is enabled, each step is raced between all nameservers with a known address.
+     * Must be called on the I/O thread.
+     *
+     * @param question       Host name and record type/class to be used for the query.
+     * @param servers        Addresses of the servers to be used for the current step, in order of preference.
+     * @param remainingSteps Number of delegation levels that may still be followed.
+     * @param refresh        True if the question is resolved again to renew its cached results.
+     * @param glueDepth      Number of enclosing lookups that are resolving the address of a nameserver.
+     * @return A future completed when the lookup ends. Results are found in the cache.
+     */
+    private CompletableFuture<Void> iterativeQuery(DNSQuestion question, List<InetAddress> servers, int remainingSteps,
+                                                   boolean refresh, int glueDepth) {
+        if (remainingSteps <= 0)
+            return CompletableFuture.completedFuture(null);
+
+        CompletableFuture<DNSMessage> query = servers.size() > 1 ? new Race(question, servers).start()
+                : sendQuery(question, servers.get(0));
+        return query.thenCompose(response -> {
+            if (response == null)
+                return CompletableFuture.completedFuture(null);
+            Set<ResourceRecord> nameServers = DNSLookupService.processResponse(response, cache, verbose);
+            boolean answered = refresh ? response.getAA() || response.getANCount() > 0
+                    : !cache.getCachedResults(question, true).isEmpty();
+            if (answered || nameServers.isEmpty())
+                return CompletableFuture.completedFuture(null);
+
+            if (racing) {
+                List<InetAddress> addresses = DNSLookupService.nameServerAddresses(nameServers, cache);
+                if (!addresses.isEmpty())
+                    return iterativeQuery(question, addresses, remainingSteps - 1, refresh, glueDepth);
+            }
+            ResourceRecord next = DNSLookupService.interactiveQueryHelper(nameServers, cache);
+            if (next.getInetResult() != null)
+                return iterativeQuery(question, Collections.singletonList(next.getInetResult()), remainingSteps - 1,
+                        refresh, glueDepth);
+
+            // No known address for any nameserver, so resolve several of them first, then continue from the first
+            return resolveNameServers(nameServers, glueDepth).thenCompose(address -> address == null
+                    ? CompletableFuture.completedFuture(null)
+                    : iterativeQuery(question, Collections.singletonList(address), remainingSteps - 1, refresh,
+                    glueDepth));
+        });
+    }
+
+    /**
+     * Asynchronous equivalent of DNSLookupService.resolveNameServers. The questions returned by
+     * DNSLookupService.nameServerQuestions are looked up concurrently, each starting at the closest cached delegation
+     * or else at the configured nameserver, like any other lookup (see startLookup), and the returned future is
+     * completed with the first usable address found. The other lookups continue, so their addresses are also cached.
+     * Nameservers are only resolved up to DNSLookupService.MAX_GLUE_DEPTH levels. Must be called on the I/O thread.
+     *
+     * @param records   NS records of the nameservers.
+     * @param glueDepth Number of enclosing lookups that are resolving the address of a nameserver.
+     * @return A future for the address of one of the nameservers, completed with null if none could be resolved.
+     */
+    private CompletableFuture<InetAddress> resolveNameServers(Set<ResourceRecord> records, int glueDepth) {
+        if (glueDepth >= DNSLookupService.MAX_GLUE_DEPTH)
+            return CompletableFuture.completedFuture(null);
+        CompletableFuture<InetAddress> first = new CompletableFuture<>();
+        List<DNSQuestion> questions = DNSLookupService.nameServerQuestions(records, cache);
+        CompletableFuture<?>[] lookups = new CompletableFuture<?>[questions.size()];
+        for (int i = 0; i < lookups.length; i++) {
+            DNSQuestion question = questions.get(i);
+            lookups[i] = startLookup(question, nameServer, false, glueDepth + 1).thenRun(() -> {
+                List<ResourceRecord> addresses = DNSLookupService.cachedAddresses(question.getHostName(), cache);
+                if (!addresses.isEmpty())
+                    first.complete(addresses.get(0).getInetResult());
+            });
+        }
+        CompletableFuture.allOf(lookups).whenComplete((ignored, e) -> first.complete(null));
+        return first;
+    }
+
+    /**
+     * Sends a single query to a server. Must be called on the I/O thread.
+     *
+     * @return A future for the response, completed with null if no valid response is received after
+     * MAX_QUERY_ATTEMPTS transmissions.
+     */
+    private CompletableFuture<DNSMessage> sendQuery(DNSQuestion question, InetAddress server) {
+        return startQuery(question, server).future;
+    }
+
+    private PendingQuery startQuery(DNSQuestion question, InetAddress server) {
+        PendingQuery query = new PendingQuery(question, new InetSocketAddress(server, port));
+        if (inFlight.size() >= MAX_IN_FLIGHT)
+            waiting.add(query);
+        else
+            start(query);
+        return query;
+    }
+
+    /**
+     * Abandons a query, completing its future with null. Must be called on the I/O thread.
+     */
+    private void cancel(PendingQuery query) {
+        if (query.done) return;
+        if (inFlight.get(query.id) == query) {
+            finish(query, null);
+        } else {
+            // Still waiting for a free transaction ID, skipped once it leaves the waiting queue
+            query.done = true;
+            query.future.complete(null);
+        }
+    }
+
+    /**
+     * Runs an action on the I/O thread after a delay, unless the returned timer is cancelled first. If the action
+     * throws an exception, the given future is completed exceptionally with it. Must be called on the I/O thread.
+     */
+    private Timer schedule(long delayMillis, Runnable action, CompletableFuture<?> future) {
+        Timer timer = new Timer(System.nanoTime() + delayMillis * 1_000_000L, action, future);
+        timers.add(timer);
+        return timer;
+    }
+
+    private void start(PendingQuery query) {
+        if (query.done) return;
+        int id;
+        do {
+            id = random.nextInt(0x10000);
+        } while (inFlight.containsKey(id));
+        DNSMessage message = messagePool.acquire((short) id);
+        message.addQuestion(query.question);
+        if (ednsBufferSize > 0)
+            message.addOpt(ednsBufferSize);
+        query.id = id;
+        query.message = message;
+        inFlight.put(id, query);
+        inFlightCount = inFlight.size();
+        transmit(query);
+    }
+
+    private void transmit(PendingQuery query) {
+        long timeout = infrastructure.getTimeoutMillis(query.server.getAddress(), query.attempts);
+        query.attempts++;
+        query.sentAt = System.nanoTime();
+        query.deadline = query.sentAt + timeout * 1_000_000L;
+        timeouts.add(query);
+        verbose.printQueryToSend(query.question, query.server.getAddress(), query.id);
+        try {
+            channel.send(query.message.getUsedBuffer(), query.server);
+            metrics.querySent(query.message.getLength(), query.attempts > 1);
+        } catch (IOException ignored) {
+            // Treated as a lost packet, will be retransmitted on timeout
+        }
+    }
+
+    private void finish(PendingQuery query, DNSMessage response) {
+        inFlight.remove(query.id);
+        inFlightCount = inFlight.size();
+        // Its entry in the timeout queue (if any) is discarded once it reaches the head of the queue
+        query.done = true;
+        messagePool.release(query.message);
+        query.message = null;
+        query.future.complete(response);
+        while (!waiting.isEmpty() && inFlight.size() < MAX_IN_FLIGHT)
+            start(waiting.remove());
+    }
+
+    /**
+     * Main loop of the I/O thread: runs submitted tasks, dispatches received responses and handles timeouts.
+     */
+    private void run() {
+        // On the heap, so responses can be validated in place (see dispatch)
+        ByteBuffer receiveBuffer = ByteBuffer.allocate(DNSMessage.MAX_DNS_MESSAGE_LENGTH);
+        try {
+            while (!closed) {
+                int receiveSize = Math.max(DNSMessage.MAX_DNS_MESSAGE_LENGTH, ednsBufferSize);
+                if (receiveBuffer.capacity() != receiveSize)
+                    receiveBuffer = ByteBuffer.allocate(receiveSize);
+                drainTasks();
+                while (!timeouts.isEmpty() && timeouts.peek().done)
+                    timeouts.remove();
+                PendingQuery first = timeouts.peek();
+                Timer firstTimer = timers.peek();
+                long deadline = first == null ? Long.MAX_VALUE : first.deadline;
+                if (firstTimer != null && (first == null || firstTimer.deadline - deadline < 0))
+                    deadline = firstTimer.deadline;
+                long wait = deadline == Long.MAX_VALUE ? 0
+                        : Math.max(1, (deadline - System.nanoTime()) / 1_000_000L);
+                selector.select(wait);
+                selector.selectedKeys().clear();
+
+                SocketAddress source;
+                while ((source = channel.receive(receiveBuffer.clear())) != null)
+                    dispatch(receiveBuffer.flip(), source);
+
+                long now = System.nanoTime();
+                while (!timeouts.isEmpty() && timeouts.peek().deadline - now <= 0) {
+                    PendingQuery query = timeouts.remove();
+                    if (query.done || query.tcp)
+                        continue;
+                    infrastructure.recordTimeout(query.server.getAddress());
+                    metrics.queryTimedOut();
+                    if (query.attempts < MAX_QUERY_ATTEMPTS)
+                        transmit(query);
+                    else
+                        finish(query, null);
+                }
+                while (!timers.isEmpty() && timers.peek().deadline - now <= 0)
+                    timers.remove().run();
+            }
+        } catch (IOException ignored) {
+        } finally {
+            closed = true;
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            // Fail everything still outstanding, including lookups waiting for a free transaction ID
+            while (!inFlight.isEmpty() || !waiting.isEmpty() || !tasks.isEmpty()) {
+                drainTasks();
+                new ArrayList<>(inFlight.values()).forEach(query -> finish(query, null));
+                while (!waiting.isEmpty()) waiting.remove().future.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Runs the submitted tasks. Tasks created by submit report their own exceptions, so an exception thrown by any
+     * other task is dropped, and only that task is affected.
+     */
+    private void drainTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ignored) {
+                // The I/O thread must keep running for all other lookups
+            }
+        }
+    }
+
+    /**
+     * Matches a received datagram to its outstanding query. Datagrams that do not come from the server of an
+     * outstanding query with their transaction ID, or that are not a response to that query (see
+     * DNSLookupService.isResponseTo), are ignored. Truncated responses are retried over TCP.
+     */
+    private void dispatch(ByteBuffer data, SocketAddress source) {
+        PendingQuery query = data.remaining() < 12 ? null : inFlight.get(data.getShort(0) & 0xffff);
+        if (query == null || query.tcp || !query.server.equals(source) ||
+                !DNSLookupService.isResponseTo(view, data.array(), data.remaining(), query.id, query.question)) {
+            metrics.responseIgnored();
+            return;
+        }
+
+        // only the first transmission can be timed unambiguously
+        if (query.attempts == 1)
+            infrastructure.recordResponse(query.server.getAddress(), System.nanoTime() - query.sentAt);
+        metrics.responseReceived(data.remaining(), query.attempts == 1 ? System.nanoTime() - query.sentAt : -1);
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        DNSMessage response = new DNSMessage(bytes, bytes.length);
+        if (response.getTC())
+            retryOverTcp(query, response);
+        else
+            finish(query, response);
+    }
+
+    /**
+     * Sends a query again over TCP, after the server truncated its UDP response. The exchange blocks, so it runs on a
+     * separate thread, and the query is finished back on the I/O thread, with the truncated response if the exchange
+     * fails. The query keeps its transaction ID meanwhile, but is no longer retransmitted over UDP.
+     */
+    private void retryOverTcp(PendingQuery query, DNSMessage truncated) {
+        query.tcp = true;
+        verbose.printQueryToSend(query.question, query.server.getAddress(), query.id);
+        // Copied, since the message goes back to the pool if the query is cancelled during the exchange
+        byte[] data = query.message.getUsed();
+        tcpExecutor.execute(() -> {
+            DNSMessage response = truncated;
+            try {
+                byte[] bytes = tcp.exchange(data, query.server, DNSLookupService.SO_TIMEOUT);
+                metrics.tcpQuerySent(data.length, bytes.length);
+                response = new DNSMessage(bytes, bytes.length);
+            } catch (IOException ignored) {
+                metrics.tcpQuerySent(data.length, 0);
+            }
+            DNSMessage result = response;
+            tasks.add(() -> {
+                if (!query.done) finish(query, result);
+            });
+            selector.wakeup();
+        });
+    }
+
+    /**
+     * Returns the number of TCP connections opened by this service so far, to retry truncated responses.
+     */
+    int getTcpConnectionsOpened() {
+        return tcp.getConnectionsOpened();
+    }
+
+    /**
+     * A query that was sent (or is waiting to be sent) and has not yet received a response.
+     */
+    private static class PendingQuery {
+        private final DNSQuestion question;
+        private final InetSocketAddress server;
+        private final CompletableFuture<DNSMessage> future = new CompletableFuture<>();
+        private int id;
+        private DNSMessage message;
+        private int attempts = 0;
+        private long sentAt;
+        private long deadline;
+        private boolean done = false;
+        private boolean tcp = false;
+
+        private PendingQuery(DNSQuestion question, InetSocketAddress server) {
+            this.question = question;
+            this.server = server;
+        }
+    }
+
+    /**
+     * An action to be run on the I/O thread at a specific time (in System.nanoTime units), and the future to be
+     * completed exceptionally if the action fails. A cancelled timer stays in the queue, and is skipped when due.
+     */
+    private static class Timer {
+        private final long deadline;
+        private final Runnable action;
+        private final CompletableFuture<?> future;
+        private boolean cancelled = false;
+
+        private Timer(long deadline, Runnable action, CompletableFuture<?> future) {
+            this.deadline = deadline;
+            this.action = action;
+            this.future = future;
+        }
+
+        private void run() {
+            if (cancelled) return;
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * A query raced between several servers: it is sent to the next server when the racing delay of the last server
+     * contacted passes (see InfrastructureCache), or immediately when a server gives up, and the first response
+     * received from any server is used. The queries still outstanding at that point are abandoned. All methods are
+     * called on the I/O thread.
+     */
+    private class Race {
+        private final DNSQuestion question;
+        private final List<InetAddress> servers;
+        private final List<PendingQuery> queries = new ArrayList<>();
+        private final CompletableFuture<DNSMessage> result = new CompletableFuture<>();
+        private int failed = 0;
+        // Starts the next query once the racing delay passes, cancelled if the next query is started earlier
+        private Timer delay;
+
+        private Race(DNSQuestion question, List<InetAddress> servers) {
+            this.question = question;
+            this.servers = servers;
+        }
+
+        private CompletableFuture<DNSMessage> start() {
+            next();
+            return result;
+        }
+
+        private void next() {
+            if (result.isDone() || queries.size() == servers.size()) return;
+            if (delay != null) delay.cancelled = true;
+            InetAddress server = servers.get(queries.size());
+            PendingQuery query = startQuery(question, server);
+            queries.add(query);
+            query.future.thenAccept(response -> {
+                if (result.isDone()) return;
+                if (response != null) {
+                    result.complete(response);
+                    queries.forEach(DNSAsyncLookupService.this::cancel);
+                } else if (++failed == servers.size()) {
+                    result.complete(null);
+                } else {
+                    next();
+                }
+            });
+            if (queries.size() < servers.size())
+                delay = schedule(infrastructure.getRacingDelayMillis(server), this::next, result);
+        }
+    }
+
+    /**
+     * A lookup completed as part of a batch, waiting to be reported to the calling thread.
+     */
+    private static class CompletedLookup {
+        private final DNSQuestion question;
+        private final Collection<ResourceRecord> results;
+        private final long latency;
+
+        private CompletedLookup(DNSQuestion question, Collection<ResourceRecord> results, long latency) {
+            this.question = question;
+            this.results = results;
+            this.latency = latency;
+        }
+    }
+
+    /**
+     * Throughput and latency figures for a batch of lookups.
+     */
+    public static class BatchStatistics {
+        private final long start = System.nanoTime();
+        private final long[] latencies;
+        private int count = 0;
+        private int resolved = 0;
+        private long elapsed;
+
+        BatchStatistics(int expected) {
+            this.latencies = new long[expected];
+        }
+
+        void add(long latency, boolean hasResults) {
+            latencies[count++] = latency;
+            if (hasResults) resolved++;
+        }
+
+        void finish() {
+            elapsed = System.nanoTime() - start;
+            Arrays.sort(latencies, 0, count);
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public int getResolvedCount() {
+            return resolved;
+        }
+
+        public double getElapsedSeconds() {
+            return elapsed / 1e9;
+        }
+
+        public double getQueriesPerSecond() {
+            return elapsed == 0 ? 0 : count / getElapsedSeconds();
+        }
+
+        /**
+         * Returns a latency percentile for individual lookups, using the nearest-rank method.
+         *
+         * @param percentile Percentile to be returned, between 0 and 100.
+         * @return The latency, in milliseconds, or 0 if the batch was empty.
+         */
+        public double getLatencyPercentile(double percentile) {
+            if (count == 0) return 0;
+            int rank = (int) Math.ceil(percentile / 100 * count);
+            return latencies[Math.max(0, Math.min(count, rank) - 1)] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d queries (%d with results) in %.3f s: %.1f queries/s, p50 %.1f ms, p99 %.1f ms",
+                    count, resolved, getElapsedSeconds(), getQueriesPerSecond(),
+                    getLatencyPercentile(50), getLatencyPercentile(99));
+        }
+    }
+}
@@ -1,29 +1,137 @@
 package ca.ubc.cs.cs317.dnslookup;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * This class handles a cache of DNS results. It is based on a map that links nodes (queries) to a set of resource
  * records (results). Cached results are only maintained for the duration of the TTL (time-to-live) returned by the
  * server, and are deleted before being returned to the user.
+ * <p>
+ * The map is split into a fixed number of segments, selected by the (precomputed) hash of the question. Each segment
+ * is guarded by its own read/write lock, so the cache can be shared by many resolver threads: lookups on any segment
+ * proceed in parallel, and updates only block other operations on the same segment.
+ * <p>
+ * Lookups made on behalf of clients (getClientResults) are counted for each question. If a refresher is set, it is
+ * used to resolve popular questions again in the background shortly before their records expire (prefetching), and,
+ * if serving stale records is enabled, to refresh questions whose records expired recently, while the expired records
+ * are returned to the client in the meantime. Both are disabled by default.
+ * <p>
+ * The number of cached questions can be bounded (setMaximumSize). When a segment is full, a question is evicted to
+ * make room for a new one. Victims are chosen with the CLOCK algorithm (an approximation of least-recently-used that
+ * does not need the write lock on lookups), and among a few CLOCK candidates, the one used least often according to a
+ * TinyLFU frequency sketch is evicted, so popular names survive scans of names used only once. Expired records can
+ * also be removed periodically by a background sweeper (setSweepInterval), without waiting for a lookup.
+ * <p>
+ * For serving answers to clients (see DNSResolverServer), the records of a question can also be kept encoded in wire
+ * format (getWireRRset). The encoding is built the first time it is requested, kept with the records, and dropped
+ * whenever the records of the question change or expire.
+ * <p>
+ * A question answered through CNAME records can also have its whole CNAME chain cached, flattened (addCNameChain), so
+ * that later lookups find the chain and the final records in a single lookup (getCNameChain), instead of one lookup
+ * for each name in the chain. A chain is kept until the first of its records expires.
+ * <p>
+ * The contents of the cache can be saved to a binary snapshot file (saveSnapshot) and loaded again later, for example
+ * when the resolver is restarted (loadSnapshot). The snapshot records absolute expiration times, so records that
+ * expired in the meantime are dropped when it is loaded. The layout of the file is:
+ * <pre>
+ *     header:   int magic ("DNSC"), short version, short reserved, long creation time, int number of questions
+ *     question: short name length, name (UTF-8), short type code, short class code,
+ *               long negative result expiration (0 if none), byte negative result rcode, byte 1 if an SOA follows,
+ *               [short SOA name length, SOA name (UTF-8), short SOA data length, SOA data (UTF-8)],
+ *               int number of records
+ *     record:   long expiration, byte kind (0: text, 1: address), short data length, data
+ * </pre>
+ * All numbers are big-endian, and all times are in milliseconds since the epoch. Records follow their question.
  */
 public class DNSCache {
 
     public static final DNSQuestion rootQuestion = new DNSQuestion("", RecordType.NS, RecordClass.IN);
-    private static final Set<ResourceRecord> rootNameServersMap = Stream.of("198.41.0.4",
-                    "199.9.14.201", "192.33.4.12", "199.7.91.13", "192.203.230.10", "192.5.5.241", "192.112.36.4",
-                    "198.97.190.53", "192.36.148.17", "192.58.128.30", "193.0.14.129", "199.7.83.42", "202.12.27.33")
-            .map(s -> new ResourceRecord(rootQuestion, Integer.MAX_VALUE, s))
-            .collect(Collectors.toSet());
+    private static final List<String> defaultRootNameServers = Arrays.asList("198.41.0.4",
+            "199.9.14.201", "192.33.4.12", "199.7.91.13", "192.203.230.10", "192.5.5.241", "192.112.36.4",
+            "198.97.190.53", "192.36.148.17", "192.58.128.30", "193.0.14.129", "199.7.83.42", "202.12.27.33");
+
+    private static final int DEFAULT_SEGMENTS = 64;
+    private static final int DEFAULT_MAXIMUM_SIZE = 1_000_000;
+    private static final int DEFAULT_SWEEP_INTERVAL = 60;
+    private static final int EVICTION_CANDIDATES = 8;
+    // Questions given a second chance by one eviction, before the CLOCK hand takes recently used ones as candidates
+    private static final int EVICTION_SECOND_CHANCES = 32;
+
+    private static final int SNAPSHOT_MAGIC = 0x444e5343;
+    private static final short SNAPSHOT_VERSION = 2;
+    private static final byte SNAPSHOT_TEXT = 0;
+    private static final byte SNAPSHOT_ADDRESS = 1;
+
+    private static final ScheduledExecutorService sweeperExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "dns-cache-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private static final DNSCache instance = new DNSCache();
 
-    private final Map<DNSQuestion, Set<ResourceRecord>> cachedResults = new TreeMap<>();
+    static {
+        instance.setMaximumSize(DEFAULT_MAXIMUM_SIZE);
+        instance.setSweepInterval(DEFAULT_SWEEP_INTERVAL);
+    }
+
+    private final Segment[] segments;
+    private volatile Set<ResourceRecord> rootNameServersMap = rootNameServerRecords(defaultRootNameServers);
+    private volatile Function<DNSQuestion, CompletableFuture<?>> refresher = null;
+    private volatile int prefetchMinHits = 0;
+    private volatile long prefetchWindowMillis = 0;
+    private volatile long staleMillis = 0;
+    private volatile int maximumSize = 0;
+    private volatile FrequencySketch sketch = null;
+    private ScheduledFuture<?> sweeper = null;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
 
     public DNSCache() {
+        this(DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Creates a new cache split into a specific number of independently locked segments.
+     *
+     * @param concurrencyLevel Minimum number of segments to use. Rounded up to the next power of two.
+     */
+    public DNSCache(int concurrencyLevel) {
+        int count = 1;
+        while (count < concurrencyLevel) count <<= 1;
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++)
+            segments[i] = new Segment();
         reset();
     }
 
@@ -37,12 +145,313 @@ public class DNSCache {
         return instance;
     }
 
+    /**
+     * Sets the action used to resolve a question again in the background, for prefetching and serving stale records.
+     * The action must not block: it is called from the thread looking up the cache, and must return a future that is
+     * completed once the new records (if any) have been added to the cache.
+     *
+     * @param refresher The action to be performed to refresh a question, or null to disable refreshing.
+     */
+    public void setRefresher(Function<DNSQuestion, CompletableFuture<?>> refresher) {
+        this.refresher = refresher;
+    }
+
+    /**
+     * Configures prefetching. A question is refreshed (see setRefresher) when a client lookup finds that its records
+     * expire within the prefetch window, and it has been looked up at least minHits times since it was last
+     * refreshed.
+     *
+     * @param minHits       Minimum number of client lookups for a question to be prefetched, or 0 to disable
+     *                      prefetching.
+     * @param windowSeconds Number of seconds before expiration when prefetching starts.
+     */
+    public void setPrefetch(int minHits, int windowSeconds) {
+        this.prefetchMinHits = minHits;
+        this.prefetchWindowMillis = windowSeconds * 1000L;
+    }
+
+    /**
+     * Configures serving stale records. If enabled, records are kept for a grace period after they expire. Client
+     * lookups for a question with no valid records, but with records that expired within that period, return the
+     * expired records and refresh the question (see setRefresher). Other lookups never return expired records.
+     *
+     * @param staleSeconds Number of seconds expired records can still be served, or 0 to disable.
+     */
+    public void setServeStale(int staleSeconds) {
+        this.staleMillis = staleSeconds * 1000L;
+    }
+
+    /**
+     * Bounds the number of questions kept in the cache. Each segment holds an equal share of the maximum, so the
+     * cache may start evicting questions slightly before the total reaches the maximum. Questions above the new
+     * maximum are evicted immediately. The root nameservers are never evicted.
+     *
+     * @param maximumSize Maximum number of questions in the cache, or 0 for no limit.
+     */
+    public void setMaximumSize(int maximumSize) {
+        this.sketch = maximumSize > 0 ? new FrequencySketch(maximumSize) : null;
+        this.maximumSize = maximumSize;
+        if (maximumSize <= 0) return;
+        for (Segment segment : segments) {
+            segment.lock.writeLock().lock();
+            try {
+                while (segment.results.size() > segmentCapacity() && segment.evict(sketch))
+                    evictions.increment();
+            } finally {
+                segment.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    private int segmentCapacity() {
+        return (maximumSize + segments.length - 1) / segments.length;
+    }
+
+    /**
+     * Starts, changes or stops the background removal of expired records. The sweeper locks one segment at a time.
+     *
+     * @param seconds Number of seconds between sweeps, or 0 to stop sweeping.
+     */
+    public synchronized void setSweepInterval(int seconds) {
+        if (sweeper != null) sweeper.cancel(false);
+        sweeper = seconds > 0 ? sweeperExecutor.scheduleWithFixedDelay(this::sweep, seconds, seconds, TimeUnit.SECONDS)
+                : null;
+    }
+
+    /**
+     * Removes all expired records (other than those that may still be served as stale records) from the cache, and
+     * the questions left without records.
+     */
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        for (Segment segment : segments) {
+            segment.lock.writeLock().lock();
+            try {
+                expirations.add(segment.purge(now, staleMillis));
+            } finally {
+                segment.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of questions currently in the cache, including questions with only expired records that
+     * have not been removed yet.
+     *
+     * @return The number of questions in the cache.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            segment.lock.readLock().lock();
+            try {
+                size += segment.results.size();
+            } finally {
+                segment.lock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns a snapshot of the size of the cache and of the counters kept since it was created.
+     *
+     * @return The statistics of the cache.
+     */
+    public Statistics getStatistics() {
+        return new Statistics(size(), maximumSize, hits.sum(), misses.sum(), evictions.sum(), expirations.sum());
+    }
+
+    /**
+     * Saves all questions with valid records or negative results to a snapshot file. The file is written under a
+     * temporary name and then renamed, so an existing snapshot is only replaced by a complete one. Each segment is
+     * copied under its read lock, so the cache can be used while the snapshot is written.
+     *
+     * @param file Path of the snapshot file.
+     * @return The number of questions saved.
+     * @throws IOException if the file could not be written.
+     */
+    public int saveSnapshot(Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        long now = System.currentTimeMillis();
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                     Channels.newOutputStream(channel), 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeShort(SNAPSHOT_VERSION);
+            out.writeShort(0);
+            out.writeLong(now);
+            out.writeInt(0); // Number of questions, filled in once known
+
+            for (Segment segment : segments) {
+                Map<DNSQuestion, Entry> copy = new LinkedHashMap<>();
+                segment.lock.readLock().lock();
+                try {
+                    segment.results.forEach((question, entry) -> {
+                        Entry valid = new Entry(false);
+                        if (entry.negativeExpiration > now) {
+                            valid.negativeExpiration = entry.negativeExpiration;
+                            valid.negativeRcode = entry.negativeRcode;
+                            valid.negativeSoa = entry.negativeSoa;
+                        }
+                        for (ResourceRecord record : entry.records.keySet())
+                            if (record.getExpirationMillis() > now) valid.records.put(record, record);
+                        if (!valid.isEmpty(now)) copy.put(question, valid);
+                    });
+                } finally {
+                    segment.lock.readLock().unlock();
+                }
+                for (Map.Entry<DNSQuestion, Entry> entry : copy.entrySet())
+                    writeSnapshotEntry(out, entry.getKey(), entry.getValue());
+                count += copy.size();
+            }
+            out.flush();
+            channel.write(ByteBuffer.allocate(4).putInt(0, count), 16);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    private static void writeSnapshotEntry(DataOutputStream out, DNSQuestion question, Entry entry) throws IOException {
+        writeSnapshotBytes(out, question.getHostName().getBytes(StandardCharsets.UTF_8));
+        out.writeShort(question.getRecordType().getCode());
+        out.writeShort(question.getRecordClass().getCode());
+        out.writeLong(entry.negativeExpiration);
+        out.writeByte(entry.negativeRcode);
+        out.writeByte(entry.negativeSoa != null ? 1 : 0);
+        if (entry.negativeSoa != null) {
+            writeSnapshotBytes(out, entry.negativeSoa.getHostName().getBytes(StandardCharsets.UTF_8));
+            writeSnapshotBytes(out, entry.negativeSoa.getTextResult().getBytes(StandardCharsets.UTF_8));
+        }
+        out.writeInt(entry.records.size());
+        for (ResourceRecord record : entry.records.keySet()) {
+            out.writeLong(record.getExpirationMillis());
+            if (record.getInetResult() != null) {
+                out.writeByte(SNAPSHOT_ADDRESS);
+                writeSnapshotBytes(out, record.getInetResult().getAddress());
+            } else {
+                out.writeByte(SNAPSHOT_TEXT);
+                writeSnapshotBytes(out, record.getTextResult().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static void writeSnapshotBytes(DataOutputStream out, byte[] data) throws IOException {
+        out.writeShort(data.length);
+        out.write(data);
+    }
+
+    /**
+     * Loads the questions saved in a snapshot file into the cache, in addition to the records already cached. The
+     * file is mapped into memory and decoded in place. Records and negative results that have expired since the
+     * snapshot was saved are dropped. Questions of types or classes not supported by the application are skipped.
+     *
+     * @param file Path of the snapshot file.
+     * @return The number of records loaded.
+     * @throws IOException if the file could not be read, or is not a valid snapshot.
+     */
+    public int loadSnapshot(Path file) throws IOException {
+        long now = System.currentTimeMillis();
+        int loaded = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Snapshot too large");
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                if (buffer.getInt() != SNAPSHOT_MAGIC || buffer.getShort() != SNAPSHOT_VERSION)
+                    throw new IOException("Not a cache snapshot, or unsupported version");
+                buffer.getShort();
+                buffer.getLong();
+                int questions = buffer.getInt();
+                for (int q = 0; q < questions; q++) {
+                    String hostName = readSnapshotString(buffer);
+                    RecordType type = RecordType.getByCode(buffer.getShort() & 0xffff);
+                    RecordClass recordClass = RecordClass.getByCode(buffer.getShort() & 0xffff);
+                    DNSQuestion question = new DNSQuestion(hostName, type, recordClass);
+                    boolean supported = type != RecordType.OTHER && recordClass != RecordClass.OTHER;
+                    long negativeExpiration = buffer.getLong();
+                    int negativeRcode = buffer.get();
+                    ResourceRecord negativeSoa = null;
+                    if (buffer.get() != 0) {
+                        DNSQuestion soaQuestion = new DNSQuestion(readSnapshotString(buffer), RecordType.SOA,
+                                recordClass);
+                        negativeSoa = new ResourceRecord(soaQuestion, negativeExpiration, readSnapshotString(buffer),
+                                null);
+                    }
+                    if (supported && negativeExpiration > now)
+                        addNegativeResultUntil(question, negativeExpiration, negativeRcode, negativeSoa);
+
+                    int records = buffer.getInt();
+                    for (int r = 0; r < records; r++) {
+                        long expiration = buffer.getLong();
+                        byte kind = buffer.get();
+                        ResourceRecord record;
+                        if (kind == SNAPSHOT_ADDRESS) {
+                            byte[] address = new byte[buffer.getShort() & 0xffff];
+                            buffer.get(address);
+                            InetAddress inetResult = InetAddress.getByAddress(address);
+                            record = new ResourceRecord(question, expiration, inetResult.getHostAddress(), inetResult);
+                        } else if (kind == SNAPSHOT_TEXT) {
+                            record = new ResourceRecord(question, expiration, readSnapshotString(buffer), null);
+                        } else {
+                            throw new IOException("Invalid record kind " + kind);
+                        }
+                        if (supported && expiration > now) {
+                            addResult(record);
+                            loaded++;
+                        }
+                    }
+                }
+            } catch (BufferUnderflowException | UnknownHostException e) {
+                throw new IOException("Truncated or corrupted snapshot", e);
+            }
+        }
+        return loaded;
+    }
+
+    private static String readSnapshotString(ByteBuffer buffer) {
+        byte[] data = new byte[buffer.getShort() & 0xffff];
+        buffer.get(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Replaces the list of root nameservers (root hints) used by this cache, and resets the cache. Mostly useful for
+     * testing the resolver against a local set of servers (see DNSZoneServer).
+     *
+     * @param addresses IP addresses (in dotted form) of the new root nameservers. If null, the default (Internet)
+     *                  root nameservers are used.
+     */
+    public void setRootNameServers(Collection<String> addresses) {
+        this.rootNameServersMap = rootNameServerRecords(addresses == null ? defaultRootNameServers : addresses);
+        reset();
+    }
+
+    private static Set<ResourceRecord> rootNameServerRecords(Collection<String> addresses) {
+        return addresses.stream()
+                .map(s -> new ResourceRecord(rootQuestion, Integer.MAX_VALUE, s))
+                .collect(Collectors.toSet());
+    }
+
     /**
      * Resets the cache to its initial value, containing only root nameservers.
      */
     public void reset() {
-        this.cachedResults.clear();
-        this.cachedResults.put(rootQuestion, rootNameServersMap);
+        for (Segment segment : segments) {
+            segment.lock.writeLock().lock();
+            try {
+                segment.results.clear();
+            } finally {
+                segment.lock.writeLock().unlock();
+            }
+        }
+        rootNameServersMap.forEach(this::addResult);
     }
 
     /**
@@ -58,18 +467,47 @@ public class DNSCache {
      * @return A potentially empty set of resources associated to the query.
      */
     public List<ResourceRecord> getCachedResults(DNSQuestion question, boolean includeCname) {
+        return getCachedResults(question, includeCname, false);
+    }
+
+    /**
+     * Returns the cached results for a lookup made on behalf of a client, as opposed to an internal lookup made while
+     * resolving a question. Works like getCachedResults, but the lookup is counted towards the popularity of the
+     * question, may return stale records, and may trigger a background refresh of the question (see setPrefetch and
+     * setServeStale).
+     *
+     * @param question     DNS query (host name/type/class) for the results to be obtained.
+     * @param includeCname Set to true to include records for the same FQDN with a CNAME record type.
+     * @return A potentially empty set of resources associated to the query.
+     */
+    public List<ResourceRecord> getClientResults(DNSQuestion question, boolean includeCname) {
+        return getCachedResults(question, includeCname, true);
+    }
+
+    private List<ResourceRecord> getCachedResults(DNSQuestion question, boolean includeCname, boolean client) {
         List<ResourceRecord> returningList = new ArrayList<>();
-        Set<ResourceRecord> results = cachedResults.get(question);
-        if (results != null) {
-            results.removeIf(ResourceRecord::isExpired);
-            returningList.addAll(results);
-        }
+        long now = System.currentTimeMillis();
+        FrequencySketch sketch = this.sketch;
+        if (sketch != null) sketch.increment(question);
+        boolean serveStale = client && refresher != null && staleMillis > 0;
+        Entry entry = segmentFor(question).copyResults(question, returningList, now, staleMillis, serveStale);
 
         if (includeCname && question.getRecordType() != RecordType.CNAME) {
-            results = cachedResults.get(new DNSQuestion(question.getHostName(), RecordType.CNAME, question.getRecordClass()));
-            if (results != null) {
-                results.removeIf(ResourceRecord::isExpired);
-                returningList.addAll(results);
+            DNSQuestion cnameQuestion = question.withType(RecordType.CNAME);
+            Entry cnameEntry = segmentFor(cnameQuestion).copyResults(cnameQuestion, returningList, now, staleMillis,
+                    serveStale && returningList.isEmpty());
+            if (entry == null) entry = cnameEntry;
+        }
+
+        if (client) {
+            (returningList.isEmpty() ? misses : hits).increment();
+            if (entry != null && !returningList.isEmpty()) {
+                long firstExpiration = Long.MAX_VALUE;
+                for (ResourceRecord record : returningList)
+                    firstExpiration = Math.min(firstExpiration, record.getExpirationMillis());
+                countHit(question, entry, firstExpiration, now);
+            } else if (entry != null) {
+                entry.hits.incrementAndGet();
             }
         }
 
@@ -77,6 +515,127 @@ public class DNSCache {
         return returningList;
     }
 
+    /**
+     * Returns the valid records of a question encoded in wire format, for a lookup made on behalf of a client. If the
+     * question has no records, returns its CNAME records instead, as getClientResults(question, true) would. The
+     * lookup is counted like a client lookup (and may trigger a prefetch), but only if it succeeds: a lookup that
+     * returns null is expected to be repeated with getClientResults, which counts the miss.
+     *
+     * @param question DNS query (host name/type/class) for the results to be obtained.
+     * @return The encoded records, or null if there are none, or if any of them has expired (stale records are only
+     * returned by getClientResults).
+     */
+    WireRRset getWireRRset(DNSQuestion question) {
+        long now = System.currentTimeMillis();
+        Entry entry = segmentFor(question).wireResults(question, now);
+        if (entry == null && question.getRecordType() != RecordType.CNAME) {
+            DNSQuestion cnameQuestion = question.withType(RecordType.CNAME);
+            entry = segmentFor(cnameQuestion).wireResults(cnameQuestion, now);
+        }
+        // The encoding may have been dropped by a concurrent update
+        WireRRset wire = entry != null ? entry.wire : null;
+        if (wire == null || wire.getFirstExpiration() <= now) return null;
+
+        FrequencySketch sketch = this.sketch;
+        if (sketch != null) sketch.increment(question);
+        hits.increment();
+        countHit(question, entry, wire.getFirstExpiration(), now);
+        return wire;
+    }
+
+    /**
+     * Counts a client lookup for a question that found results, and starts a refresh of the question if its results
+     * are stale, or if it is popular and about to expire.
+     *
+     * @param firstExpiration Expiration time of the first result to expire.
+     */
+    private void countHit(DNSQuestion question, Entry entry, long firstExpiration, long now) {
+        int hits = entry.hits.incrementAndGet();
+        Function<DNSQuestion, CompletableFuture<?>> refresher = this.refresher;
+        if (refresher == null) return;
+
+        boolean stale = firstExpiration <= now;
+        boolean prefetch = prefetchMinHits > 0 && hits >= prefetchMinHits &&
+                firstExpiration - now <= prefetchWindowMillis;
+
+        if ((stale || prefetch) && entry.refreshing.compareAndSet(false, true)) {
+            try {
+                refresher.apply(question).whenComplete((ignored, error) -> {
+                    entry.hits.set(0);
+                    entry.refreshing.set(false);
+                });
+            } catch (RuntimeException e) {
+                entry.refreshing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Caches the flattened CNAME chain of a question: the CNAME records that lead from the name of the question to its
+     * canonical name, in order, followed by the records of the canonical name that answer the question (as returned by
+     * DNSLookupService.getResultsFollowingCNames). The records themselves must also be added with addResult. The chain
+     * is kept until the first of its records expires, and is dropped earlier if records (or a negative result) are
+     * added for the question itself.
+     *
+     * @param question DNS query (host name/type/class) answered by the chain.
+     * @param chain    The CNAME records and final records of the chain.
+     */
+    public void addCNameChain(DNSQuestion question, List<ResourceRecord> chain) {
+        long expiration = Long.MAX_VALUE;
+        for (ResourceRecord record : chain)
+            expiration = Math.min(expiration, record.getExpirationMillis());
+        if (chain.isEmpty() || expiration <= System.currentTimeMillis()) return;
+
+        Segment segment = segmentFor(question);
+        segment.lock.writeLock().lock();
+        try {
+            Entry entry = segment.results.get(question);
+            if (entry == null) entry = newEntry(segment, question);
+            entry.chain = Collections.unmodifiableList(new ArrayList<>(chain));
+            entry.chainExpiration = expiration;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the flattened CNAME chain cached for a question (see addCNameChain), for a lookup made on behalf of a
+     * client. The final records of the chain are returned in random order, after the CNAME records. A lookup that
+     * finds a chain is counted like a client lookup (and may trigger a prefetch); a lookup that does not is expected to
+     * be followed by getClientResults, which counts the miss.
+     *
+     * @param question DNS query (host name/type/class) for the chain to be obtained.
+     * @return A new list with the records of the chain, or null if no valid chain is cached for the question.
+     */
+    public List<ResourceRecord> getCNameChain(DNSQuestion question) {
+        long now = System.currentTimeMillis();
+        Segment segment = segmentFor(question);
+        Entry entry;
+        List<ResourceRecord> chain;
+        long expiration;
+        segment.lock.readLock().lock();
+        try {
+            entry = segment.results.get(question);
+            if (entry == null || entry.chain == null || entry.chainExpiration <= now) return null;
+            entry.referenced = true;
+            chain = new ArrayList<>(entry.chain);
+            expiration = entry.chainExpiration;
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+
+        int last = chain.size() - 1;
+        while (last >= 0 && chain.get(last).getRecordType() != RecordType.CNAME)
+            last--;
+        Collections.shuffle(chain.subList(last + 1, chain.size()));
+
+        FrequencySketch sketch = this.sketch;
+        if (sketch != null) sketch.increment(question);
+        hits.increment();
+        countHit(question, entry, expiration, now);
+        return chain;
+    }
+
     /**
      * Adds a specific resource record to the DNS cache. If the cache already has an equivalent resource record, the
      * existing record is updated if the new one expires after the existing record.
@@ -87,28 +646,136 @@ public class DNSCache {
 
         if (record.isExpired()) return;
 
-        Set<ResourceRecord> results = cachedResults.computeIfAbsent(record.getQuestion(), q -> new HashSet<>());
+        Segment segment = segmentFor(record.getQuestion());
+        segment.lock.writeLock().lock();
+        try {
+            Entry entry = segment.results.get(record.getQuestion());
+            if (entry == null) entry = newEntry(segment, record.getQuestion());
+
+            // Find a record for the same question containing the same result
+            ResourceRecord oldRecord = entry.records.putIfAbsent(record, record);
+            if (oldRecord != null)
+                oldRecord.update(record);
+            entry.negativeExpiration = 0;
+            entry.wire = null;
+            entry.chain = null;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Records that a question has no results (the name does not exist, or has no records of the requested type), as
+     * described in RFC 2308. The negative result is dropped when it expires, or when a record for the question is
+     * added to the cache.
+     *
+     * @param question DNS query (host name/type/class) known to have no results.
+     * @param ttl      Number of seconds the negative result may be cached for, usually the SOA minimum TTL.
+     */
+    public void addNegativeResult(DNSQuestion question, long ttl) {
+        addNegativeResult(question, ttl, 0, null);
+    }
+
+    /**
+     * Records that a question has no results, as in addNegativeResult(DNSQuestion, long), along with the response
+     * code and the SOA record of the negative answer, so that the same answer can be given to clients (see
+     * DNSResolverServer). The SOA record is kept with its TTL reduced to that of the negative result, as required
+     * in negative answers (RFC 2308, section 3).
+     *
+     * @param question DNS query (host name/type/class) known to have no results.
+     * @param ttl      Number of seconds the negative result may be cached for, usually the SOA minimum TTL.
+     * @param rcode    Response code of the negative answer: 3 (name error) if the name does not exist, or 0 if it
+     *                 has no records of the requested type.
+     * @param soa      SOA record of the zone that gave the negative answer, or null if unknown.
+     */
+    public void addNegativeResult(DNSQuestion question, long ttl, int rcode, ResourceRecord soa) {
+        if (ttl <= 0) return;
+        addNegativeResultUntil(question, System.currentTimeMillis() + ttl * 1000, rcode, soa);
+    }
 
-        // Find a record for the same question containing the same result
-        ResourceRecord oldRecord = results.stream().filter(record::equals).findFirst().orElse(null);
-        if (oldRecord == null)
-            results.add(record);
-        else
-            oldRecord.update(record);
+    /**
+     * Records a negative result that expires at a specific time (in milliseconds since the epoch), unless the question
+     * already has one that expires later.
+     */
+    private void addNegativeResultUntil(DNSQuestion question, long expiration, int rcode, ResourceRecord soa) {
+        Segment segment = segmentFor(question);
+        segment.lock.writeLock().lock();
+        try {
+            Entry entry = segment.results.get(question);
+            if (entry == null) entry = newEntry(segment, question);
+            if (expiration >= entry.negativeExpiration) {
+                entry.negativeExpiration = expiration;
+                entry.negativeRcode = rcode;
+                entry.negativeSoa = soa == null ? null
+                        : new ResourceRecord(soa.getQuestion(), expiration, soa.getTextResult(), null);
+            }
+            entry.chain = null;
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns true if the cache has a valid negative result for a question, that is, if the question is known to have
+     * no results (see addNegativeResult).
+     *
+     * @param question DNS query (host name/type/class) to be checked.
+     * @return true if the question is known to have no results, false otherwise.
+     */
+    public boolean hasNegativeResult(DNSQuestion question) {
+        Segment segment = segmentFor(question);
+        segment.lock.readLock().lock();
+        try {
+            Entry entry = segment.results.get(question);
+            return entry != null && entry.negativeExpiration > System.currentTimeMillis();
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the valid negative result cached for a question, if any (see addNegativeResult).
+     *
+     * @param question DNS query (host name/type/class) to be checked.
+     * @return The negative result, or null if the question is not known to have no results.
+     */
+    public NegativeResult getNegativeResult(DNSQuestion question) {
+        Segment segment = segmentFor(question);
+        segment.lock.readLock().lock();
+        try {
+            Entry entry = segment.results.get(question);
+            if (entry == null || entry.negativeExpiration <= System.currentTimeMillis()) return null;
+            return new NegativeResult(entry.negativeRcode, entry.negativeSoa);
+        } finally {
+            segment.lock.readLock().unlock();
+        }
     }
 
     /**
      * Perform a specific action for each query and its set of cached records. This action can be specified using a
-     * lambda expression or method name. Expired records are removed before the action is performed.
+     * lambda expression or method name. Expired records are removed before the action is performed. Questions are
+     * visited in order, and each action receives a snapshot of the records, so it may safely use the cache itself.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachQuestion(BiConsumer<DNSQuestion, Collection<ResourceRecord>> consumer) {
-        cachedResults.forEach((question, records) -> {
-            records.removeIf(ResourceRecord::isExpired);
-            if (!records.isEmpty())
-                consumer.accept(question, records);
-        });
+        SortedMap<DNSQuestion, Collection<ResourceRecord>> snapshot = new TreeMap<>();
+        long now = System.currentTimeMillis();
+        for (Segment segment : segments) {
+            segment.lock.writeLock().lock();
+            try {
+                expirations.add(segment.purge(now, staleMillis));
+                segment.results.forEach((question, entry) -> {
+                    List<ResourceRecord> valid = new ArrayList<>();
+                    for (ResourceRecord record : entry.records.keySet())
+                        if (record.getExpirationMillis() > now) valid.add(record);
+                    if (!valid.isEmpty()) snapshot.put(question, valid);
+                });
+            } finally {
+                segment.lock.writeLock().unlock();
+            }
+        }
+        snapshot.forEach(consumer);
     }
 
     /**
@@ -121,4 +788,276 @@ public class DNSCache {
         forEachQuestion((question, records) -> records.forEach(record -> consumer.accept(question, record)));
     }
 
+    /**
+     * Adds an empty entry for a question to a segment, first evicting other questions if the segment is full. Must be
+     * called with the write lock of the segment held.
+     */
+    private Entry newEntry(Segment segment, DNSQuestion question) {
+        if (maximumSize > 0) {
+            int capacity = segmentCapacity();
+            while (segment.results.size() >= capacity && segment.evict(sketch))
+                evictions.increment();
+        }
+        Entry entry = new Entry(question.equals(rootQuestion));
+        segment.results.put(question, entry);
+        return entry;
+    }
+
+    private Segment segmentFor(DNSQuestion question) {
+        int h = question.hashCode();
+        return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
+    /**
+     * A cached negative answer: its response code (3 if the name does not exist, 0 if it has no records of the
+     * requested type), and the SOA record of the zone (or null if unknown), with the TTL of the negative result.
+     */
+    public static class NegativeResult {
+        private final int rcode;
+        private final ResourceRecord soa;
+
+        private NegativeResult(int rcode, ResourceRecord soa) {
+            this.rcode = rcode;
+            this.soa = soa;
+        }
+
+        public int getRcode() {
+            return rcode;
+        }
+
+        public ResourceRecord getSOA() {
+            return soa;
+        }
+    }
+
+    /**
+     * A snapshot of the size and counters of the cache. Hits and misses only count lookups made on behalf of clients
+     * (getClientResults).
+     */
+    public static class Statistics {
+        private final int size;
+        private final int maximumSize;
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long expirations;
+
+        private Statistics(int size, int maximumSize, long hits, long misses, long evictions, long expirations) {
+            this.size = size;
+            this.maximumSize = maximumSize;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.expirations = expirations;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public int getMaximumSize() {
+            return maximumSize;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public double getHitRatio() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getExpirations() {
+            return expirations;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d questions cached (maximum %s), hit ratio %.1f%% (%d hits, %d misses), " +
+                            "%d evicted, %d expired",
+                    size, maximumSize > 0 ? Integer.toString(maximumSize) : "unlimited", 100 * getHitRatio(),
+                    hits, misses, evictions, expirations);
+        }
+    }
+
+    /**
+     * The cached records for a question, its negative result (if any), its flattened CNAME chain (if any), and the
+     * state used for prefetching. Records are kept in a map from each record to itself, so that an equivalent record
+     * can be found and updated in constant time. The expiration of the negative result is 0 if there is none.
+     */
+    private static class Entry {
+        private final Map<ResourceRecord, ResourceRecord> records = new HashMap<>();
+        private final boolean pinned;
+        private long negativeExpiration = 0;
+        private int negativeRcode = 0;
+        private ResourceRecord negativeSoa = null;
+        private volatile WireRRset wire = null;
+        private List<ResourceRecord> chain = null;
+        private long chainExpiration = 0;
+        private volatile boolean referenced = false;
+        private final AtomicInteger hits = new AtomicInteger();
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(boolean pinned) {
+            this.pinned = pinned;
+        }
+
+        private boolean isEmpty(long now) {
+            return records.isEmpty() && negativeExpiration <= now && (chain == null || chainExpiration <= now);
+        }
+    }
+
+    /**
+     * A portion of the cache guarded by its own lock. Questions are kept in insertion order, which is the order of the
+     * CLOCK used for eviction.
+     */
+    private static class Segment {
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final Map<DNSQuestion, Entry> results = new LinkedHashMap<>();
+
+        /**
+         * Appends all non-expired records cached for the question to the list. If there are none and serveStale is
+         * true, appends records that expired less than staleMillis ago instead. Records that expired longer ago are
+         * removed from the segment afterwards, under the write lock.
+         *
+         * @return The entry for the question, or null if nothing is cached for it.
+         */
+        private Entry copyResults(DNSQuestion question, List<ResourceRecord> list, long now, long staleMillis,
+                                  boolean serveStale) {
+            boolean foundExpired = false;
+            Entry entry;
+            lock.readLock().lock();
+            try {
+                entry = results.get(question);
+                if (entry == null) return null;
+                entry.referenced = true;
+                int start = list.size();
+                for (ResourceRecord record : entry.records.keySet()) {
+                    long expiration = record.getExpirationMillis();
+                    if (expiration > now)
+                        list.add(record);
+                    else if (expiration + staleMillis <= now)
+                        foundExpired = true;
+                }
+                if (serveStale && list.size() == start)
+                    for (ResourceRecord record : entry.records.keySet())
+                        if (record.getExpirationMillis() + staleMillis > now)
+                            list.add(record);
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (foundExpired) {
+                lock.writeLock().lock();
+                try {
+                    Entry current = results.get(question);
+                    if (current != null) {
+                        if (current.records.values().removeIf(r -> r.getExpirationMillis() + staleMillis <= now))
+                            current.wire = null;
+                        if (current.isEmpty(now)) results.remove(question);
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            return entry;
+        }
+
+        /**
+         * Finds the entry of a question whose records are all valid, and encodes its records in wire format (see
+         * WireRRset) unless they are already encoded. The encoding is stored in the entry under the read lock, which
+         * is safe, since the records can only change under the write lock, which also drops the encoding.
+         *
+         * @return The entry, with an encoding valid at the given time, or null if the question has no records, or
+         * some of its records have expired.
+         */
+        private Entry wireResults(DNSQuestion question, long now) {
+            lock.readLock().lock();
+            try {
+                Entry entry = results.get(question);
+                if (entry == null) return null;
+                WireRRset wire = entry.wire;
+                if (wire == null || wire.getFirstExpiration() <= now) {
+                    if (entry.records.isEmpty()) return null;
+                    List<ResourceRecord> records = new ArrayList<>(entry.records.size());
+                    for (ResourceRecord record : entry.records.keySet()) {
+                        if (record.getExpirationMillis() <= now) return null;
+                        records.add(record);
+                    }
+                    entry.wire = WireRRset.encode(records);
+                }
+                entry.referenced = true;
+                return entry;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Removes all records that expired more than staleMillis ago. Must be called with the write lock held.
+         *
+         * @return The number of questions removed because they have no records left.
+         */
+        private int purge(long now, long staleMillis) {
+            int size = results.size();
+            results.values().removeIf(entry -> {
+                if (entry.records.values().removeIf(r -> r.getExpirationMillis() + staleMillis <= now))
+                    entry.wire = null;
+                if (entry.chainExpiration <= now) entry.chain = null;
+                return entry.isEmpty(now) && !entry.pinned;
+            });
+            return size - results.size();
+        }
+
+        /**
+         * Removes one question from the segment. The CLOCK hand starts at the oldest question: questions that were
+         * looked up since the hand last passed get a second chance and are moved to the end, and among the first few
+         * questions that were not, the one with the lowest estimated frequency is removed. Only a few questions get a
+         * second chance, after which recently used questions are candidates too, so that an eviction does not walk
+         * the whole segment when every question was looked up recently. Must be called with the write lock held.
+         *
+         * @param sketch Frequency estimates of recently used questions.
+         * @return false if no question could be removed.
+         */
+        private boolean evict(FrequencySketch sketch) {
+            for (int pass = 0; pass < 2; pass++) {
+                List<Map.Entry<DNSQuestion, Entry>> secondChance = new ArrayList<>();
+                DNSQuestion victim = null;
+                int victimFrequency = Integer.MAX_VALUE;
+                int candidates = 0;
+                Iterator<Map.Entry<DNSQuestion, Entry>> iterator = results.entrySet().iterator();
+                while (iterator.hasNext() && candidates < EVICTION_CANDIDATES) {
+                    Map.Entry<DNSQuestion, Entry> current = iterator.next();
+                    Entry entry = current.getValue();
+                    if (entry.pinned) continue;
+                    if (entry.referenced && secondChance.size() < EVICTION_SECOND_CHANCES) {
+                        entry.referenced = false;
+                        iterator.remove();
+                        secondChance.add(current);
+                        continue;
+                    }
+                    candidates++;
+                    int frequency = sketch == null ? 0 : sketch.frequency(current.getKey());
+                    if (frequency < victimFrequency) {
+                        victim = current.getKey();
+                        victimFrequency = frequency;
+                    }
+                }
+                for (Map.Entry<DNSQuestion, Entry> moved : secondChance)
+                    results.put(moved.getKey(), moved.getValue());
+                if (victim != null) {
+                    results.remove(victim);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
 }
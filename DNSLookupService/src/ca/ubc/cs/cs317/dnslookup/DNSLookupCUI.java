@@ -1,7 +1,10 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Console;
+import java.io.IOException;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
 
 public class DNSLookupCUI implements DNSVerbosePrinter {
@@ -10,7 +13,9 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
 
     private static boolean verboseTracing = false;
     private static DNSLookupService lookupService;
+    private static DNSAsyncLookupService asyncLookupService;
     private static final DNSCache cache = DNSCache.getInstance();
+    private static final String QUERY_TYPES = "A, AAAA, NS, MX, CNAME, SOA, PTR, TXT, SRV";
 
     /**
      * Main function, called when program is first invoked.
@@ -20,15 +25,23 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
     public static void main(String[] args) {
 
         String argNameServer = null;
+        String argCacheFile = null;
 
+        if (args.length >= 2 && args[0].equals("-c")) {
+            argCacheFile = args[1];
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
         if (args.length == 1) {
             argNameServer = args[0];
         } else if (args.length > 1) {
             System.err.println("Invalid call. Usage:");
-            System.err.println("\tjava -jar DNSLookupService.jar [nameServer]");
-            System.err.println("where nameServer is the IP address (in dotted form) of the DNS server (potentially a root nameserver) to start the search at.");
+            System.err.println("\tjava -jar DNSLookupService.jar [-c cacheFile] [nameServer]");
+            System.err.println("where nameServer is the IP address (in dotted form) of the DNS server (potentially a root nameserver) to start the search at,");
+            System.err.println("and cacheFile is a cache snapshot loaded on startup (if it exists) and saved on exit.");
             System.exit(1);
         }
+        if (argCacheFile != null && Files.exists(Paths.get(argCacheFile)))
+            loadCache(argCacheFile);
 
         try {
             lookupService = new DNSLookupService(argNameServer, new DNSLookupCUI());
@@ -70,17 +83,23 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
                 break;
             else if (commandArgs[0].equalsIgnoreCase("server")) {
                 // SERVER: Change root nameserver
-                if (commandArgs.length == 2) {
+                if (commandArgs.length == 2 || commandArgs.length == 3) {
                     try {
                         lookupService.setNameServer(commandArgs[1]);
+                        if (commandArgs.length == 3)
+                            lookupService.setPort(Integer.parseInt(commandArgs[2]));
                     } catch (UnknownHostException e) {
                         System.err.println("Invalid nameserver (" + e.getMessage() + ").");
+                    } catch (NumberFormatException e) {
+                        System.err.println("Invalid port (" + e.getMessage() + ").");
                     }
-                    System.out.println("Nameserver is now: " + lookupService.getNameServer());
+                    System.out.println("Nameserver is now: " + lookupService.getNameServer() +
+                            (lookupService.getPort() != DNSLookupService.DEFAULT_DNS_PORT ?
+                                    " (port " + lookupService.getPort() + ")" : ""));
                 } else {
                     System.out.println("Invalid call. Format:\n" +
-                            "\tserver <IP> (for an explicit nameserver)\n" +
-                            "\tserver root (for a random root nameserver)");
+                            "\tserver <IP> [port] (for an explicit nameserver)\n" +
+                            "\tserver root [port] (for a random root nameserver)");
                 }
             } else if (commandArgs[0].equalsIgnoreCase("verbose")) {
                 // VERBOSE: Turn verbose setting on or off
@@ -105,9 +124,9 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
                     type = RecordType.A;
                 else if (commandArgs.length == 3)
                     try {
-                        type = RecordType.valueOf(commandArgs[2].toUpperCase());
+                        type = parseQueryType(commandArgs[2]);
                     } catch (IllegalArgumentException ex) {
-                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME");
+                        System.err.println("Invalid query type. Must be one of:\n\t" + QUERY_TYPES);
                         continue;
                     }
                 else {
@@ -115,6 +134,123 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
                     continue;
                 }
                 findAndPrintResults(commandArgs[1], type);
+            } else if (commandArgs[0].equalsIgnoreCase("batch")) {
+                // BATCH: Find and print all results associated to every name in a file.
+                if (commandArgs.length < 2 || commandArgs.length > 3) {
+                    System.err.println("Invalid call. Format:\n\tbatch fileName [parallelism]");
+                    continue;
+                }
+                int parallelism = DNSAsyncLookupService.DEFAULT_BATCH_PARALLELISM;
+                if (commandArgs.length == 3)
+                    try {
+                        parallelism = Integer.parseInt(commandArgs[2]);
+                        if (parallelism < 1) throw new NumberFormatException();
+                    } catch (NumberFormatException ex) {
+                        System.err.println("Invalid parallelism. Must be a positive integer.");
+                        continue;
+                    }
+                findAndPrintBatchResults(commandArgs[1], parallelism);
+            } else if (commandArgs[0].equalsIgnoreCase("race")) {
+                // RACE: Turn racing queries between the nameservers of a delegation on or off
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("on"))
+                    lookupService.setRacing(true);
+                else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off"))
+                    lookupService.setRacing(false);
+                else {
+                    System.err.println("Invalid call. Format:\n\trace on|off");
+                    continue;
+                }
+                if (asyncLookupService != null) asyncLookupService.setRacing(lookupService.isRacing());
+                System.out.println("Nameserver racing is now: " + (lookupService.isRacing() ? "ON" : "OFF"));
+            } else if (commandArgs[0].equalsIgnoreCase("edns")) {
+                // EDNS: Change the UDP payload size advertised to nameservers, or stop using EDNS
+                try {
+                    if (commandArgs.length != 2) throw new IllegalArgumentException();
+                    lookupService.setEdnsBufferSize(commandArgs[1].equalsIgnoreCase("off") ? 0
+                            : Integer.parseInt(commandArgs[1]));
+                } catch (IllegalArgumentException ex) {
+                    System.err.println("Invalid call. Format:\n\tedns bufferSize (512-65535)\n\tedns off");
+                    continue;
+                }
+                if (asyncLookupService != null) asyncLookupService.setEdnsBufferSize(lookupService.getEdnsBufferSize());
+                System.out.println("EDNS is now: " + (lookupService.getEdnsBufferSize() > 0
+                        ? "ON (" + lookupService.getEdnsBufferSize() + " bytes)" : "OFF"));
+            } else if (commandArgs[0].equalsIgnoreCase("prefetch")) {
+                // PREFETCH: Refresh popular names in the background before they expire
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    cache.setPrefetch(0, 0);
+                    System.out.println("Prefetching is now: OFF");
+                    continue;
+                }
+                int minHits, window;
+                try {
+                    if (commandArgs.length != 3) throw new NumberFormatException();
+                    minHits = Integer.parseInt(commandArgs[1]);
+                    window = Integer.parseInt(commandArgs[2]);
+                    if (minHits < 1 || window < 0) throw new NumberFormatException();
+                } catch (NumberFormatException ex) {
+                    System.err.println("Invalid call. Format:\n\tprefetch minHits windowSeconds\n\tprefetch off");
+                    continue;
+                }
+                if (!enableRefresher()) continue;
+                cache.setPrefetch(minHits, window);
+                System.out.println("Prefetching is now: ON (after " + minHits + " hits, " + window + "s before expiration)");
+            } else if (commandArgs[0].equalsIgnoreCase("stale")) {
+                // STALE: Serve expired records while they are refreshed in the background
+                int seconds;
+                try {
+                    if (commandArgs.length != 2) throw new NumberFormatException();
+                    seconds = commandArgs[1].equalsIgnoreCase("off") ? 0 : Integer.parseInt(commandArgs[1]);
+                    if (seconds < 0) throw new NumberFormatException();
+                } catch (NumberFormatException ex) {
+                    System.err.println("Invalid call. Format:\n\tstale seconds\n\tstale off");
+                    continue;
+                }
+                if (seconds > 0 && !enableRefresher()) continue;
+                cache.setServeStale(seconds);
+                System.out.println("Serving stale records is now: " + (seconds > 0 ? "ON (up to " + seconds + "s)" : "OFF"));
+            } else if (commandArgs[0].equalsIgnoreCase("cache")) {
+                // CACHE: Print cache statistics, or change the maximum number of cached questions
+                if (commandArgs.length == 3 && commandArgs[1].equalsIgnoreCase("limit")) {
+                    try {
+                        int limit = commandArgs[2].equalsIgnoreCase("off") ? 0 : Integer.parseInt(commandArgs[2]);
+                        if (limit < 0) throw new NumberFormatException();
+                        cache.setMaximumSize(limit);
+                    } catch (NumberFormatException ex) {
+                        System.err.println("Invalid limit. Must be a non-negative integer or 'off'.");
+                        continue;
+                    }
+                } else if (commandArgs.length != 1) {
+                    System.err.println("Invalid call. Format:\n\tcache\n\tcache limit maxQuestions|off");
+                    continue;
+                }
+                System.out.println(cache.getStatistics());
+            } else if (commandArgs[0].equalsIgnoreCase("save") && commandArgs.length == 2) {
+                // SAVE: Save the contents of the cache to a snapshot file
+                saveCache(commandArgs[1]);
+            } else if (commandArgs[0].equalsIgnoreCase("load") && commandArgs.length == 2) {
+                // LOAD: Add the contents of a snapshot file to the cache
+                loadCache(commandArgs[1]);
+            } else if (commandArgs[0].equalsIgnoreCase("stats")) {
+                // STATS: Print the metrics of the resolver, turn recording on or off, or clear them
+                DNSMetrics metrics = DNSMetrics.getInstance();
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("on"))
+                    metrics.setEnabled(true);
+                else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off"))
+                    metrics.setEnabled(false);
+                else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("reset"))
+                    metrics.reset();
+                else if (commandArgs.length != 1) {
+                    System.err.println("Invalid call. Format:\n\tstats\n\tstats on|off|reset");
+                    continue;
+                }
+                System.out.println(metrics);
+            } else if (commandArgs[0].equalsIgnoreCase("servers")) {
+                // SERVERS: Print the round-trip times measured for each nameserver
+                InfrastructureCache.getInstance().forEachServer((server, timing) ->
+                        System.out.format("       %-30s srtt %8.1f ms  rttvar %8.1f ms  rto %5d ms  failures %.0f\n",
+                                server.getHostAddress(), timing[0], timing[1],
+                                InfrastructureCache.getInstance().getTimeoutMillis(server, 0), timing[2]));
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
                 // DUMP: Print all results still cached
                 cache.forEachQuestion(DNSLookupCUI::printResults);
@@ -124,8 +260,18 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
             } else {
                 System.err.println("Invalid command. Valid commands are:");
                 System.err.println("\tlookup fqdn [type]");
+                System.err.println("\tbatch file [parallelism]");
                 System.err.println("\tverbose on|off");
-                System.err.println("\tserver IP");
+                System.err.println("\tserver IP [port]");
+                System.err.println("\trace on|off");
+                System.err.println("\tedns bufferSize|off");
+                System.err.println("\tprefetch minHits windowSeconds|off");
+                System.err.println("\tstale seconds|off");
+                System.err.println("\tcache [limit maxQuestions|off]");
+                System.err.println("\tsave file");
+                System.err.println("\tload file");
+                System.err.println("\tstats [on|off|reset]");
+                System.err.println("\tservers");
                 System.err.println("\tdump");
                 System.err.println("\treset");
                 System.err.println("\tquit");
@@ -133,7 +279,9 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
 
         } while (true);
 
+        if (argCacheFile != null) saveCache(argCacheFile);
         lookupService.close();
+        if (asyncLookupService != null) asyncLookupService.close();
         System.out.println("Goodbye!");
     }
 
@@ -141,6 +289,21 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
         verboseTracing = onoff;
     }
 
+    /**
+     * Returns the record type named by a command argument (in any case), if it can be used in a query.
+     *
+     * @param name Name of the record type, e.g., "aaaa".
+     * @return The record type.
+     * @throws IllegalArgumentException If there is no such record type, or it is OTHER or OPT, which cannot be
+     *                                  queried.
+     */
+    private static RecordType parseQueryType(String name) {
+        RecordType type = RecordType.valueOf(name.toUpperCase());
+        if (type == RecordType.OTHER || type == RecordType.OPT)
+            throw new IllegalArgumentException("Not a query type: " + name);
+        return type;
+    }
+
     /**
      * Finds all results for a host name and type and prints them on the standard output.
      *
@@ -159,6 +322,106 @@ public class DNSLookupCUI implements DNSVerbosePrinter {
         }
     }
 
+    /**
+     * Finds all results for every host name listed in a file, and prints them on the standard output as they are
+     * found, followed by a summary of the throughput and latency of the lookups. Each non-empty line of the file
+     * contains a host name, optionally followed by a record type (A by default). Anything after a '#' is ignored.
+     *
+     * @param fileName    Name of the file containing the list of host names.
+     * @param parallelism Maximum number of lookups in progress at the same time.
+     */
+    private static void findAndPrintBatchResults(String fileName, int parallelism) {
+
+        List<DNSQuestion> questions = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(Paths.get(fileName))) {
+                String[] fields = line.split("#", 2)[0].trim().split("\\s+");
+                if (fields[0].isEmpty()) continue;
+                RecordType type = fields.length > 1 ? parseQueryType(fields[1]) : RecordType.A;
+                questions.add(new DNSQuestion(fields[0], type, RecordClass.IN));
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read file (" + e.getMessage() + ").");
+            return;
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid query type in file. Must be one of:\n\t" + QUERY_TYPES);
+            return;
+        }
+
+        try {
+            startAsyncLookupService();
+            DNSAsyncLookupService.BatchStatistics statistics =
+                    asyncLookupService.resolveAll(questions, parallelism, DNSLookupCUI::printResults);
+            System.out.println(statistics);
+        } catch (IOException e) {
+            System.err.println("Could not start batch lookup (" + e.getMessage() + ").");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Saves the contents of the cache to a snapshot file.
+     *
+     * @param fileName Name of the snapshot file.
+     */
+    private static void saveCache(String fileName) {
+        try {
+            int questions = cache.saveSnapshot(Paths.get(fileName));
+            System.out.println("Saved " + questions + " questions to " + fileName);
+        } catch (IOException e) {
+            System.err.println("Could not save cache (" + e.getMessage() + ").");
+        }
+    }
+
+    /**
+     * Adds the contents of a snapshot file to the cache, and prints how long it took.
+     *
+     * @param fileName Name of the snapshot file.
+     */
+    private static void loadCache(String fileName) {
+        try {
+            long start = System.nanoTime();
+            int records = cache.loadSnapshot(Paths.get(fileName));
+            System.out.printf("Loaded %d records from %s in %.1f ms\n", records, fileName,
+                    (System.nanoTime() - start) / 1e6);
+        } catch (IOException e) {
+            System.err.println("Could not load cache (" + e.getMessage() + ").");
+        }
+    }
+
+    /**
+     * Creates the asynchronous lookup service, used for batch lookups and background refreshes, if it does not exist
+     * yet, and points it at the same nameserver as the interactive lookup service.
+     *
+     * @throws IOException if the service could not be created.
+     */
+    private static void startAsyncLookupService() throws IOException {
+        if (asyncLookupService == null)
+            asyncLookupService = new DNSAsyncLookupService(lookupService.getNameServer(), new DNSLookupCUI());
+        else
+            asyncLookupService.setNameServer(lookupService.getNameServer());
+        asyncLookupService.setPort(lookupService.getPort());
+        asyncLookupService.setRacing(lookupService.isRacing());
+        asyncLookupService.setEdnsBufferSize(lookupService.getEdnsBufferSize());
+    }
+
+    /**
+     * Makes the cache refresh questions in the background using the asynchronous lookup service.
+     *
+     * @return true if the refresher is set, or false if the asynchronous lookup service could not be created.
+     */
+    private static boolean enableRefresher() {
+        try {
+            startAsyncLookupService();
+        } catch (IOException e) {
+            System.err.println("Could not start background lookups (" + e.getMessage() + ").");
+            return false;
+        }
+        cache.setRefresher(asyncLookupService::refresh);
+        return true;
+    }
+
     /**
      * If verbose tracing is on, prints a specific query before it is sent to the server. If verbose tracing is off,
      * does nothing.
@@ -5,21 +5,59 @@ import java.net.*;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.*;
-import java.util.stream.IntStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import static ca.ubc.cs.cs317.dnslookup.RecordType.A;
+import static ca.ubc.cs.cs317.dnslookup.RecordType.AAAA;
 
 public class DNSLookupService {
     public static final int DEFAULT_DNS_PORT = 53;
     private static final int MAX_INDIRECTION_LEVEL_NS = 10;
     private static final int MAX_QUERY_ATTEMPTS = 3;
     protected static final int SO_TIMEOUT = 5000;
+    static final int MAX_RACING_SERVERS = 8;
+    public static final int DEFAULT_EDNS_BUFFER_SIZE = 1232;
+    static final int MAX_GLUE_LOOKUPS = 3;
+    static final int MAX_GLUE_DEPTH = 3;
+    static final boolean IPV6_AVAILABLE = hasGlobalIPv6Address();
+    static final boolean VIRTUAL_THREADS_AVAILABLE = virtualThreadFactory("") != null;
+
+    private static final ConcurrentMap<DNSQuestion, CompletableFuture<Void>> resolutions = new ConcurrentHashMap<>();
+
+    private static final ExecutorService glueExecutor = newThreadPerTaskExecutor("dns-glue-lookup");
+
+    // Messages are large enough for the UDP responses of most servers, larger ones are allocated as needed
+    static final int MAX_POOLED_MESSAGE_LENGTH = 4096;
+    private static final DNSMessagePool messagePool = new DNSMessagePool(256, MAX_POOLED_MESSAGE_LENGTH, false);
 
     private final DNSCache cache = DNSCache.getInstance();
     private final Random random = new SecureRandom();
     private final DNSVerbosePrinter verbose;
     private final DatagramSocket socket;
     private InetAddress nameServer;
+    private int port = DEFAULT_DNS_PORT;
+    private boolean racing = false;
+    private volatile boolean flattenCNames = true;
+    private int glueDepth = 0;
+    private int ednsBufferSize = DEFAULT_EDNS_BUFFER_SIZE;
+    private final DNSTcpTransport tcp = new DNSTcpTransport();
+    private final InfrastructureCache infrastructure = InfrastructureCache.getInstance();
+    private final DNSMetrics metrics = DNSMetrics.getInstance();
+    private int delegations = 0;
+    // Glue lookups started by resolveNameServers that may still be running, and their lookup services
+    private final Set<CompletableFuture<Void>> glueLookups = ConcurrentHashMap.newKeySet();
+    private final Set<DNSLookupService> glueHelpers = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed = false;
+    private final DatagramPacket sendPacket = new DatagramPacket(new byte[0], 0);
+    private final DatagramPacket receivePacket = new DatagramPacket(new byte[0], 0);
+    private final DNSMessageView view = new DNSMessageView();
+    private final byte[] transactionIds = new byte[256];
+    private int nextTransactionId = transactionIds.length;
 
     /**
      * Creates a new lookup service. Also initializes the datagram socket object with a default timeout.
@@ -65,35 +103,164 @@ public class DNSLookupService {
     }
 
     /**
-     * Closes the lookup service and related sockets and resources.
+     * Returns the UDP port to which all queries are sent.
+     *
+     * @return The port number.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Updates the UDP port to which all queries are sent, for all nameservers. Mostly useful for testing with local
+     * servers listening on a non-privileged port (see DNSZoneServer).
+     *
+     * @param port The port number.
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Returns true if queries are raced between the nameservers of a delegation (see setRacing).
+     *
+     * @return true if racing is enabled.
+     */
+    public boolean isRacing() {
+        return racing;
+    }
+
+    /**
+     * Enables or disables racing queries between nameservers. When enabled, a follow-up query is first sent to one of
+     * the nameservers with a known address, and if no response arrives within a short delay (adapted to the response
+     * times of that nameserver, see InfrastructureCache), to the next one, and so on, and the first valid response from
+     * any of them is used. This way, a dead or slow nameserver only costs the delay, instead of every attempt timing
+     * out.
+     *
+     * @param racing true to enable racing, false to contact a single nameserver per delegation.
+     */
+    public void setRacing(boolean racing) {
+        this.racing = racing;
+    }
+
+    /**
+     * Enables or disables the use of flattened CNAME chains (see DNSCache.addCNameChain) by getResultsFollowingCNames.
+     * When enabled (the default), a question answered through CNAME records is answered from its cached chain in a
+     * single cache lookup, and chains resolved by following CNAME records one at a time are cached. Chains found in a
+     * single response are cached either way (see processResponse).
+     *
+     * @param flattenCNames true to use flattened chains, false to follow CNAME records one at a time.
+     */
+    public void setFlattenCNames(boolean flattenCNames) {
+        this.flattenCNames = flattenCNames;
+    }
+
+    /**
+     * Returns the UDP payload size advertised to nameservers through EDNS(0) (see setEdnsBufferSize).
+     *
+     * @return The payload size in bytes, or 0 if EDNS is disabled.
+     */
+    public int getEdnsBufferSize() {
+        return ednsBufferSize;
+    }
+
+    /**
+     * Updates the UDP payload size advertised to nameservers. Queries include an EDNS(0) OPT record (RFC 6891) with
+     * this size, so nameservers may send UDP responses larger than 512 bytes, up to this size. The default,
+     * DEFAULT_EDNS_BUFFER_SIZE, avoids IP fragmentation on most networks. Responses that still do not fit are
+     * truncated by the nameserver, in which case the query is sent again over TCP.
+     *
+     * @param ednsBufferSize The payload size in bytes, between 512 and 65535, or 0 to disable EDNS.
+     */
+    public void setEdnsBufferSize(int ednsBufferSize) {
+        if (ednsBufferSize != 0 && (ednsBufferSize < DNSMessage.MAX_DNS_MESSAGE_LENGTH ||
+                ednsBufferSize > DNSMessage.MAX_TCP_MESSAGE_LENGTH))
+            throw new IllegalArgumentException("Invalid EDNS buffer size: " + ednsBufferSize);
+        this.ednsBufferSize = ednsBufferSize;
+    }
+
+    /**
+     * Closes the lookup service and related sockets and resources. Glue lookups still running in the background (see
+     * resolveNameServers) are stopped, by closing their own lookup services, and waited for, so that no query is sent
+     * on behalf of this service once this method returns.
      */
     public void close() {
+        closed = true;
+        glueHelpers.forEach(DNSLookupService::close);
+        CompletableFuture.allOf(glueLookups.toArray(new CompletableFuture<?>[0])).handle((ignored, error) -> null)
+                .join();
         socket.close();
+        tcp.close();
     }
 
     /**
      * Finds all the results for a specific question. If there are valid (not expired) results in the cache, uses these
-     * results, otherwise queries the nameserver for new records. If there are CNAME records associated to the question,
-     * they are included in the results as CNAME records (i.e., not queried further).
+     * results, otherwise queries the nameserver for new records, unless the cache has a negative result for the
+     * question. If there are CNAME records associated to the question, they are included in the results as CNAME
+     * records (i.e., not queried further).
+     * <p>
+     * Concurrent lookups for the same question are coalesced: if another lookup service (typically used by another
+     * thread) is already querying nameservers for this question, this method waits for that lookup to end and uses
+     * its results, instead of sending the same queries again.
      *
      * @param question Host and record type to be used for search.
      * @return A (possibly empty) set of resource records corresponding to the specific query requested.
      */
     public Collection<ResourceRecord> getResults(DNSQuestion question) {
 
-        Collection<ResourceRecord> results = cache.getCachedResults(question, true);
-        if (results.isEmpty()) {
-            iterativeQuery(question, nameServer);
+        Collection<ResourceRecord> results = cache.getClientResults(question, true);
+        if (results.isEmpty() && !cache.hasNegativeResult(question)) {
+            resolve(question);
             results = cache.getCachedResults(question, true);
         }
         return results;
     }
 
+    /**
+     * Queries nameservers for a question, unless a lookup for the same question is already in progress, in which
+     * case waits for it to end instead. Results are found in the cache.
+     * <p>
+     * The lookup starts at the nameservers of the closest enclosing zone with a cached delegation (see
+     * closestNameServers), so that, once the cache is warm, most lookups skip the root and top-level domain servers.
+     * If that does not resolve the question (e.g., the cached nameservers no longer serve the zone), it is looked up
+     * again from the configured nameserver.
+     *
+     * @param question Host and record type to be resolved.
+     */
+    private void resolve(DNSQuestion question) {
+        CompletableFuture<Void> resolution = new CompletableFuture<>();
+        CompletableFuture<Void> current = resolutions.putIfAbsent(question, resolution);
+        if (current != null) {
+            current.join();
+            return;
+        }
+        long start = metrics.startTimer();
+        delegations = 0;
+        try {
+            List<InetAddress> closest = closestNameServers(question, this.cache);
+            if (!closest.isEmpty()) {
+                iterativeQuery(question, closest.get(0));
+                if (isResolved(question, this.cache)) {
+                    metrics.lookupCompleted(start, delegations);
+                    return;
+                }
+            }
+            iterativeQuery(question, nameServer);
+            metrics.lookupCompleted(start, delegations);
+        } finally {
+            resolutions.remove(question, resolution);
+            resolution.complete(null);
+        }
+    }
+
     /**
      * Finds all the results for a specific question. If there are valid (not expired) results in the cache, uses these
      * results, otherwise queries the nameserver for new records. If there are CNAME records associated to the question,
      * they are retrieved recursively for new records of the same type, and the returning set will contain both the
      * CNAME record and the resulting resource records of the indicated type.
+     * <p>
+     * If the cache has a flattened CNAME chain for the question (see setFlattenCNames), it is returned without
+     * following the chain. Otherwise, once a chain has been followed, it is cached flattened for later lookups.
      *
      * @param question             Host and record type to be used for search.
      * @param maxIndirectionLevels Number of CNAME indirection levels to support.
@@ -106,6 +273,15 @@ public class DNSLookupService {
 
         if (maxIndirectionLevels < 0) throw new CNameIndirectionLimitException();
 
+        boolean flatten = flattenCNames && question.getRecordType() != RecordType.CNAME;
+        if (flatten) {
+            List<ResourceRecord> chain = cache.getCNameChain(question);
+            if (chain != null) {
+                if (countCNames(chain) > maxIndirectionLevels) throw new CNameIndirectionLimitException();
+                return chain;
+            }
+        }
+
         Collection<ResourceRecord> directResults = getResults(question);
         if (directResults.isEmpty() || question.getRecordType() == RecordType.CNAME)
             return directResults;
@@ -119,9 +295,74 @@ public class DNSLookupService {
                         maxIndirectionLevels - 1));
             }
         }
+        if (flatten && isCNameChain(question, directResults, newResults))
+            cache.addCNameChain(question, newResults);
         return newResults;
     }
 
+    /**
+     * Returns the number of CNAME records in a list of results.
+     */
+    static int countCNames(Collection<ResourceRecord> results) {
+        int count = 0;
+        for (ResourceRecord record : results)
+            if (record.getRecordType() == RecordType.CNAME) count++;
+        return count;
+    }
+
+    /**
+     * Returns true if the results of a question, found by following CNAME records, form a complete CNAME chain that can
+     * be cached flattened: the direct results of the question are only CNAME records, and the CNAME records lead to
+     * records of the requested type.
+     *
+     * @param question      The question.
+     * @param directResults The results cached for the question itself.
+     * @param results       The direct results, each followed by the results of following it.
+     */
+    static boolean isCNameChain(DNSQuestion question, Collection<ResourceRecord> directResults,
+                                List<ResourceRecord> results) {
+        if (countCNames(directResults) != directResults.size()) return false;
+        for (ResourceRecord record : results)
+            if (record.getRecordType() == question.getRecordType()) return true;
+        return false;
+    }
+
+    /**
+     * Assembles the CNAME chain of a question from the answer section of a single response: the CNAME records that
+     * lead from the name of the question to its canonical name, in order, followed by the records of the canonical
+     * name that answer the question, as getResultsFollowingCNames would return them.
+     *
+     * @param question The question of the response.
+     * @param answers  The records of the answer section.
+     * @return The chain, or null if the question is answered directly, or the answers do not contain a complete chain
+     * (e.g., the canonical name is in another zone, and its records must be resolved separately).
+     */
+    static List<ResourceRecord> flattenCNameChain(DNSQuestion question, List<ResourceRecord> answers) {
+        if (question.getRecordType() == RecordType.CNAME) return null;
+        List<ResourceRecord> chain = new ArrayList<>();
+        DomainName name = question.getName();
+        // Each step uses a CNAME record of the answers, so a chain that loops is given up after all of them
+        for (int step = 0; step <= answers.size(); step++) {
+            ResourceRecord cname = null;
+            int found = 0;
+            for (ResourceRecord record : answers) {
+                if (record.getQuestion().getName() != name || record.getRecordClass() != question.getRecordClass())
+                    continue;
+                if (record.getRecordType() == question.getRecordType()) {
+                    chain.add(record);
+                    found++;
+                } else if (record.getRecordType() == RecordType.CNAME && cname == null) {
+                    cname = record;
+                }
+            }
+            if (found > 0) return step > 0 ? chain : null;
+            if (cname == null) return null;
+            chain.add(cname);
+            name = DomainName.of(cname.getTextResult());
+        }
+        return null;
+    }
+
     /**
      * Retrieves DNS results from a specified DNS server using the iterative mode. After an individual query is sent and
      * its response is received (or times out), checks if an answer for the specified host exists. Resulting values
@@ -133,8 +374,10 @@ public class DNSLookupService {
      * another nameserver. Note that nameservers returned by the response contain text records linking to the host names
      * of these servers. If at least one nameserver provided by the response to the first query has a known IP address
      * (either from this query or from a previous query), it must be used first, otherwise additional queries are
-     * required to obtain the IP address of the nameserver before it is queried. Only one nameserver must be contacted
-     * for the follow-up query.
+     * required to obtain the IP address of the nameserver before it is queried (see resolveNameServers, which resolves
+     * several nameservers concurrently). Only one nameserver must be contacted for the follow-up query, unless racing
+     * is enabled (see setRacing), in which case the follow-up query is raced between all nameservers with a known IP
+     * address.
      *
      * @param question Host name and record type/class to be used for the query.
      * @param server   Address of the server to be used for the first query.
@@ -143,9 +386,16 @@ public class DNSLookupService {
 
         /* TO BE COMPLETED BY THE STUDENT */
         InetAddress currServer = server;
+        List<InetAddress> racingServers = Collections.emptyList();
         for (int i = 0; i < MAX_INDIRECTION_LEVEL_NS; i++) {
-            this.socket.connect(currServer, DEFAULT_DNS_PORT);
-            Set<ResourceRecord> resourceRecords = individualQueryProcess(question, currServer);
+            Set<ResourceRecord> resourceRecords;
+            if (racingServers.size() > 1) {
+                this.socket.disconnect();
+                resourceRecords = racingQueryProcess(question, racingServers);
+            } else {
+                this.socket.connect(currServer, port);
+                resourceRecords = individualQueryProcess(question, currServer);
+            }
             // check if an answer already exist in the question
             List<ResourceRecord> currResults = this.cache.getCachedResults(question, true);
             // stop if we get answers
@@ -153,19 +403,19 @@ public class DNSLookupService {
                 return;
             }
             // check size of returns a set of resource records for all nameservers received in the response
-            if (resourceRecords.size() > 0) {
-                ResourceRecord currRecord = this.interactiveQueryHelper(resourceRecords);
+            if (resourceRecords != null && resourceRecords.size() > 0) {
+                delegations++;
+                racingServers = racing ? nameServerAddresses(resourceRecords, this.cache) : Collections.emptyList();
+                ResourceRecord currRecord = interactiveQueryHelper(resourceRecords, this.cache);
                 // create new question if this rr does not have InetAddress
                 if (currRecord.getInetResult() == null) {
-                    DNSQuestion currQuestion1 = new DNSQuestion(currRecord.getTextResult(), A, RecordClass.IN);
-                    this.iterativeQuery(currQuestion1, currServer);
-                    List<ResourceRecord> resourceRecord = this.cache.getCachedResults(currQuestion1, true);
-                    // stop if rr is null, cannot update new server
-                    if (resourceRecord.size() < 1) {
+                    InetAddress address = resolveNameServers(resourceRecords);
+                    // stop if no nameserver could be resolved, cannot update new server
+                    if (address == null) {
                         return;
                     }
                     // update server for next loop
-                    currServer = resourceRecord.get(0).getInetResult();
+                    currServer = address;
                 } else {
                     // update server for next loop
                         currServer = currRecord.getInetResult();
@@ -176,28 +426,186 @@ public class DNSLookupService {
         }
     }
 
-    // helper function to get the next rr that has InetResult, otherwise return an iterator for next rr
-    private ResourceRecord interactiveQueryHelper(Set<ResourceRecord> records) {
-        DNSQuestion question;
-        List<ResourceRecord> currentResult;
+    /**
+     * Finds the nameservers of the closest enclosing zone of a question with a cached delegation: the deepest
+     * ancestor of the question's name (or the name itself) with cached NS records for which at least one nameserver
+     * has a known address. Since names are interned with links to their parents (see DomainName), this takes one
+     * cache lookup per label. The root is not considered, so lookups without a closer delegation still start at the
+     * configured nameserver.
+     *
+     * @param question Question to be resolved.
+     * @param cache    Cache where delegations are looked up.
+     * @return The addresses of the nameservers, as in nameServerAddresses, or an empty list if no delegation below
+     * the root is cached.
+     */
+    static List<InetAddress> closestNameServers(DNSQuestion question, DNSCache cache) {
+        for (DomainName zone = question.getName(); zone != DomainName.ROOT; zone = zone.getParent()) {
+            List<ResourceRecord> nameServers = cache.getCachedResults(
+                    new DNSQuestion(zone, RecordType.NS, question.getRecordClass()), false);
+            if (nameServers.isEmpty()) continue;
+            List<InetAddress> addresses = nameServerAddresses(new HashSet<>(nameServers), cache);
+            if (!addresses.isEmpty()) return addresses;
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Returns true if the cache has results (possibly CNAME records) or a negative result for a question.
+     */
+    static boolean isResolved(DNSQuestion question, DNSCache cache) {
+        return !cache.getCachedResults(question, true).isEmpty() || cache.hasNegativeResult(question);
+    }
+
+    /**
+     * Returns the known IP addresses of a set of nameservers, at most one per nameserver and at most
+     * MAX_RACING_SERVERS in total, from the lowest to the highest smoothed RTT (in random order if equal).
+     *
+     * @param records NS records of the nameservers.
+     * @param cache   Cache where the addresses of the nameservers are looked up.
+     * @return A (possibly empty) list of nameserver addresses.
+     */
+    static List<InetAddress> nameServerAddresses(Set<ResourceRecord> records, DNSCache cache) {
+        List<InetAddress> addresses = new ArrayList<>();
+        for (ResourceRecord record : records) {
+            for (ResourceRecord address : cachedAddresses(record.getTextResult(), cache)) {
+                if (!addresses.contains(address.getInetResult())) {
+                    addresses.add(address.getInetResult());
+                    break;
+                }
+            }
+        }
+        Collections.shuffle(addresses);
+        InfrastructureCache.getInstance().rank(addresses);
+        return addresses.size() > MAX_RACING_SERVERS ? addresses.subList(0, MAX_RACING_SERVERS) : addresses;
+    }
+
+    // helper function to get the rr with InetResult of the nameserver with the lowest smoothed RTT, otherwise return
+    // an iterator for next rr
+    static ResourceRecord interactiveQueryHelper(Set<ResourceRecord> records, DNSCache cache) {
+        InfrastructureCache infrastructure = InfrastructureCache.getInstance();
+        ResourceRecord bestRecord = null;
+        double bestRtt = Double.MAX_VALUE;
         for (ResourceRecord record : records) {
-            question = new DNSQuestion(record.getTextResult(), A, RecordClass.IN);
-            currentResult = this.cache.getCachedResults(question, true);
-            for (ResourceRecord currentRecord : currentResult) {
-                if (currentRecord.getInetResult() != null) {
-                    return currentRecord;
+            for (ResourceRecord currentRecord : cachedAddresses(record.getTextResult(), cache)) {
+                double rtt = infrastructure.getSmoothedRTT(currentRecord.getInetResult());
+                if (rtt < bestRtt) {
+                    bestRecord = currentRecord;
+                    bestRtt = rtt;
                 }
             }
         }
-        return records.iterator().next();
+        return bestRecord != null ? bestRecord : records.iterator().next();
+    }
+
+    /**
+     * Returns the cached address records of a host that can be used to contact it: its A records and, if this host has
+     * IPv6 connectivity, its AAAA records.
+     *
+     * @param hostName Host name of the nameserver.
+     * @param cache    Cache where the addresses are looked up.
+     * @return A (possibly empty) list of records, all with an InetAddress result.
+     */
+    static List<ResourceRecord> cachedAddresses(String hostName, DNSCache cache) {
+        List<ResourceRecord> addresses = new ArrayList<>();
+        for (ResourceRecord record : cache.getCachedResults(new DNSQuestion(hostName, A, RecordClass.IN), false))
+            if (record.getInetResult() != null) addresses.add(record);
+        if (IPV6_AVAILABLE)
+            for (ResourceRecord record : cache.getCachedResults(new DNSQuestion(hostName, AAAA, RecordClass.IN), false))
+                if (record.getInetResult() != null) addresses.add(record);
+        return addresses;
+    }
+
+    /**
+     * Returns the questions needed to find the addresses of the nameservers of a delegation that came without glue: the
+     * A and AAAA questions of up to MAX_GLUE_LOOKUPS nameservers, chosen at random. Questions that already have a
+     * (positive or negative) answer in the cache are left out.
+     *
+     * @param records NS records of the nameservers.
+     * @param cache   Cache where existing answers are looked up.
+     * @return A (possibly empty) list of questions.
+     */
+    static List<DNSQuestion> nameServerQuestions(Set<ResourceRecord> records, DNSCache cache) {
+        List<String> hostNames = new ArrayList<>();
+        for (ResourceRecord record : records)
+            if (!hostNames.contains(record.getTextResult())) hostNames.add(record.getTextResult());
+        Collections.shuffle(hostNames);
+        List<DNSQuestion> questions = new ArrayList<>();
+        for (String hostName : hostNames.subList(0, Math.min(hostNames.size(), MAX_GLUE_LOOKUPS))) {
+            for (RecordType type : new RecordType[]{A, AAAA}) {
+                DNSQuestion question = new DNSQuestion(hostName, type, RecordClass.IN);
+                if (cache.getCachedResults(question, true).isEmpty() && !cache.hasNegativeResult(question))
+                    questions.add(question);
+            }
+        }
+        return questions;
+    }
+
+    /**
+     * Resolves the nameservers of a delegation that came without glue. The questions returned by nameServerQuestions
+     * are looked up concurrently, each by a separate lookup service, and the first usable address found is returned.
+     * Lookups still running at that point continue in the background (until this service is closed), so the addresses
+     * of the other nameservers are also cached for later. Like any other lookup (see resolve), each one starts at the
+     * closest cached delegation, or else at the configured nameserver. Nameservers that themselves need this kind of
+     * resolution are only followed up to MAX_GLUE_DEPTH levels, so that delegations whose nameservers depend on each
+     * other do not start lookups endlessly. The lookups are not traced (see SilentPrinter), since they run on other
+     * threads, and a lookup that fails (e.g., on a malformed response) only leaves its nameserver unresolved.
+     *
+     * @param records NS records of the nameservers.
+     * @return The address of one of the nameservers, or null if none could be resolved.
+     */
+    private InetAddress resolveNameServers(Set<ResourceRecord> records) {
+        if (glueDepth >= MAX_GLUE_DEPTH) return null;
+        CompletableFuture<InetAddress> first = new CompletableFuture<>();
+        List<CompletableFuture<Void>> lookups = new ArrayList<>();
+        String configuredServer = getNameServer();
+        for (DNSQuestion question : nameServerQuestions(records, this.cache)) {
+            CompletableFuture<Void> lookup = CompletableFuture.runAsync(() -> {
+                if (closed) return;
+                try {
+                    DNSLookupService helper = new DNSLookupService(configuredServer, SilentPrinter.INSTANCE);
+                    glueHelpers.add(helper);
+                    try {
+                        // Checked again, since close may not have seen the helper
+                        if (closed) return;
+                        helper.setPort(port);
+                        helper.setRacing(racing);
+                        helper.setEdnsBufferSize(ednsBufferSize);
+                        helper.glueDepth = glueDepth + 1;
+                        List<InetAddress> closest = closestNameServers(question, this.cache);
+                        if (!closest.isEmpty())
+                            helper.iterativeQuery(question, closest.get(0));
+                        if (!isResolved(question, this.cache))
+                            helper.iterativeQuery(question, helper.nameServer);
+                    } finally {
+                        glueHelpers.remove(helper);
+                        helper.close();
+                    }
+                } catch (IOException ignored) {
+                    // The helper socket could not be created, the nameserver is left unresolved
+                }
+                List<ResourceRecord> addresses = cachedAddresses(question.getHostName(), this.cache);
+                if (!addresses.isEmpty())
+                    first.complete(addresses.get(0).getInetResult());
+            }, glueExecutor);
+            glueLookups.add(lookup);
+            lookup.whenComplete((ignored, error) -> glueLookups.remove(lookup));
+            lookups.add(lookup);
+        }
+        // Completed even if some lookups failed, so this thread never waits for an address that will not come
+        CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((ignored, error) -> first.complete(null));
+        return first.join();
     }
 
     /**
      * Handles the process of sending an individual DNS query with a single question. Builds and sends the query (request)
-     * message, then receives and parses the response. Received responses that do not match the requested transaction ID
-     * are ignored. If no response is received after SO_TIMEOUT milliseconds, the request is sent again, with the same
-     * transaction ID. The query should be sent at most MAX_QUERY_ATTEMPTS times, after which the function should return
-     * without changing any values. If a response is received, all of its records are added to the cache.
+     * message, then receives and parses the response. Received datagrams that are not a response to this query (see
+     * isResponseTo), or that do not come from the server, are ignored, and the response is still waited for. If no
+     * response is received within the retransmission timeout of the server (see InfrastructureCache, at most SO_TIMEOUT
+     * milliseconds), the request is sent again, with the same transaction ID. The query should be sent at most
+     * MAX_QUERY_ATTEMPTS times, after which the function should return without changing any values. If a response is
+     * received, all of its records are added to the cache. If the response is truncated, the query is sent again over
+     * TCP (see retryOverTcp).
      * <p>
      * The method verbose.printQueryToSend() must be called every time a new query message is about to be sent.
      *
@@ -210,43 +618,191 @@ public class DNSLookupService {
      */
     protected Set<ResourceRecord> individualQueryProcess(DNSQuestion question, InetAddress server) {
         /* TO BE COMPLETED BY THE STUDENT */
-        DNSMessage message = buildQuery(question);
-        byte[] send = message.getUsed();
-        DatagramPacket packet = new DatagramPacket(send, send.length, server, DEFAULT_DNS_PORT);
+        DNSMessage message = buildRequest(question);
+        int receiveSize = Math.max(DNSMessage.MAX_DNS_MESSAGE_LENGTH, ednsBufferSize);
+        DNSMessage response = acquireMessage(receiveSize);
+        byte[] responseBytes = response.getData();
+        sendPacket.setData(message.getData(), 0, message.getLength());
+        sendPacket.setAddress(server);
+        sendPacket.setPort(port);
         try {
             for (int i = 0; i < MAX_QUERY_ATTEMPTS; i++) {
-                    this.verbose.printQueryToSend(question, server, message.getID());
-                    this.socket.send(packet);
-                    boolean receive = false;
-                    boolean match = false;
-                    DatagramPacket responsePacket = null;
-                    byte[] responseBytes = null;
-                        try {
-                            responsePacket = new DatagramPacket(new byte[512], 512, server, DEFAULT_DNS_PORT);
-                            socket.receive(responsePacket);
-                            responseBytes = responsePacket.getData();
-                            // check if it is a response
-                            int qr = (responseBytes[2] >> 7) & 0x1;
-                            if (qr == 1) {
-                                receive = true;
-                            }
-                            // check response ID matches request ID
-                            String responseString = byteArrayToHexString(responseBytes);
-                            if (Integer.parseInt(responseString.substring(0, 4), 16) == message.getID()) {
-                                match = true;
-                            }
-                        } catch (SocketTimeoutException ignored) {
-                        }
-                if (match && receive) {
-                    DNSMessage validResponse = new DNSMessage(responseBytes, responseBytes.length);
-                    return processResponse(validResponse);
+                long timeout = infrastructure.getTimeoutMillis(server, i);
+                this.verbose.printQueryToSend(question, server, message.getID());
+                long sentAt = System.nanoTime();
+                this.socket.send(sendPacket);
+                metrics.querySent(message.getLength(), i > 0);
+                if (!receiveResponse(question, server, message.getID(), sentAt + timeout * 1_000_000L,
+                        responseBytes, receiveSize)) {
+                    infrastructure.recordTimeout(server);
+                    metrics.queryTimedOut();
+                    continue;
                 }
+                // only the first transmission can be timed unambiguously
+                if (i == 0) infrastructure.recordResponse(server, System.nanoTime() - sentAt);
+                metrics.responseReceived(receivePacket.getLength(), i == 0 ? System.nanoTime() - sentAt : -1);
+                response.resetReceived(receivePacket.getLength());
+                DNSMessage validResponse = response;
+                if (validResponse.getTC())
+                    validResponse = retryOverTcp(question, message.getUsed(), server, validResponse);
+                return processResponse(validResponse);
             }
         } catch (IOException ignored) {
+        } finally {
+            messagePool.release(message);
+            messagePool.release(response);
         }
         return null;
     }
 
+    /**
+     * Waits for the response to a query sent to a single server, until a deadline. Datagrams that are not a response
+     * to the query, or that do not come from the server and port it was sent to, are ignored.
+     *
+     * @param deadline The time (as in System.nanoTime) after which the query is considered timed out.
+     * @param data     The array where datagrams are received.
+     * @param length   The maximum length of a datagram.
+     * @return true if a response was received (in receivePacket), false if the deadline passed.
+     */
+    private boolean receiveResponse(DNSQuestion question, InetAddress server, int id, long deadline, byte[] data,
+                                    int length) throws IOException {
+        while (true) {
+            long remaining = (deadline - System.nanoTime()) / 1_000_000L;
+            if (remaining <= 0) return false;
+            this.socket.setSoTimeout((int) remaining);
+            receivePacket.setData(data, 0, length);
+            try {
+                socket.receive(receivePacket);
+            } catch (SocketTimeoutException e) {
+                return false;
+            }
+            if (receivePacket.getPort() == port && server.equals(receivePacket.getAddress()) &&
+                    isResponseTo(view, data, receivePacket.getLength(), id, question))
+                return true;
+            metrics.responseIgnored();
+        }
+    }
+
+    /**
+     * Checks that a received datagram is a response to a query, by reading its header and question in place, without
+     * decoding or allocating anything: it must be a response (QR) to a standard query with the transaction ID of the
+     * query, and echo its question. Anything else, such as a response to an earlier query (which had another ID), a
+     * malformed packet, or a spoofed response that guessed the ID but not the question, must be ignored. Where the
+     * datagram came from must be checked separately.
+     *
+     * @param view     A view, reused for every datagram.
+     * @param data     The received datagram.
+     * @param length   The length of the datagram.
+     * @param id       The transaction ID of the query.
+     * @param question The question of the query.
+     * @return true if the datagram is a response to the query.
+     */
+    static boolean isResponseTo(DNSMessageView view, byte[] data, int length, int id, DNSQuestion question) {
+        if (!view.wrap(data, length) || !view.getQR() || view.getID() != id || view.getOpcode() != DNSMessage.QUERY ||
+                view.getCount(DNSMessageView.QUESTION) != 1 || !view.next())
+            return false;
+        return view.getTypeCode() == question.getRecordType().getCode() &&
+                view.getClassCode() == question.getRecordClass().getCode() &&
+                view.nameEquals(question.getHostName());
+    }
+
+    /**
+     * Sends the same query to several servers, one after the other, and processes the first valid response received
+     * from any of them. The query is sent to the next server whenever no response arrives within the racing delay of
+     * the last server contacted (see InfrastructureCache). Once it has been sent to every server, the query is sent
+     * to all of them again after the (backed off) timeout of the last server, up to MAX_QUERY_ATTEMPTS times. Servers
+     * that did not respond within their timeout are reported to the infrastructure cache. A truncated response is
+     * retried over TCP with the server that sent it. Must be called with the socket disconnected.
+     *
+     * @param question Host name and record type/class to be used for the query.
+     * @param servers  Addresses of the servers to be raced, in the order in which they are contacted.
+     * @return If no response is received, returns null. Otherwise, returns the nameservers received in the response,
+     * as in individualQueryProcess.
+     */
+    protected Set<ResourceRecord> racingQueryProcess(DNSQuestion question, List<InetAddress> servers) {
+        DNSMessage message = buildRequest(question);
+        int receiveSize = Math.max(DNSMessage.MAX_DNS_MESSAGE_LENGTH, ednsBufferSize);
+        DNSMessage response = acquireMessage(receiveSize);
+        byte[] receive = response.getData();
+        sendPacket.setData(message.getData(), 0, message.getLength());
+        sendPacket.setPort(port);
+        long[] sentAt = new long[servers.size()];
+        int maxSends = servers.size() * MAX_QUERY_ATTEMPTS;
+        int sent = 0;
+        long nextSend = System.nanoTime();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                if (now - nextSend >= 0) {
+                    if (sent == maxSends) {
+                        recordRaceTimeouts(servers, sentAt, sent, -1);
+                        return null;
+                    }
+                    int index = sent % servers.size();
+                    int round = sent / servers.size();
+                    this.verbose.printQueryToSend(question, servers.get(index), message.getID());
+                    sendPacket.setAddress(servers.get(index));
+                    this.socket.send(sendPacket);
+                    metrics.querySent(message.getLength(), round > 0);
+                    sentAt[index] = now;
+                    sent++;
+                    long delay = sent % servers.size() != 0 ? infrastructure.getRacingDelayMillis(servers.get(index))
+                            : infrastructure.getTimeoutMillis(servers.get(index), round);
+                    nextSend = now + delay * 1_000_000L;
+                }
+                this.socket.setSoTimeout((int) Math.max(1, (nextSend - now) / 1_000_000L));
+                DatagramPacket responsePacket = receivePacket;
+                responsePacket.setData(receive, 0, receiveSize);
+                try {
+                    socket.receive(responsePacket);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                // only accept responses to this query, from one of the servers it was sent to
+                int index = servers.indexOf(responsePacket.getAddress());
+                if (index < 0 || index >= sent || responsePacket.getPort() != port ||
+                        !isResponseTo(view, receive, responsePacket.getLength(), message.getID(), question)) {
+                    metrics.responseIgnored();
+                    continue;
+                }
+                // only the first round can be timed unambiguously
+                if (sent <= servers.size())
+                    infrastructure.recordResponse(servers.get(index), System.nanoTime() - sentAt[index]);
+                metrics.responseReceived(responsePacket.getLength(),
+                        sent <= servers.size() ? System.nanoTime() - sentAt[index] : -1);
+                recordRaceTimeouts(servers, sentAt, sent, index);
+                response.resetReceived(responsePacket.getLength());
+                DNSMessage validResponse = response;
+                if (validResponse.getTC())
+                    validResponse = retryOverTcp(question, message.getUsed(), servers.get(index), validResponse);
+                return processResponse(validResponse);
+            }
+        } catch (IOException ignored) {
+        } finally {
+            messagePool.release(message);
+            messagePool.release(response);
+            try {
+                this.socket.setSoTimeout(SO_TIMEOUT);
+            } catch (SocketException ignored) {
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reports the servers of a race (other than the winner) that were sent the query more than their retransmission
+     * timeout ago as having timed out.
+     */
+    private void recordRaceTimeouts(List<InetAddress> servers, long[] sentAt, int sent, int winner) {
+        long now = System.nanoTime();
+        for (int i = 0; i < Math.min(sent, servers.size()); i++) {
+            if (i != winner && now - sentAt[i] > infrastructure.getTimeoutMillis(servers.get(i), 0) * 1_000_000L) {
+                infrastructure.recordTimeout(servers.get(i));
+                metrics.queryTimedOut();
+            }
+        }
+    }
+
     /**
      * Creates a DNSMessage containing a DNS query.
      * A random transaction ID must be generated and filled in the corresponding part of the query. The query
@@ -259,18 +815,83 @@ public class DNSLookupService {
      */
     protected DNSMessage buildQuery(DNSQuestion question) {
         /* TO BE COMPLETED BY THE STUDENT */
-        int id = random.nextInt(0x10000);
-        DNSMessage message = new DNSMessage((short) id);
+        int id = nextTransactionId();
+        DNSMessage message = messagePool.acquire((short) id);
         message.addQuestion(question);
         return message;
     }
 
+    /**
+     * Returns a random transaction ID. Random bytes are drawn in batches, since SecureRandom allocates an array on
+     * every call.
+     */
+    private int nextTransactionId() {
+        if (nextTransactionId == transactionIds.length) {
+            random.nextBytes(transactionIds);
+            nextTransactionId = 0;
+        }
+        int id = ((transactionIds[nextTransactionId] & 0xff) << 8) | (transactionIds[nextTransactionId + 1] & 0xff);
+        nextTransactionId += 2;
+        return id;
+    }
+
+    /**
+     * Returns an empty message to receive a response of up to a given length, from the shared pool if its messages
+     * are large enough.
+     */
+    private static DNSMessage acquireMessage(int length) {
+        return length <= messagePool.getCapacity() ? messagePool.acquire((short) 0) : new DNSMessage((short) 0, length);
+    }
+
+    /**
+     * Creates the message actually sent for a query: the query built by buildQuery, with an EDNS(0) OPT record
+     * advertising the UDP payload size, unless EDNS is disabled.
+     *
+     * @param question Host name and record type/class to be used for the query.
+     * @return The DNSMessage containing the query.
+     */
+    private DNSMessage buildRequest(DNSQuestion question) {
+        DNSMessage message = buildQuery(question);
+        if (ednsBufferSize > 0)
+            message.addOpt(ednsBufferSize);
+        return message;
+    }
+
+    /**
+     * Sends a query again over TCP, after the nameserver truncated its UDP response. The connection is kept open and
+     * reused for later truncated responses from the same nameserver.
+     *
+     * @param question  Question of the query, used for verbose output.
+     * @param query     The encoded query, as sent over UDP.
+     * @param server    Address of the nameserver.
+     * @param truncated The truncated response received over UDP.
+     * @return The response received over TCP, or the truncated response if the query failed over TCP.
+     */
+    private DNSMessage retryOverTcp(DNSQuestion question, byte[] query, InetAddress server, DNSMessage truncated) {
+        this.verbose.printQueryToSend(question, server, truncated.getID());
+        try {
+            byte[] response = tcp.exchange(query, new InetSocketAddress(server, port), SO_TIMEOUT);
+            metrics.tcpQuerySent(query.length, response.length);
+            return new DNSMessage(response, response.length);
+        } catch (IOException e) {
+            metrics.tcpQuerySent(query.length, 0);
+            return truncated;
+        }
+    }
+
+    /**
+     * Returns the number of TCP connections opened by this service so far, to retry truncated responses.
+     */
+    int getTcpConnectionsOpened() {
+        return tcp.getConnectionsOpened();
+    }
+
     /**
      * Parses and processes a response received by a nameserver. Adds all resource records found in the response message
      * to the cache. Calls methods in the verbose object at appropriate points of the processing sequence. Must be able
      * to properly parse records of the types: A, AAAA, NS, CNAME and MX (the priority field for MX may be ignored). Any
      * other unsupported record type must create a record object with the data represented as a hex string (see method
-     * byteArrayToHexString).
+     * DNSMessage.byteArrayToHexString, and RData to decode it).
      *
      * @param response The DNSMessage received from the server.
      * @return A set of resource records for all nameservers received in the response. Only records found in the
@@ -278,6 +899,19 @@ public class DNSLookupService {
      * nameservers, returns an empty set.
      */
     protected Set<ResourceRecord> processResponse(DNSMessage response) {
+        return processResponse(response, cache, verbose);
+    }
+
+    /**
+     * Parses and processes a response received by a nameserver, adding its records to the specified cache. This is
+     * the implementation behind processResponse(DNSMessage), shared with the other lookup services in this package.
+     *
+     * @param response The DNSMessage received from the server.
+     * @param cache    The cache where the records are to be added.
+     * @param verbose  Listener to be notified of the contents of the response.
+     * @return A set of resource records for all nameservers received in the response (NS records only).
+     */
+    static Set<ResourceRecord> processResponse(DNSMessage response, DNSCache cache, DNSVerbosePrinter verbose) {
         /* TO BE COMPLETED BY THE STUDENT */
         Set<ResourceRecord> nsRecord = new HashSet<>();
         int id = response.getID();
@@ -289,53 +923,137 @@ public class DNSLookupService {
         int ar = response.getARCount();
 
         ResourceRecord resourceRecord;
+        ResourceRecord soaRecord = null;
+        DNSQuestion question = null;
         int rrType;
         int rrClass;
         for (int i = 0; i < qd; i++) {
-            response.getQuestion();
+            question = response.getQuestion();
         }
-        this.verbose.printResponseHeaderInfo(id, authoritative, error);
+        verbose.printResponseHeaderInfo(id, authoritative, error);
         // answer print and loop for all an rr
-        this.verbose.printAnswersHeader(an);
+        verbose.printAnswersHeader(an);
+        List<ResourceRecord> answers = new ArrayList<>(an);
         for (int j = 0; j < an; j++) {
             resourceRecord = response.getRR();
             rrType = resourceRecord.getRecordType().getCode();
             rrClass = resourceRecord.getRecordClass().getCode();
-            this.verbose.printIndividualResourceRecord(resourceRecord, rrType, rrClass);
-            this.cache.addResult(resourceRecord);
+            verbose.printIndividualResourceRecord(resourceRecord, rrType, rrClass);
+            cache.addResult(resourceRecord);
+            answers.add(resourceRecord);
+        }
+        // A CNAME chain answered in full by this response is cached flattened, under the question
+        if (question != null && error == 0) {
+            List<ResourceRecord> chain = flattenCNameChain(question, answers);
+            if (chain != null) cache.addCNameChain(question, chain);
         }
         // nameserver print and loop for all ns rr
-        this.verbose.printNameserversHeader(ns);
+        verbose.printNameserversHeader(ns);
         for (int k = 0; k < ns; k++) {
             resourceRecord = response.getRR();
             rrType = resourceRecord.getRecordType().getCode();
             rrClass = resourceRecord.getRecordClass().getCode();
             if (rrType == RecordType.NS.getCode()) {
                 nsRecord.add(resourceRecord);
+            } else if (rrType == RecordType.SOA.getCode()) {
+                soaRecord = resourceRecord;
             }
-            this.verbose.printIndividualResourceRecord(resourceRecord, rrType, rrClass);
-            this.cache.addResult(resourceRecord);
+            verbose.printIndividualResourceRecord(resourceRecord, rrType, rrClass);
+            cache.addResult(resourceRecord);
         }
         // additional Info print and loop for all ad rr
-        this.verbose.printAdditionalInfoHeader(ar);
+        verbose.printAdditionalInfoHeader(ar);
         for (int l = 0; l < ar; l++) {
             resourceRecord = response.getRR();
+            // the EDNS OPT pseudo-record only describes the message, it is not part of any RRset
+            if (resourceRecord.getRecordType() == RecordType.OPT) continue;
             rrType = resourceRecord.getRecordType().getCode();
             rrClass = resourceRecord.getRecordClass().getCode();
-            this.verbose.printIndividualResourceRecord(resourceRecord, rrType, rrClass);
-            this.cache.addResult(resourceRecord);
+            verbose.printIndividualResourceRecord(resourceRecord, rrType, rrClass);
+            cache.addResult(resourceRecord);
+        }
+        // A name error, or a response with no answers and no referral, is a negative answer if it includes an SOA
+        // record (RFC 2308), and is cached for the smaller of the SOA TTL and its minimum field, with its response
+        // code and SOA record, so that it can be given to clients as received (see DNSResolverServer)
+        if (question != null && soaRecord != null && an == 0 &&
+                (error == 3 || (error == 0 && nsRecord.isEmpty()))) {
+            long minimum = soaMinimumTTL(soaRecord);
+            if (minimum >= 0)
+                cache.addNegativeResult(question, Math.min(soaRecord.getRemainingTTL(), minimum), error, soaRecord);
         }
         return nsRecord;
     }
+
+    /**
+     * Returns the minimum TTL field of an SOA record.
+     *
+     * @param soaRecord An SOA record, whose text result is the hex representation of its data.
+     * @return The minimum TTL in seconds, or -1 if the record data is not valid SOA data.
+     */
+    static long soaMinimumTTL(ResourceRecord soaRecord) {
+        RData data = soaRecord.getData();
+        return data instanceof RData.SOA ? ((RData.SOA) data).getMinimum() : -1;
+    }
+
+    /**
+     * Returns true if any network interface of this host has a global IPv6 address, in which case nameservers may also
+     * be contacted through their AAAA records.
+     */
+    private static boolean hasGlobalIPv6Address() {
+        try {
+            for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                if (!networkInterface.isUp() || networkInterface.isLoopback()) continue;
+                for (InetAddress address : Collections.list(networkInterface.getInetAddresses()))
+                    if (address instanceof Inet6Address && !address.isLinkLocalAddress() &&
+                            !address.isSiteLocalAddress() && !address.isLoopbackAddress())
+                        return true;
+            }
+        } catch (SocketException e) {
+            System.err.println("Could not list network interfaces (" + e.getMessage() + ").");
+        }
+        return false;
+    }
+
     /**
-     * Helper function that converts a hex string representation of a byte array. May be used to represent the result of
-     * records that are returned by the nameserver but not supported by the application (e.g., SOA records).
+     * Creates an executor that starts a new thread for each task, so that tasks may block (e.g., waiting for a
+     * response with the sequential code of this class) without holding up each other. Virtual threads are used if the
+     * runtime supports them, since they are cheap enough to run tens of thousands of lookups at once. Otherwise, daemon
+     * platform threads are used, and idle threads are reused for later tasks.
+     * <p>
+     * The application targets Java 17, where virtual threads do not exist, so they are created through reflection.
      *
-     * @param data a byte array containing the record data.
-     * @return A string containing the hex value of every byte in the data.
+     * @param name The name of the threads.
+     * @return The new executor.
      */
-    private static String byteArrayToHexString(byte[] data) {
-        return IntStream.range(0, data.length).mapToObj(i -> String.format("%02x", data[i])).reduce("", String::concat);
+    static ExecutorService newThreadPerTaskExecutor(String name) {
+        ThreadFactory factory = virtualThreadFactory(name);
+        if (factory != null) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                        .invoke(null, factory);
+            } catch (ReflectiveOperationException | RuntimeException ignored) {
+            }
+        }
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Returns the equivalent of Thread.ofVirtual().name(name).factory(), or null if virtual threads are not supported
+     * (or, in Java 19 and 20, are a preview feature that is not enabled).
+     */
+    private static ThreadFactory virtualThreadFactory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
     }
 
     public static class CNameIndirectionLimitException extends Exception {
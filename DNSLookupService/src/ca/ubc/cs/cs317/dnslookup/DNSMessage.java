@@ -4,21 +4,27 @@ import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.IntStream;
 
 public class DNSMessage {
     public static final int MAX_DNS_MESSAGE_LENGTH = 512;
+    public static final int MAX_TCP_MESSAGE_LENGTH = 65535;
     public static final int QUERY = 0;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
     public List<ResourceRecord> answer = new ArrayList<>();
     /**
      * TODO:  You will add additional constants and fields
      */
-    private final Map<String, Integer> nameToPosition = new HashMap<>();
     private final Map<Integer, String> positionToName = new HashMap<>();
     private final ByteBuffer buffer;
+    private final DNSMessagePool pool;
+    // Positions of the labels added by addName, which later names can point to
+    private int[] namePositions = new int[8];
+    private int nameCount = 0;
+    private ByteBuffer usedView;
 
 
     /**
@@ -27,8 +33,30 @@ public class DNSMessage {
      * @param id The id of the message.
      */
     public DNSMessage(short id) {
-        this.buffer = ByteBuffer.allocate(MAX_DNS_MESSAGE_LENGTH);
-        // TODO: Complete this method
+        this(id, MAX_DNS_MESSAGE_LENGTH);
+    }
+
+    /**
+     * Initializes an empty DNSMessage with the given id, that may grow up to a specific size. Adding data beyond that
+     * size throws a BufferOverflowException.
+     *
+     * @param id       The id of the message.
+     * @param capacity The maximum length of the message, in bytes.
+     */
+    public DNSMessage(short id, int capacity) {
+        this(id, null, ByteBuffer.allocate(capacity));
+    }
+
+    /**
+     * Initializes an empty DNSMessage with the given id, using a new buffer that belongs to a pool.
+     *
+     * @param id     The id of the message.
+     * @param pool   The pool that created the message, to which it can be released.
+     * @param buffer The buffer of the message.
+     */
+    DNSMessage(short id, DNSMessagePool pool, ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.pool = pool;
         setID(id);
         buffer.position(12);
     }
@@ -41,10 +69,78 @@ public class DNSMessage {
      */
     public DNSMessage(byte[] recvd, int length) {
         buffer = ByteBuffer.wrap(recvd, 0, length);
+        pool = null;
         // TODO: Complete this method
         buffer.position(12);
     }
 
+    /**
+     * Clears the message, so that it can be reused to build a new message with the given id, as if it had just been
+     * created with the same capacity, but without allocating anything.
+     *
+     * @param id The id of the message.
+     */
+    public void reset(short id) {
+        clear();
+        for (int i = 0; i < 12; i++)
+            buffer.put(i, (byte) 0);
+        setID(id);
+    }
+
+    /**
+     * Prepares the message to be decoded, after a message has been received into its array (see getData), as if it
+     * had been created with DNSMessage(getData(), length).
+     *
+     * @param length The length of the received message.
+     */
+    public void resetReceived(int length) {
+        clear();
+        buffer.limit(length);
+    }
+
+    private void clear() {
+        buffer.clear().position(12);
+        positionToName.clear();
+        nameCount = 0;
+        answer.clear();
+    }
+
+    /**
+     * Returns the array that holds the message (not a copy), so that a message can be sent, or received (see
+     * resetReceived), without copying it. When the message is being built, its data is the first getLength() bytes.
+     * Not available for messages from a pool of direct buffers.
+     *
+     * @return The array of the message.
+     * @throws UnsupportedOperationException If the buffer of the message is direct.
+     */
+    public byte[] getData() {
+        return buffer.array();
+    }
+
+    /**
+     * Returns the length of the data added to the message so far (i.e., the current position in its buffer).
+     */
+    public int getLength() {
+        return buffer.position();
+    }
+
+    /**
+     * Returns a view of the data added to the message so far, positioned at its start, to be sent through a channel
+     * without copying it, as getUsed would. The view is reused by later calls, so a query can be retransmitted.
+     */
+    ByteBuffer getUsedBuffer() {
+        if (usedView == null) usedView = buffer.duplicate();
+        usedView.clear().limit(buffer.position());
+        return usedView;
+    }
+
+    /**
+     * Returns the pool that created this message, or null if it was not created by a pool.
+     */
+    DNSMessagePool getPool() {
+        return pool;
+    }
+
     /**
      * Getters and setters for the various fixed size and fixed location fields of a DNSMessage
      * TODO:  They are all to be completed
@@ -301,15 +397,15 @@ public class DNSMessage {
         } else if (question.getRecordType() == RecordType.MX) {
             buffer.getShort();
             return new ResourceRecord(question, ttl, getName());
-        } else if (question.getRecordType() == RecordType.NS || question.getRecordType() == RecordType.CNAME) {
+        } else if (question.getRecordType() == RecordType.NS || question.getRecordType() == RecordType.CNAME ||
+                question.getRecordType() == RecordType.PTR) {
             return new ResourceRecord(question, ttl, getName());
         } else {
-            byte[] arr = new byte[length];
-            for (int j = 0; j < length; j++) {
-                arr[j] = buffer.get();
-            }
-            String toHex = byteArrayToHexString(arr);
-            return new ResourceRecord(question, ttl, toHex);
+            // The data is formatted straight from the array of the message (received messages are never direct)
+            int offset = buffer.position();
+            buffer.position(offset + length);
+            return new ResourceRecord(question, ttl,
+                    RData.toTextResult(question.getRecordType(), buffer.array(), buffer.limit(), offset, length));
         }
         return new ResourceRecord(question, ttl, getName());
     }
@@ -322,37 +418,107 @@ public class DNSMessage {
      * @return A string containing the hex value of every byte in the data.
      */
     public static String byteArrayToHexString(byte[] data) {
-        return IntStream.range(0, data.length).mapToObj(i -> String.format("%02x", data[i])).reduce("", String::concat);
+        return byteArrayToHexString(data, 0, data.length);
+    }
+
+    /**
+     * Returns the hex string representation of a range of a byte array, as byteArrayToHexString does for a whole array.
+     * Takes linear time, unlike formatting each byte separately.
+     *
+     * @param data   a byte array containing the record data.
+     * @param offset the offset of the first byte to convert.
+     * @param length the number of bytes to convert.
+     * @return A string containing the hex value of every byte in the range.
+     */
+    static String byteArrayToHexString(byte[] data, int offset, int length) {
+        char[] hex = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            hex[2 * i] = HEX_DIGITS[(data[offset + i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[data[offset + i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Helper function that converts a hex string representation (as returned by byteArrayToHexString) back to a byte
+     * array.
+     *
+     * @param hex a string containing the hex value of every byte in the data.
+     * @return A byte array containing the data.
+     * @throws NumberFormatException If the string contains a character that is not a hex digit.
+     */
+    public static byte[] hexStringToByteArray(String hex) {
+        byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16), low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) throw new NumberFormatException("Invalid hex string: " + hex);
+            data[i] = (byte) (high << 4 | low);
+        }
+        return data;
     }
 
     /**
      * Add an encoded name to the message. It is added at the current position and uses compression
      * as much as possible.  Compression is accomplished by remembering the position of every added
-     * label.
+     * label, and comparing each suffix of the name to the names already encoded at those positions,
+     * so that no strings or map entries are created for the labels.
      *
      * @param name The name to be added
      */
     public void addName(String name) {
-        String label;
-        while (name.length() > 0) {
-            Integer offset = nameToPosition.get(name);
-            if (offset != null) {
-                int pointer = offset;
-                pointer |= 0xc000;
-                buffer.putShort((short)pointer);
+        int start = 0;
+        while (start < name.length()) {
+            int offset = findName(name, start);
+            if (offset >= 0) {
+                buffer.putShort((short) (offset | 0xc000));
                 return;
-            } else {
-                nameToPosition.put(name, buffer.position());
-                int dot = name.indexOf('.');
-                label = (dot > 0) ? name.substring(0, dot) : name;
-                buffer.put((byte)label.length());
-                for (int j = 0; j < label.length(); j++) {
-                    buffer.put((byte)label.charAt(j));
-                }
-                name = (dot > 0) ? name.substring(dot + 1) : "";
             }
+            // Pointers only have 14 bits, so labels further into the message cannot be pointed to
+            if (buffer.position() <= 0x3fff) {
+                if (nameCount == namePositions.length)
+                    namePositions = Arrays.copyOf(namePositions, nameCount * 2);
+                namePositions[nameCount++] = buffer.position();
+            }
+            int dot = name.indexOf('.', start);
+            int end = dot > 0 ? dot : name.length();
+            buffer.put((byte) (end - start));
+            for (int j = start; j < end; j++) {
+                buffer.put((byte) name.charAt(j));
+            }
+            start = dot > 0 ? dot + 1 : name.length();
+        }
+        buffer.put((byte) 0);
+    }
+
+    /**
+     * Returns the position of a name already added to the message that is the same as the suffix of a name starting
+     * at a given index, or -1 if there is none.
+     */
+    private int findName(String name, int start) {
+        for (int i = 0; i < nameCount; i++)
+            if (nameEquals(namePositions[i], name, start))
+                return namePositions[i];
+        return -1;
+    }
+
+    private boolean nameEquals(int position, String name, int start) {
+        int index = start;
+        while (true) {
+            int length = buffer.get(position) & 0xff;
+            if ((length & 0xc0) == 0xc0) {
+                position = ((length & 0x3f) << 8) | (buffer.get(position + 1) & 0xff);
+                continue;
+            }
+            if (length == 0) return false;
+            if (index + length > name.length()) return false;
+            for (int j = 0; j < length; j++)
+                if (buffer.get(position + 1 + j) != (byte) name.charAt(index + j)) return false;
+            index += length;
+            position += length + 1;
+            if (index == name.length()) return buffer.get(position) == 0;
+            if (name.charAt(index) != '.') return false;
+            index++;
         }
-        buffer.put((byte)0);
     }
 
     /**
@@ -378,7 +544,8 @@ public class DNSMessage {
         RecordType record = rr.getRecordType();
         addQType(record);
         addQClass(rr.getRecordClass());
-        int rrttl = (int) rr.getRemainingTTL();
+        // Records served stale (see DNSCache) have already expired, and are sent with a TTL of zero
+        int rrttl = (int) Math.max(0, rr.getRemainingTTL());
         buffer.putInt(rrttl);
         if (record == RecordType.A) {
             buffer.putShort((byte) 0x0004);
@@ -395,13 +562,17 @@ public class DNSMessage {
             addName(rr.getTextResult());
             int length = buffer.position() - rdlength_pos - 2;
             buffer.putShort(rdlength_pos, (short) length);
-        } else {
+        } else if (record == RecordType.NS || record == RecordType.CNAME || record == RecordType.PTR) {
             int rdlength_pos = buffer.position();
             buffer.putShort((short) 0);
             addName(rr.getTextResult());
             int length = buffer.position() - rdlength_pos - 2;
-            // byte[] i = rr.getTextResult().getBytes(StandardCharsets.UTF_8);
             buffer.putShort(rdlength_pos, (short) length);
+        } else {
+            // Unsupported types are represented by the hex string of their data (see getRR)
+            byte[] data = hexStringToByteArray(rr.getTextResult());
+            buffer.putShort((short) data.length);
+            buffer.put(data);
         }
         switch (section) {
             case "answer":
@@ -416,6 +587,22 @@ public class DNSMessage {
         }
     }
 
+    /**
+     * Add an EDNS(0) OPT pseudo-record (RFC 6891) to the additional section, at the current position. The record
+     * advertises the largest UDP response the sender can receive, in the place of the record class, and has no
+     * options.
+     *
+     * @param udpPayloadSize The largest UDP payload accepted, in bytes.
+     */
+    public void addOpt(int udpPayloadSize) {
+        buffer.put((byte) 0);
+        addQType(RecordType.OPT);
+        buffer.putShort((short) udpPayloadSize);
+        buffer.putInt(0);
+        buffer.putShort((short) 0);
+        setARCount(getARCount() + 1);
+    }
+
     /**
      * Add an encoded type to the message at the current position.
      * @param recordType The type to be added
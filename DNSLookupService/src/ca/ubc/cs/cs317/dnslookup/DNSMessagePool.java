@@ -0,0 +1,88 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of reusable DNSMessage objects, each with its own buffer, so that queries can be built and responses received
+ * without allocating a new message (and its buffer) every time. A message is taken from the pool with acquire, which
+ * clears it (see DNSMessage.reset), and is given back with release once it is no longer used. Releasing a message
+ * is optional: a message that is never released is simply garbage collected, and the pool creates new messages
+ * whenever it is empty.
+ * <p>
+ * Buffers may be direct, which saves a copy when messages are sent or received through a channel (see
+ * DNSAsyncLookupService), or on the heap, which is required to send them through a DatagramSocket (see
+ * DNSMessage.getData). The pool is thread-safe, and keeps at most a fixed number of released messages.
+ */
+public class DNSMessagePool {
+
+    private final int capacity;
+    private final boolean direct;
+    private final DNSMessage[] free;
+    private int freeCount = 0;
+    private long created = 0;
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param size     The maximum number of released messages kept by the pool.
+     * @param capacity The maximum length of each message, in bytes.
+     * @param direct   true to allocate direct buffers, false for buffers on the heap.
+     */
+    public DNSMessagePool(int size, int capacity, boolean direct) {
+        this.capacity = capacity;
+        this.direct = direct;
+        this.free = new DNSMessage[size];
+    }
+
+    /**
+     * Returns the maximum length of the messages of this pool.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Takes an empty message from the pool, or creates one if the pool is empty.
+     *
+     * @param id The id of the message.
+     * @return A message as if created with DNSMessage(id, getCapacity()).
+     */
+    public DNSMessage acquire(short id) {
+        DNSMessage message = null;
+        synchronized (this) {
+            if (freeCount > 0) {
+                message = free[--freeCount];
+                free[freeCount] = null;
+            } else {
+                created++;
+            }
+        }
+        if (message == null)
+            return new DNSMessage(id, this,
+                    direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity));
+        message.reset(id);
+        return message;
+    }
+
+    /**
+     * Gives a message back to the pool, to be returned by a later call to acquire. The message must not be used after
+     * it is released. Messages not created by this pool are ignored, as are messages released when the pool is full.
+     *
+     * @param message The message, or null.
+     */
+    public void release(DNSMessage message) {
+        if (message == null || message.getPool() != this) return;
+        synchronized (this) {
+            if (freeCount < free.length)
+                free[freeCount++] = message;
+        }
+    }
+
+    /**
+     * Returns the number of messages created by this pool so far (as opposed to reused). Only meant for monitoring
+     * and testing.
+     */
+    public synchronized long getCreated() {
+        return created;
+    }
+}
@@ -0,0 +1,294 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A read-only, allocation-free view over a received DNS message. Unlike DNSMessage, which decodes every name and
+ * record into new objects as it goes, this class walks the packet in place: it only remembers the offsets and fixed
+ * fields of the current question or resource record, and the same view object is reused for every entry of the
+ * message (and for later messages, through wrap). Names are only decoded into strings if requested, and a
+ * ResourceRecord is only created by toResourceRecord, typically once it has been decided that the record is needed.
+ * <p>
+ * Typical use:
+ * <pre>
+ *     view.wrap(data, length);
+ *     while (view.next())
+ *         if (view.getSection() == DNSMessageView.ANSWER &amp;&amp; view.nameEquals(hostName))
+ *             cache.addResult(view.toResourceRecord());
+ * </pre>
+ * Malformed messages stop the iteration (next returns false) instead of throwing exceptions.
+ */
+public class DNSMessageView {
+    public static final int QUESTION = 0;
+    public static final int ANSWER = 1;
+    public static final int NAMESERVER = 2;
+    public static final int ADDITIONAL = 3;
+
+    private static final int HEADER_LENGTH = 12;
+    private static final int MAX_POINTERS = 64;
+
+    private byte[] data;
+    private int length;
+    private final int[] remaining = new int[4];
+    private int section;
+    private int position;
+
+    private int nameOffset;
+    private int typeCode;
+    private int classCode;
+    private int ttl;
+    private int rdataOffset;
+    private int rdataLength;
+
+    /**
+     * Points the view at a new message, and positions it before the first question. Only the reference to the array
+     * is kept, so the array must not change while the view is in use.
+     *
+     * @param data   The byte array containing the received message.
+     * @param length The length of the data in the array.
+     * @return false if the message is too short to contain a header, true otherwise.
+     */
+    public boolean wrap(byte[] data, int length) {
+        this.data = data;
+        this.length = length;
+        this.section = QUESTION;
+        this.position = HEADER_LENGTH;
+        if (length < HEADER_LENGTH) {
+            remaining[0] = remaining[1] = remaining[2] = remaining[3] = 0;
+            return false;
+        }
+        for (int i = 0; i < 4; i++)
+            remaining[i] = getShort(4 + 2 * i);
+        return true;
+    }
+
+    public int getID() {
+        return getShort(0);
+    }
+
+    public boolean getQR() {
+        return (data[2] & 0x80) != 0;
+    }
+
+    public int getOpcode() {
+        return (data[2] >> 3) & 0xf;
+    }
+
+    public boolean getAA() {
+        return (data[2] & 0x04) != 0;
+    }
+
+    public boolean getTC() {
+        return (data[2] & 0x02) != 0;
+    }
+
+    public int getRcode() {
+        return data[3] & 0xf;
+    }
+
+    public int getCount(int section) {
+        return getShort(4 + 2 * section);
+    }
+
+    /**
+     * Advances the view to the next question or resource record in the message, in order of section.
+     *
+     * @return true if the view now represents a new entry, or false if there are no more entries or the message is
+     * malformed.
+     */
+    public boolean next() {
+        while (section < 4 && remaining[section] == 0)
+            section++;
+        if (section == 4) return false;
+
+        int offset = skipName(position);
+        if (offset < 0 || offset + 4 > length) return fail();
+        nameOffset = position;
+        typeCode = getShort(offset);
+        classCode = getShort(offset + 2);
+        offset += 4;
+        if (section == QUESTION) {
+            ttl = 0;
+            rdataOffset = offset;
+            rdataLength = 0;
+        } else {
+            if (offset + 6 > length) return fail();
+            ttl = (getShort(offset) << 16) | getShort(offset + 2);
+            rdataLength = getShort(offset + 4);
+            rdataOffset = offset + 6;
+            offset = rdataOffset + rdataLength;
+            if (offset > length) return fail();
+        }
+        position = offset;
+        remaining[section]--;
+        return true;
+    }
+
+    private boolean fail() {
+        section = 4;
+        return false;
+    }
+
+    /**
+     * Returns the section of the current entry: QUESTION, ANSWER, NAMESERVER or ADDITIONAL.
+     */
+    public int getSection() {
+        return section;
+    }
+
+    public int getTypeCode() {
+        return typeCode;
+    }
+
+    public RecordType getRecordType() {
+        return RecordType.getByCode(typeCode);
+    }
+
+    public int getClassCode() {
+        return classCode;
+    }
+
+    public RecordClass getRecordClass() {
+        return RecordClass.getByCode(classCode);
+    }
+
+    public int getTTL() {
+        return ttl;
+    }
+
+    public int getRDataOffset() {
+        return rdataOffset;
+    }
+
+    public int getRDataLength() {
+        return rdataLength;
+    }
+
+    /**
+     * Compares the name of the current entry to a host name, ignoring case, without decoding the name.
+     *
+     * @param hostName The host name to compare to, without a trailing dot.
+     * @return true if the names are the same.
+     */
+    public boolean nameEquals(String hostName) {
+        return nameEquals(nameOffset, hostName);
+    }
+
+    /**
+     * Decodes the name of the current entry.
+     *
+     * @return The decoded name.
+     */
+    public String getName() {
+        return readName(nameOffset);
+    }
+
+    /**
+     * Returns a new question object with the name, type and class of the current entry.
+     */
+    public DNSQuestion toQuestion() {
+        return new DNSQuestion(getName(), getRecordType(), getRecordClass());
+    }
+
+    /**
+     * Creates a resource record for the current entry, decoding its data in the same way as DNSMessage.getRR.
+     *
+     * @return The new resource record.
+     */
+    public ResourceRecord toResourceRecord() {
+        DNSQuestion question = toQuestion();
+        switch (question.getRecordType()) {
+            case A:
+            case AAAA:
+                byte[] address = new byte[rdataLength];
+                System.arraycopy(data, rdataOffset, address, 0, rdataLength);
+                try {
+                    return new ResourceRecord(question, ttl, InetAddress.getByAddress(address));
+                } catch (UnknownHostException ignored) {
+                }
+                break;
+            case MX:
+                return new ResourceRecord(question, ttl, readName(rdataOffset + 2));
+            case NS:
+            case CNAME:
+            case PTR:
+                return new ResourceRecord(question, ttl, readName(rdataOffset));
+        }
+        return new ResourceRecord(question, ttl,
+                RData.toTextResult(question.getRecordType(), data, length, rdataOffset, rdataLength));
+    }
+
+    /**
+     * Returns the offset immediately after the (possibly compressed) name starting at offset, or -1 if the name is
+     * malformed.
+     */
+    private int skipName(int offset) {
+        while (offset < length) {
+            int len = data[offset] & 0xff;
+            if (len == 0) return offset + 1;
+            if ((len & 0xc0) == 0xc0) return offset + 2 <= length ? offset + 2 : -1;
+            offset += len + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Follows compression pointers, returning the offset of the next label length byte, or -1 if the pointer chain
+     * is malformed.
+     */
+    private int resolvePointers(int offset) {
+        for (int jumps = 0; offset >= 0 && offset < length; jumps++) {
+            int len = data[offset] & 0xff;
+            if ((len & 0xc0) != 0xc0) return offset;
+            if (jumps == MAX_POINTERS || offset + 1 >= length) return -1;
+            offset = ((len & 0x3f) << 8) | (data[offset + 1] & 0xff);
+        }
+        return -1;
+    }
+
+    private boolean nameEquals(int offset, String hostName) {
+        int i = 0;
+        int jumps = 0;
+        while (true) {
+            int next = resolvePointers(offset);
+            if (next < 0 || jumps++ > MAX_POINTERS) return false;
+            offset = next;
+            int len = data[offset++] & 0xff;
+            if (len == 0) return i == hostName.length();
+            if (i > 0) {
+                if (i >= hostName.length() || hostName.charAt(i) != '.') return false;
+                i++;
+            }
+            if (offset + len > length || i + len > hostName.length()) return false;
+            for (int j = 0; j < len; j++) {
+                if (Character.toLowerCase((char) (data[offset + j] & 0xff)) !=
+                        Character.toLowerCase(hostName.charAt(i + j)))
+                    return false;
+            }
+            i += len;
+            offset += len;
+        }
+    }
+
+    private String readName(int offset) {
+        StringBuilder name = new StringBuilder();
+        int jumps = 0;
+        while (true) {
+            int next = resolvePointers(offset);
+            if (next < 0 || jumps++ > MAX_POINTERS) break;
+            offset = next;
+            int len = data[offset++] & 0xff;
+            if (len == 0 || offset + len > length) break;
+            if (name.length() > 0) name.append('.');
+            name.append(new String(data, offset, len, StandardCharsets.UTF_8));
+            offset += len;
+        }
+        return name.toString();
+    }
+
+    private int getShort(int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+}
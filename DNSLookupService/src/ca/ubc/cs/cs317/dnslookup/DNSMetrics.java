@@ -0,0 +1,377 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of the activity of the resolver: queries sent to nameservers, retransmissions, timeouts,
+ * datagrams ignored because they did not match an outstanding query, bytes sent and received, latency of each query
+ * (hop) and of each lookup (end to end), and the number of delegations followed by each lookup. Cache hits and misses
+ * are kept by DNSCache, and are only included here for convenience. The metrics are shared by all lookup services, and
+ * can be read through JMX (see DNSMetricsMXBean) or printed with the "stats" command of DNSLookupCUI.
+ * <p>
+ * Metrics are disabled by default (unless the system property dnslookup.metrics is set to true), in which case each
+ * recording method returns after reading a single volatile field, and the query path does not even read the clock
+ * (see startTimer). Counters use LongAdder and histograms use atomic buckets, so that recording is cheap and does not
+ * contend between threads.
+ */
+public class DNSMetrics implements DNSMetricsMXBean {
+
+    public static final String OBJECT_NAME = "ca.ubc.cs.cs317.dnslookup:type=DNSMetrics";
+
+    private static final DNSMetrics instance = new DNSMetrics();
+
+    static {
+        if (Boolean.getBoolean("dnslookup.metrics"))
+            instance.setEnabled(true);
+    }
+
+    private volatile boolean enabled = false;
+    private boolean registered = false;
+
+    private final LongAdder queriesSent = new LongAdder();
+    private final LongAdder retransmissions = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder responsesReceived = new LongAdder();
+    private final LongAdder responsesIgnored = new LongAdder();
+    private final LongAdder tcpQueries = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final Histogram queryLatency = new Histogram();
+    private final Histogram lookupLatency = new Histogram();
+    private final Histogram delegationDepth = new Histogram();
+
+    public static DNSMetrics getInstance() {
+        return instance;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables recording. Metrics recorded so far are kept (see reset). The first time metrics are
+     * enabled, they are also registered with the platform MBean server.
+     *
+     * @param enabled true to record metrics, false to stop recording.
+     */
+    @Override
+    public synchronized void setEnabled(boolean enabled) {
+        if (enabled && !registered && this == instance) {
+            registered = true;
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                server.registerMBean(this, new ObjectName(OBJECT_NAME));
+            } catch (JMException | SecurityException e) {
+                System.err.println("Could not register metrics with JMX (" + e.getMessage() + ").");
+            }
+        }
+        this.enabled = enabled;
+    }
+
+    /**
+     * Clears all counters and histograms (other than those of the cache).
+     */
+    @Override
+    public void reset() {
+        for (LongAdder counter : new LongAdder[]{queriesSent, retransmissions, timeouts, responsesReceived,
+                responsesIgnored, tcpQueries, bytesSent, bytesReceived})
+            counter.reset();
+        queryLatency.reset();
+        lookupLatency.reset();
+        delegationDepth.reset();
+    }
+
+    /**
+     * Returns the current time (as in System.nanoTime), to be passed later to a recording method, or 0 if metrics are
+     * disabled.
+     */
+    long startTimer() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a query sent to a nameserver over UDP.
+     *
+     * @param bytes          Length of the query.
+     * @param retransmission true if the same query was already sent (to the same or to another server).
+     */
+    void querySent(int bytes, boolean retransmission) {
+        if (!enabled) return;
+        queriesSent.increment();
+        bytesSent.add(bytes);
+        if (retransmission) retransmissions.increment();
+    }
+
+    /**
+     * Records a query that received no response within the retransmission timeout of its server.
+     */
+    void queryTimedOut() {
+        if (!enabled) return;
+        timeouts.increment();
+    }
+
+    /**
+     * Records a response received over UDP.
+     *
+     * @param bytes    Length of the response.
+     * @param rttNanos Time since the query was sent, or a negative value if it cannot be measured unambiguously
+     *                 (i.e., if the query was retransmitted).
+     */
+    void responseReceived(int bytes, long rttNanos) {
+        if (!enabled) return;
+        responsesReceived.increment();
+        bytesReceived.add(bytes);
+        if (rttNanos >= 0) queryLatency.record(rttNanos / 1000);
+    }
+
+    /**
+     * Records a datagram that was ignored because it is not a valid response to an outstanding query (e.g., a
+     * response to a query that was already answered, or a spoofed response).
+     */
+    void responseIgnored() {
+        if (!enabled) return;
+        responsesIgnored.increment();
+    }
+
+    /**
+     * Records a query sent again over TCP, after a truncated response.
+     *
+     * @param bytesSent     Length of the query.
+     * @param bytesReceived Length of the response, or 0 if none was received.
+     */
+    void tcpQuerySent(int bytesSent, int bytesReceived) {
+        if (!enabled) return;
+        tcpQueries.increment();
+        this.bytesSent.add(bytesSent);
+        this.bytesReceived.add(bytesReceived);
+    }
+
+    /**
+     * Records the end of a lookup that queried nameservers (i.e., that was not answered from the cache).
+     *
+     * @param start       The time when the lookup started, as returned by startTimer.
+     * @param delegations Number of referrals followed, or a negative value if unknown.
+     */
+    void lookupCompleted(long start, int delegations) {
+        if (!enabled || start == 0) return;
+        lookupLatency.record((System.nanoTime() - start) / 1000);
+        if (delegations >= 0) delegationDepth.record(delegations);
+    }
+
+    @Override
+    public long getQueriesSent() {
+        return queriesSent.sum();
+    }
+
+    @Override
+    public long getRetransmissions() {
+        return retransmissions.sum();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getResponsesReceived() {
+        return responsesReceived.sum();
+    }
+
+    @Override
+    public long getResponsesIgnored() {
+        return responsesIgnored.sum();
+    }
+
+    @Override
+    public long getTcpQueries() {
+        return tcpQueries.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getLookups() {
+        return lookupLatency.count.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return DNSCache.getInstance().getStatistics().getHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return DNSCache.getInstance().getStatistics().getMisses();
+    }
+
+    @Override
+    public Distribution getQueryLatency() {
+        return queryLatency.snapshot();
+    }
+
+    @Override
+    public Distribution getLookupLatency() {
+        return lookupLatency.snapshot();
+    }
+
+    @Override
+    public Distribution getDelegationDepth() {
+        return delegationDepth.snapshot();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("metrics %s\n" +
+                        "queries: %d sent (%d retransmitted), %d timed out, %d responses (%d ignored), %d over TCP\n" +
+                        "bytes: %d sent, %d received\n" +
+                        "query latency (us): %s\n" +
+                        "lookups: %d, latency (us): %s\n" +
+                        "delegations per lookup: %s\n" +
+                        "cache: %d hits, %d misses",
+                enabled ? "ON" : "OFF", getQueriesSent(), getRetransmissions(), getTimeouts(),
+                getResponsesReceived(), getResponsesIgnored(), getTcpQueries(), getBytesSent(), getBytesReceived(),
+                getQueryLatency(), getLookups(), getLookupLatency(), getDelegationDepth(), getCacheHits(),
+                getCacheMisses());
+    }
+
+    /**
+     * A histogram of non-negative values, with 8 buckets per power of two, so that percentiles are accurate to within
+     * 12.5%. Values below 8 have a bucket each.
+     */
+    static class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(bucketIndex(Long.MAX_VALUE) + 1);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        private static int bucketIndex(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        /**
+         * Returns the largest value that falls in a bucket.
+         */
+        private static long bucketLimit(int index) {
+            if (index < SUB_BUCKETS) return index;
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long subBucket = index % SUB_BUCKETS;
+            return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+
+        void record(long value) {
+            if (value < 0) value = 0;
+            buckets.incrementAndGet(bucketIndex(value));
+            count.increment();
+            sum.add(value);
+            if (value > max.get())
+                max.accumulateAndGet(value, Math::max);
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++)
+                buckets.set(i, 0);
+            count.reset();
+            sum.reset();
+            max.set(0);
+        }
+
+        /**
+         * Returns a snapshot of the histogram. Values recorded while the snapshot is taken may be only partially
+         * included.
+         */
+        Distribution snapshot() {
+            long[] counts = new long[buckets.length()];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++)
+                total += counts[i] = buckets.get(i);
+            long maximum = max.get();
+            return new Distribution(total, total == 0 ? 0 : (double) sum.sum() / total,
+                    percentile(counts, total, 0.50, maximum), percentile(counts, total, 0.90, maximum),
+                    percentile(counts, total, 0.99, maximum), maximum);
+        }
+
+        private static long percentile(long[] counts, long total, double fraction, long maximum) {
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) return Math.min(bucketLimit(i), maximum);
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * A snapshot of a histogram: the number of values recorded, their mean, some percentiles (the upper limit of the
+     * bucket where each falls) and the maximum.
+     */
+    public static class Distribution {
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        private Distribution(long count, double mean, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count %d, mean %.1f, p50 %d, p90 %d, p99 %d, max %d", count, mean, p50, p90, p99,
+                    max);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/**
+ * Management interface of DNSMetrics, registered with the platform MBean server (e.g., visible in JConsole or
+ * VisualVM) under DNSMetrics.OBJECT_NAME. Latencies are in microseconds.
+ */
+public interface DNSMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    void reset();
+
+    long getQueriesSent();
+
+    long getRetransmissions();
+
+    long getTimeouts();
+
+    long getResponsesReceived();
+
+    long getResponsesIgnored();
+
+    long getTcpQueries();
+
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getLookups();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    DNSMetrics.Distribution getQueryLatency();
+
+    DNSMetrics.Distribution getLookupLatency();
+
+    DNSMetrics.Distribution getDelegationDepth();
+}
@@ -1,26 +1,51 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Serializable;
-import java.util.Objects;
 
 /** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
- * Each node represents a fully-qualified domain name (represented by hostName) and a record
- * type. Two nodes with the same host name and type are considered equal.
+ * Each node represents a fully-qualified domain name (represented by an interned DomainName) and a record
+ * type. Two nodes with the same host name (ignoring case) and type are considered equal, and since names are
+ * interned, names are compared by identity.
  */
 public class DNSQuestion implements Comparable<DNSQuestion>, Serializable {
 
-    private final String hostName;
+    private final DomainName name;
     private final RecordType type;
     private final RecordClass recordClass;
+    private final int hash;
 
     public DNSQuestion(String hostName, RecordType type, RecordClass recordClass) {
-        this.hostName = hostName;
+        this(DomainName.of(hostName), type, recordClass);
+    }
+
+    public DNSQuestion(DomainName name, RecordType type, RecordClass recordClass) {
+        this.name = name;
         this.type = type;
         this.recordClass = recordClass;
+        // Hash is computed once, from the hash already computed by the name, so it is cheap to use as a cache key.
+        this.hash = (name.hashCode() * 31 + type.getCode()) * 31 + recordClass.getCode();
+    }
+
+    /**
+     * Returns a question for the same name and class, with another record type (e.g., the CNAME question for a name),
+     * without looking up the name again.
+     *
+     * @param type The record type of the new question.
+     * @return The new question, or this question if it already has that type.
+     */
+    public DNSQuestion withType(RecordType type) {
+        return type == this.type ? this : new DNSQuestion(name, type, recordClass);
     }
 
+    /**
+     * Returns the host name of this question, in lower case.
+     */
     public String getHostName() {
-        return hostName;
+        return name.toString();
+    }
+
+    public DomainName getName() {
+        return name;
     }
 
     public RecordType getRecordType() {
@@ -33,15 +58,13 @@ public class DNSQuestion implements Comparable<DNSQuestion>, Serializable {
 
     @Override
     public String toString() {
-        return (hostName.isEmpty() ? "<root>" : hostName) + " (" + type + ")";
+        return (name == DomainName.ROOT ? "<root>" : name.toString()) + " (" + type + ")";
     }
 
     @Override
     public int compareTo(DNSQuestion o) {
-        if (!hostName.equalsIgnoreCase(o.hostName))
-            return hostName.compareToIgnoreCase(o.hostName);
-        if (!hostName.equals(o.hostName))
-            return hostName.compareTo(o.hostName);
+        if (name != o.name)
+            return name.compareTo(o.name);
         if (!recordClass.equals(o.recordClass))
             return recordClass.compareTo(o.recordClass);
         return type.compareTo(o.type);
@@ -52,11 +75,11 @@ public class DNSQuestion implements Comparable<DNSQuestion>, Serializable {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         DNSQuestion that = (DNSQuestion) o;
-        return hostName.equals(that.hostName) && type == that.type && recordClass == that.recordClass;
+        return hash == that.hash && type == that.type && recordClass == that.recordClass && name.equals(that.name);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(hostName, type, recordClass);
+        return hash;
     }
 }
@@ -0,0 +1,530 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A caching DNS server, so the resolver can be used by other hosts and applications (e.g., as the nameserver in
+ * /etc/resolv.conf) instead of only through DNSLookupCUI. Clients send regular (recursive) queries over UDP or TCP,
+ * and the server answers them from the shared DNSCache, or resolves them iteratively (see
+ * DNSLookupService.getResultsFollowingCNames), following CNAME records, so clients always receive the final records.
+ * <p>
+ * Queries are answered by a fixed pool of worker threads, each with its own DNSLookupService, so that a slow lookup
+ * only holds up a single worker. Alternatively, each query can run on its own thread, with its own DNSLookupService
+ * (and socket), which is only practical with virtual threads (see DNSLookupService.newThreadPerTaskExecutor), but then
+ * allows tens of thousands of lookups at once. Concurrent queries for the same question share a single lookup (see
+ * DNSLookupService.getResults). A receiver thread reads UDP queries and hands them to the workers; if too many queries
+ * are already waiting (or running, with a thread per query), new ones are dropped, and clients will retry. TCP
+ * connections are read by a thread each, and may carry several queries, whose responses are sent as soon as they are
+ * ready (possibly out of order).
+ * <p>
+ * UDP responses are limited to 512 bytes, or to the payload size advertised by the client with EDNS(0), and are
+ * truncated if they do not fit, so the client retries over TCP. A question with no results because of a negative
+ * answer receives the same answer as the resolver (see DNSCache.getNegativeResult): a name error (NXDOMAIN) if the
+ * name does not exist, or an empty NOERROR response otherwise, with the SOA record of the zone in the authority
+ * section. A question that could not be resolved receives a server failure (SERVFAIL).
+ * <p>
+ * Responses to questions whose records are all cached and valid are assembled from records already encoded in wire
+ * format (see DNSCache.getWireRRset and WireRRset), by copying the question from the query and the encoded records
+ * from the cache, and setting their TTLs, instead of encoding every record of every response. Other responses are
+ * built with DNSMessage.
+ */
+public class DNSResolverServer implements AutoCloseable {
+
+    public static final int DEFAULT_PORT = 5300;
+    public static final int DEFAULT_WORKERS = 16;
+    private static final int MAX_PENDING_QUERIES = 10000;
+    private static final int MAX_INDIRECTION_LEVEL_CNAME = 10;
+    private static final int MAX_EDNS_PAYLOAD_SIZE = 4096;
+
+    private final DNSCache cache = DNSCache.getInstance();
+    private final String nameServer;
+    private final int upstreamPort;
+    private final DatagramSocket socket;
+    private final ServerSocket tcpSocket;
+    private final Thread thread;
+    private final Thread tcpThread;
+    private final ExecutorService workers;
+    private final boolean threadPerQuery;
+    private final Semaphore activeQueries = new Semaphore(MAX_PENDING_QUERIES);
+    private final List<DNSLookupService> services = Collections.synchronizedList(new ArrayList<>());
+    private final ThreadLocal<DNSLookupService> service = ThreadLocal.withInitial(this::newLookupService);
+    private final Set<Socket> tcpConnections = Collections.synchronizedSet(new HashSet<>());
+
+    private final AtomicLong queriesReceived = new AtomicLong();
+    private final AtomicLong queriesDropped = new AtomicLong();
+    private final AtomicLong responsesSent = new AtomicLong();
+    private final AtomicLong responsesTruncated = new AtomicLong();
+    private final AtomicLong serverFailures = new AtomicLong();
+    private volatile boolean wireAnswers = true;
+
+    /**
+     * Creates a new server, and starts listening for queries.
+     *
+     * @param address      The address and port where the server listens, over both UDP and TCP.
+     * @param nameServer   The nameserver where lookups start, as in DNSLookupService. If set to null, "root" or
+     *                     "random", will choose a random pre-determined root nameserver.
+     * @param upstreamPort The port to which queries are sent to nameservers (normally DEFAULT_DNS_PORT).
+     * @param workers      The number of worker threads, or 0 to run each query on its own thread.
+     * @throws IOException If the sockets cannot be created, or the nameserver is not a valid server.
+     */
+    public DNSResolverServer(InetSocketAddress address, String nameServer, int upstreamPort, int workers)
+            throws IOException {
+        // Fail early on an invalid nameserver, instead of in every worker
+        new DNSLookupService(nameServer, null).close();
+        this.nameServer = nameServer;
+        this.upstreamPort = upstreamPort;
+        this.socket = new DatagramSocket(address);
+        try {
+            // Same port as the UDP socket, which may have been chosen by the system
+            this.tcpSocket = new ServerSocket(socket.getLocalPort(), 50, address.getAddress());
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        this.threadPerQuery = workers == 0;
+        this.workers = threadPerQuery ? DNSLookupService.newThreadPerTaskExecutor("dns-resolver-query")
+                : new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDING_QUERIES), r -> {
+            Thread t = new Thread(r, "dns-resolver-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        this.thread = new Thread(this::run, "dns-resolver-" + address);
+        this.thread.setDaemon(true);
+        this.thread.start();
+        this.tcpThread = new Thread(this::acceptTcp, "dns-resolver-tcp-" + address);
+        this.tcpThread.setDaemon(true);
+        this.tcpThread.start();
+    }
+
+    private DNSLookupService newLookupService() {
+        try {
+            DNSLookupService lookupService = new DNSLookupService(nameServer, SilentPrinter.INSTANCE);
+            lookupService.setPort(upstreamPort);
+            if (!threadPerQuery)
+                services.add(lookupService);
+            return lookupService;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Enables or disables assembling responses from records cached in wire format (enabled by default). When
+     * disabled, every response is encoded with DNSMessage.
+     */
+    public void setWireAnswers(boolean wireAnswers) {
+        this.wireAnswers = wireAnswers;
+    }
+
+    /**
+     * Returns the address and port where the server is listening. Useful if the server was created with port 0.
+     */
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) socket.getLocalSocketAddress();
+    }
+
+    public long getQueriesReceived() {
+        return queriesReceived.get();
+    }
+
+    /**
+     * Returns the number of queries dropped because too many queries were waiting for a worker.
+     */
+    public long getQueriesDropped() {
+        return queriesDropped.get();
+    }
+
+    public long getResponsesSent() {
+        return responsesSent.get();
+    }
+
+    public long getResponsesTruncated() {
+        return responsesTruncated.get();
+    }
+
+    public long getServerFailures() {
+        return serverFailures.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("queries %d, dropped %d, responses %d (truncated %d, server failures %d)",
+                getQueriesReceived(), getQueriesDropped(), getResponsesSent(), getResponsesTruncated(),
+                getServerFailures());
+    }
+
+    /**
+     * Stops listening, closes all connections and waits for queries in progress to end.
+     */
+    @Override
+    public void close() {
+        socket.close();
+        try {
+            tcpSocket.close();
+        } catch (IOException ignored) {
+        }
+        synchronized (tcpConnections) {
+            for (Socket connection : tcpConnections) {
+                try {
+                    connection.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        workers.shutdown();
+        try {
+            thread.join();
+            tcpThread.join();
+            workers.awaitTermination(DNSLookupService.SO_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (services) {
+            services.forEach(DNSLookupService::close);
+        }
+    }
+
+    /**
+     * Main loop of the receiver thread: reads UDP queries and hands them to the workers.
+     */
+    private void run() {
+        byte[] data = new byte[MAX_EDNS_PAYLOAD_SIZE];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        while (!socket.isClosed()) {
+            try {
+                packet.setData(data);
+                socket.receive(packet);
+            } catch (IOException e) {
+                continue;
+            }
+            queriesReceived.incrementAndGet();
+            byte[] query = Arrays.copyOf(data, packet.getLength());
+            SocketAddress client = packet.getSocketAddress();
+            submit(() -> {
+                byte[] response = answer(query, query.length, false);
+                if (response == null) return;
+                responsesSent.incrementAndGet();
+                try {
+                    socket.send(new DatagramPacket(response, response.length, client));
+                } catch (IOException ignored) {
+                }
+            });
+        }
+    }
+
+    private void submit(Runnable task) {
+        if (!threadPerQuery) {
+            try {
+                workers.execute(task);
+            } catch (RejectedExecutionException e) {
+                queriesDropped.incrementAndGet();
+            }
+            return;
+        }
+        // Threads are created on demand, so the limit is on the number of queries in progress
+        if (!activeQueries.tryAcquire()) {
+            queriesDropped.incrementAndGet();
+            return;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    activeQueries.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            activeQueries.release();
+            queriesDropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Accepts TCP connections, and reads the queries received on each of them (in a separate thread per connection)
+     * until the client closes it.
+     */
+    private void acceptTcp() {
+        while (!tcpSocket.isClosed()) {
+            Socket connection;
+            try {
+                connection = tcpSocket.accept();
+            } catch (IOException e) {
+                continue;
+            }
+            tcpConnections.add(connection);
+            Thread reader = new Thread(() -> serveTcp(connection), "dns-resolver-tcp-connection");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    private void serveTcp(Socket connection) {
+        try (Socket s = connection) {
+            DataInputStream input = new DataInputStream(s.getInputStream());
+            DataOutputStream output = new DataOutputStream(s.getOutputStream());
+            while (true) {
+                byte[] query = new byte[input.readUnsignedShort()];
+                input.readFully(query);
+                queriesReceived.incrementAndGet();
+                submit(() -> {
+                    byte[] response = answer(query, query.length, true);
+                    if (response == null) return;
+                    responsesSent.incrementAndGet();
+                    try {
+                        synchronized (output) {
+                            output.writeShort(response.length);
+                            output.write(response);
+                            output.flush();
+                        }
+                    } catch (IOException ignored) {
+                    }
+                });
+            }
+        } catch (IOException ignored) {
+            // Closed by the client (or by close)
+        } finally {
+            tcpConnections.remove(connection);
+        }
+    }
+
+    /**
+     * Builds the response to a query, resolving the question if needed. Must be called on a worker thread (or, with
+     * a thread per query, on the thread of the query).
+     *
+     * @param data   The received query.
+     * @param length The length of the query.
+     * @param tcp    True if the query was received over TCP.
+     * @return The encoded response, or null if the query is malformed or is not a query.
+     */
+    byte[] answer(byte[] data, int length, boolean tcp) {
+        DNSMessage query;
+        DNSQuestion question = null;
+        int ednsPayloadSize = 0;
+        try {
+            query = new DNSMessage(data, length);
+            if (query.getQR()) return null;
+            if (query.getOpcode() == DNSMessage.QUERY && query.getQDCount() == 1) {
+                question = query.getQuestion();
+                DNSMessageView view = new DNSMessageView();
+                view.wrap(data, length);
+                while (view.next())
+                    if (view.getSection() == DNSMessageView.ADDITIONAL &&
+                            view.getTypeCode() == RecordType.OPT.getCode())
+                        ednsPayloadSize = Math.max(DNSMessage.MAX_DNS_MESSAGE_LENGTH, view.getClassCode());
+            }
+        } catch (RuntimeException e) {
+            return null;
+        }
+
+        int maxLength = tcp ? DNSMessage.MAX_TCP_MESSAGE_LENGTH : ednsPayloadSize > 0
+                ? Math.min(ednsPayloadSize, MAX_EDNS_PAYLOAD_SIZE) : DNSMessage.MAX_DNS_MESSAGE_LENGTH;
+        Collection<ResourceRecord> answers = Collections.emptyList();
+        ResourceRecord soa = null;
+        int rcode = 0;
+        if (question == null) {
+            rcode = 4; // Not implemented
+        } else if (question.getRecordClass() != RecordClass.IN || question.getRecordType() == RecordType.OTHER ||
+                question.getRecordType() == RecordType.OPT) {
+            rcode = 4; // Not implemented
+        } else {
+            byte[] response = wireAnswers ? assembleResponse(data, length, question, ednsPayloadSize > 0, maxLength)
+                    : null;
+            if (response != null) return response;
+
+            DNSLookupService lookupService = null;
+            try {
+                lookupService = threadPerQuery ? newLookupService() : service.get();
+                answers = lookupService.getResultsFollowingCNames(question, MAX_INDIRECTION_LEVEL_CNAME);
+                if (answers.isEmpty()) {
+                    DNSCache.NegativeResult negative = cache.getNegativeResult(question);
+                    if (negative == null) {
+                        rcode = 2; // Server failure
+                    } else {
+                        rcode = negative.getRcode();
+                        soa = negative.getSOA();
+                    }
+                }
+            } catch (DNSLookupService.CNameIndirectionLimitException | UncheckedIOException e) {
+                rcode = 2; // Server failure
+            } finally {
+                if (threadPerQuery && lookupService != null)
+                    lookupService.close();
+            }
+        }
+        if (rcode == 2) serverFailures.incrementAndGet();
+
+        try {
+            return buildResponse(query, question, rcode, false, ednsPayloadSize > 0, maxLength, answers, soa);
+        } catch (BufferOverflowException e) {
+            // Does not fit in a UDP message, so send a truncated response instead
+            responsesTruncated.incrementAndGet();
+            return buildResponse(query, question, rcode, true, ednsPayloadSize > 0, maxLength,
+                    Collections.emptyList(), null);
+        }
+    }
+
+    /**
+     * Builds the response to a query from records cached in wire format (see DNSCache.getWireRRset), following CNAME
+     * records, without encoding any record. The question is copied from the query (so the response keeps the case
+     * of the name, as sent by the client), the owner names of the first records are pointers to the question, and
+     * the owner names of the records after a CNAME record are pointers to its canonical name.
+     *
+     * @return The encoded response, or null if it cannot be built this way (e.g., some records are not cached, or
+     * have expired, or the response does not fit), in which case it must be built with buildResponse.
+     */
+    private byte[] assembleResponse(byte[] data, int length, DNSQuestion question, boolean edns, int maxLength) {
+        int questionEnd = 12;
+        while (questionEnd < length && data[questionEnd] != 0) {
+            // A compressed question name is valid, but too unusual to be worth copying
+            if ((data[questionEnd] & 0xc0) != 0) return null;
+            questionEnd += (data[questionEnd] & 0xff) + 1;
+        }
+        questionEnd += 5; // Terminating label, type and class
+        if (questionEnd > length) return null;
+
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(maxLength);
+            buffer.put(data, 0, 2); // ID
+            buffer.put((byte) (0x80 | data[2] & 0x01)); // QR, and RD as in the query
+            buffer.put((byte) 0x80); // RA
+            buffer.putShort((short) 1).putShort((short) 0).putShort((short) 0).putShort((short) (edns ? 1 : 0));
+            buffer.put(data, 12, questionEnd - 12);
+
+            long now = System.currentTimeMillis();
+            DNSQuestion current = question;
+            int owner = 12, answers = 0;
+            for (int i = 0; i <= MAX_INDIRECTION_LEVEL_CNAME; i++) {
+                WireRRset rrset = cache.getWireRRset(current);
+                if (rrset == null) return null;
+                int target = rrset.appendTo(buffer, owner, now, ThreadLocalRandom.current().nextInt());
+                answers += rrset.getCount();
+                if (rrset.getRecordType() != RecordType.CNAME || question.getRecordType() == RecordType.CNAME) {
+                    buffer.putShort(6, (short) answers);
+                    if (edns) {
+                        // Same as DNSMessage.addOpt
+                        buffer.put((byte) 0).putShort((short) RecordType.OPT.getCode())
+                                .putShort((short) MAX_EDNS_PAYLOAD_SIZE).putInt(0).putShort((short) 0);
+                    }
+                    return Arrays.copyOf(buffer.array(), buffer.position());
+                }
+                // Several CNAME records for a name are not valid, and are left to getResultsFollowingCNames
+                if (rrset.getTarget() == null || target > WireRRset.MAX_POINTER_OFFSET) return null;
+                owner = target;
+                current = new DNSQuestion(rrset.getTarget(), question.getRecordType(), question.getRecordClass());
+            }
+            return null;
+        } catch (BufferOverflowException e) {
+            return null;
+        }
+    }
+
+    private static byte[] buildResponse(DNSMessage query, DNSQuestion question, int rcode, boolean truncated,
+                                        boolean edns, int maxLength, Collection<ResourceRecord> answers,
+                                        ResourceRecord soa) {
+        DNSMessage response = new DNSMessage((short) query.getID(), maxLength);
+        response.setQR(true);
+        response.setOpcode(query.getOpcode());
+        response.setRD(query.getRD());
+        response.setRA(true);
+        response.setTC(truncated);
+        response.setRcode(rcode);
+        if (question != null)
+            response.addQuestion(question);
+        answers.forEach(r -> response.addResourceRecord(r, "answer"));
+        if (soa != null)
+            response.addResourceRecord(soa, "nameserver");
+        if (edns)
+            response.addOpt(MAX_EDNS_PAYLOAD_SIZE);
+        return response.getUsed();
+    }
+
+    /**
+     * Starts a server, and waits until the process is stopped. Statistics are printed when the process ends.
+     * <p>
+     * Usage: java ca.ubc.cs.cs317.dnslookup.DNSResolverServer [-b address] [-p port] [-w workers] [-s nameServer]
+     * [-u upstreamPort] [-c cacheFile] [-e]
+     * <p>
+     * By default, the server listens on 127.0.0.1, port 5300, and resolves names from a random root nameserver. With
+     * "-w 0", each query runs on its own (virtual, if available) thread instead of a fixed pool of workers. For
+     * example, "-s 127.0.0.2 -u 5353" resolves names in the local test tree served by DNSZoneServer (see "make zones").
+     * If a cache file is given, the cache is loaded from it on start (if it exists) and saved to it on exit. With "-e",
+     * every response is encoded with DNSMessage, instead of being assembled from cached wire-format records.
+     *
+     * @param args list of arguments specified in the command line.
+     */
+    public static void main(String[] args) {
+        String address = "127.0.0.1", nameServer = null, cacheFile = null;
+        int port = DEFAULT_PORT, workers = DEFAULT_WORKERS, upstreamPort = DNSLookupService.DEFAULT_DNS_PORT;
+        boolean wireAnswers = true;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-b": address = args[++i]; break;
+                    case "-p": port = Integer.parseInt(args[++i]); break;
+                    case "-w": workers = Integer.parseInt(args[++i]); break;
+                    case "-s": nameServer = args[++i]; break;
+                    case "-u": upstreamPort = Integer.parseInt(args[++i]); break;
+                    case "-c": cacheFile = args[++i]; break;
+                    case "-e": wireAnswers = false; break;
+                    default: throw new IllegalArgumentException(args[i]);
+                }
+            }
+            if (workers < 0) throw new IllegalArgumentException("workers");
+        } catch (RuntimeException e) {
+            System.err.println("Invalid call. Usage:");
+            System.err.println("\tjava ca.ubc.cs.cs317.dnslookup.DNSResolverServer [-b address] [-p port] " +
+                    "[-w workers] [-s nameServer] [-u upstreamPort] [-c cacheFile] [-e]");
+            System.exit(1);
+            return;
+        }
+
+        DNSCache cache = DNSCache.getInstance();
+        Path cachePath = cacheFile != null ? Paths.get(cacheFile) : null;
+        if (cachePath != null && Files.exists(cachePath)) {
+            try {
+                System.out.println("Loaded " + cache.loadSnapshot(cachePath) + " cached records.");
+            } catch (IOException e) {
+                System.err.println("Could not load cache (" + e.getMessage() + ").");
+            }
+        }
+
+        DNSResolverServer server;
+        try {
+            server = new DNSResolverServer(new InetSocketAddress(address, port), nameServer, upstreamPort, workers);
+        } catch (IOException e) {
+            System.err.println("Could not start server (" + e.getMessage() + ").");
+            System.exit(1);
+            return;
+        }
+        server.setWireAnswers(wireAnswers);
+        System.out.println("Serving on " + server.getAddress() + " with " + (workers > 0 ? workers + " workers" :
+                DNSLookupService.VIRTUAL_THREADS_AVAILABLE ? "a virtual thread per query" : "a thread per query"));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            System.out.println(server);
+            System.out.println(cache.getStatistics());
+            if (cachePath != null) {
+                try {
+                    cache.saveSnapshot(cachePath);
+                } catch (IOException e) {
+                    System.err.println("Could not save cache (" + e.getMessage() + ").");
+                }
+            }
+        }));
+        try {
+            Thread.currentThread().join();
+        } catch (InterruptedException ignored) {
+        }
+    }
+}
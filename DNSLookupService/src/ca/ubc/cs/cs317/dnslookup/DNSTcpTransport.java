@@ -0,0 +1,153 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends DNS queries over TCP, used when the response to a UDP query is truncated (TC bit set). Each message is
+ * preceded by its length, in two bytes (RFC 1035, section 4.2.2).
+ * <p>
+ * Connections are not closed after a query, but kept open and reused for later queries to the same server, as
+ * recommended by RFC 7766, until they have been idle for IDLE_TIMEOUT_MILLIS. A connection is only used by one query
+ * at a time: concurrent queries to the same server open additional connections, and at most one idle connection is
+ * kept per server. Servers may close idle connections at any time, so a query that fails on a reused connection is
+ * sent again on a new one.
+ */
+class DNSTcpTransport implements AutoCloseable {
+
+    static final int IDLE_TIMEOUT_MILLIS = 10000;
+
+    private final Map<InetSocketAddress, Connection> idle = new HashMap<>();
+    private int connectionsOpened = 0;
+    private boolean closed = false;
+
+    /**
+     * Sends a query to a server and waits for its response.
+     *
+     * @param query         The encoded query.
+     * @param server        Address and port of the server.
+     * @param timeoutMillis Maximum time to wait for the connection, and for the response.
+     * @return The encoded response, with the same transaction ID as the query.
+     * @throws IOException If the server cannot be reached, closes the connection, or does not respond in time.
+     */
+    byte[] exchange(byte[] query, InetSocketAddress server, int timeoutMillis) throws IOException {
+        Connection connection = take(server);
+        if (connection != null) {
+            try {
+                byte[] response = connection.exchange(query, timeoutMillis);
+                release(server, connection);
+                return response;
+            } catch (IOException e) {
+                // The server probably closed the idle connection, so try again on a new one
+                connection.close();
+            }
+        }
+        connection = new Connection(server, timeoutMillis);
+        synchronized (this) {
+            connectionsOpened++;
+        }
+        try {
+            byte[] response = connection.exchange(query, timeoutMillis);
+            release(server, connection);
+            return response;
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of connections opened so far. Only meant for monitoring and testing.
+     */
+    synchronized int getConnectionsOpened() {
+        return connectionsOpened;
+    }
+
+    /**
+     * Removes the idle connection to a server from the pool, if there is one that has not expired.
+     */
+    private synchronized Connection take(InetSocketAddress server) {
+        Connection connection = idle.remove(server);
+        if (connection != null && System.nanoTime() - connection.lastUsed > IDLE_TIMEOUT_MILLIS * 1_000_000L) {
+            connection.close();
+            return null;
+        }
+        return connection;
+    }
+
+    /**
+     * Returns a connection to the pool once a query ends, unless the pool already has one for the same server.
+     */
+    private void release(InetSocketAddress server, Connection connection) {
+        connection.lastUsed = System.nanoTime();
+        synchronized (this) {
+            if (!closed && idle.putIfAbsent(server, connection) == null)
+                return;
+        }
+        connection.close();
+    }
+
+    /**
+     * Closes all idle connections. Queries in progress may still complete, but their connections are then closed.
+     */
+    @Override
+    public void close() {
+        List<Connection> connections;
+        synchronized (this) {
+            closed = true;
+            connections = new ArrayList<>(idle.values());
+            idle.clear();
+        }
+        connections.forEach(Connection::close);
+    }
+
+    private static class Connection {
+        private final Socket socket;
+        private final DataInputStream input;
+        private final DataOutputStream output;
+        private long lastUsed;
+
+        private Connection(InetSocketAddress server, int timeoutMillis) throws IOException {
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(server, timeoutMillis);
+                input = new DataInputStream(socket.getInputStream());
+                output = new DataOutputStream(socket.getOutputStream());
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        private byte[] exchange(byte[] query, int timeoutMillis) throws IOException {
+            socket.setSoTimeout(timeoutMillis);
+            byte[] message = new byte[query.length + 2];
+            message[0] = (byte) (query.length >> 8);
+            message[1] = (byte) query.length;
+            System.arraycopy(query, 0, message, 2, query.length);
+            output.write(message);
+            output.flush();
+
+            byte[] response = new byte[input.readUnsignedShort()];
+            input.readFully(response);
+            if (response.length < 12 || response[0] != query[0] || response[1] != query[1])
+                throw new IOException("Invalid response received over TCP");
+            return response;
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,581 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.*;
+import java.net.*;
+import java.nio.BufferOverflowException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A minimal authoritative DNS server, used as a local stand-in for real nameservers when testing the resolver. Each
+ * server listens on a single address and port, and serves a single zone loaded from a zone file. Names below the
+ * zone that have NS records are treated as delegations: queries for them receive a referral, with glue addresses
+ * for the nameservers if the zone has them. Several servers on different loopback addresses (e.g., 127.0.0.2,
+ * 127.0.0.3, ...) and the same port can simulate a full delegation tree from the root. Point the resolver at it with
+ * DNSCache.setRootNameServers and DNSLookupService.setPort.
+ * <p>
+ * To simulate real network conditions, each server can delay its responses (latency plus random jitter), drop a
+ * fraction of the queries, and truncate a fraction of the responses (TC bit set, no records).
+ * <p>
+ * Queries are also accepted over TCP, on the same address and port, where responses are never truncated and
+ * connections stay open for further queries. Over UDP, responses are limited to 512 bytes, or to the payload size
+ * advertised by the query in an EDNS(0) OPT record (at most MAX_EDNS_PAYLOAD_SIZE).
+ * <p>
+ * Zone files contain one record per line, in the format:
+ * <pre>
+ *     name [ttl] [IN] type data
+ * </pre>
+ * where type is one of A, AAAA, NS, CNAME, PTR, MX, SOA, TXT or SRV, and data follows the usual master file format for
+ * the type (e.g., "mname rname serial refresh retry expire minimum" for SOA), except that the strings of a TXT record
+ * cannot contain spaces. Names ending in a dot are absolute, '@' is the origin, and other names are relative to the
+ * origin. The directives $ORIGIN and $TTL are supported. Anything after a ';' or '#' is ignored.
+ */
+public class DNSZoneServer implements AutoCloseable {
+
+    private static final int DEFAULT_TTL = 3600;
+    static final int MAX_EDNS_PAYLOAD_SIZE = 4096;
+
+    private final String origin;
+    private final Map<DNSQuestion, List<ZoneRecord>> records = new HashMap<>();
+    private final Set<String> names = new HashSet<>();
+    private final DatagramSocket socket;
+    private final Thread thread;
+    private final ServerSocket tcpSocket;
+    private final Thread tcpThread;
+    private final Set<Socket> tcpConnections = Collections.synchronizedSet(new HashSet<>());
+    private final ScheduledExecutorService delayer;
+    private final Random random = new Random();
+
+    private volatile int latencyMillis = 0;
+    private volatile int jitterMillis = 0;
+    private volatile double lossRate = 0;
+    private volatile double truncateRate = 0;
+
+    private final AtomicLong queriesReceived = new AtomicLong();
+    private final AtomicLong queriesDropped = new AtomicLong();
+    private final AtomicLong responsesTruncated = new AtomicLong();
+    private final AtomicLong tcpQueriesReceived = new AtomicLong();
+    private final AtomicLong tcpConnectionsAccepted = new AtomicLong();
+
+    /**
+     * A record as stored in the zone. Records are stored with their original TTL, and a new resource record (with the
+     * full TTL) is created for each response.
+     */
+    private static class ZoneRecord {
+        private final DNSQuestion question;
+        private final int ttl;
+        private final String textResult;
+        private final InetAddress inetResult;
+
+        private ZoneRecord(DNSQuestion question, int ttl, String textResult, InetAddress inetResult) {
+            this.question = question;
+            this.ttl = ttl;
+            this.textResult = textResult;
+            this.inetResult = inetResult;
+        }
+
+        private ResourceRecord toResourceRecord() {
+            return inetResult != null ? new ResourceRecord(question, ttl, inetResult)
+                    : new ResourceRecord(question, ttl, textResult);
+        }
+    }
+
+    /**
+     * Creates a new server for a zone, and starts listening for queries.
+     *
+     * @param address The address and port where the server listens.
+     * @param origin  The origin (apex) of the zone, without a trailing dot. Use "" for the root zone.
+     * @param zone    A reader for the contents of the zone file.
+     * @throws IOException If the zone cannot be read or parsed, or if the sockets cannot be created.
+     */
+    public DNSZoneServer(InetSocketAddress address, String origin, Reader zone) throws IOException {
+        this.origin = canonical(origin);
+        loadZone(new BufferedReader(zone));
+        this.socket = new DatagramSocket(address);
+        try {
+            // Same port as the UDP socket, which may have been chosen by the system
+            this.tcpSocket = new ServerSocket(socket.getLocalPort(), 50, address.getAddress());
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        this.delayer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dns-zone-delay");
+            t.setDaemon(true);
+            return t;
+        });
+        this.thread = new Thread(this::run, "dns-zone-" + address);
+        this.thread.setDaemon(true);
+        this.thread.start();
+        this.tcpThread = new Thread(this::acceptTcp, "dns-zone-tcp-" + address);
+        this.tcpThread.setDaemon(true);
+        this.tcpThread.start();
+    }
+
+    /**
+     * Returns the address and port where the server is listening. Useful if the server was created with port 0.
+     */
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) socket.getLocalSocketAddress();
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Sets the delay applied to each response.
+     *
+     * @param latencyMillis Fixed delay, in milliseconds.
+     * @param jitterMillis  Maximum additional random delay, in milliseconds.
+     */
+    public void setLatency(int latencyMillis, int jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * Sets the fraction of queries that are silently dropped (never answered).
+     *
+     * @param lossRate A value between 0 (no loss) and 1 (all queries dropped).
+     */
+    public void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    /**
+     * Sets the fraction of responses that are truncated. Truncated responses have the TC bit set and contain no
+     * records. Responses that do not fit in a UDP message are always truncated.
+     *
+     * @param truncateRate A value between 0 (no truncation) and 1 (all responses truncated).
+     */
+    public void setTruncateRate(double truncateRate) {
+        this.truncateRate = truncateRate;
+    }
+
+    public long getQueriesReceived() {
+        return queriesReceived.get();
+    }
+
+    public long getQueriesDropped() {
+        return queriesDropped.get();
+    }
+
+    public long getResponsesTruncated() {
+        return responsesTruncated.get();
+    }
+
+    /**
+     * Returns the number of queries received over TCP. These are also included in getQueriesReceived.
+     */
+    public long getTcpQueriesReceived() {
+        return tcpQueriesReceived.get();
+    }
+
+    public long getTcpConnectionsAccepted() {
+        return tcpConnectionsAccepted.get();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+        try {
+            tcpSocket.close();
+        } catch (IOException ignored) {
+        }
+        synchronized (tcpConnections) {
+            for (Socket connection : tcpConnections) {
+                try {
+                    connection.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        delayer.shutdownNow();
+        try {
+            thread.join();
+            tcpThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        byte[] data = new byte[DNSMessage.MAX_DNS_MESSAGE_LENGTH];
+        DatagramPacket packet = new DatagramPacket(data, data.length);
+        while (!socket.isClosed()) {
+            try {
+                packet.setData(data);
+                socket.receive(packet);
+            } catch (IOException e) {
+                continue;
+            }
+            queriesReceived.incrementAndGet();
+            if (lossRate > 0 && random.nextDouble() < lossRate) {
+                queriesDropped.incrementAndGet();
+                continue;
+            }
+            byte[] response = answer(data, packet.getLength(), false);
+            if (response == null) continue;
+
+            DatagramPacket reply = new DatagramPacket(response, response.length, packet.getSocketAddress());
+            int delay = latencyMillis + (jitterMillis > 0 ? random.nextInt(jitterMillis + 1) : 0);
+            if (delay > 0)
+                delayer.schedule(() -> send(reply), delay, TimeUnit.MILLISECONDS);
+            else
+                send(reply);
+        }
+    }
+
+    private void send(DatagramPacket reply) {
+        try {
+            socket.send(reply);
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Accepts TCP connections, and answers the queries received on each of them (in a separate thread per connection)
+     * until the client closes it.
+     */
+    private void acceptTcp() {
+        while (!tcpSocket.isClosed()) {
+            Socket connection;
+            try {
+                connection = tcpSocket.accept();
+            } catch (IOException e) {
+                continue;
+            }
+            tcpConnectionsAccepted.incrementAndGet();
+            tcpConnections.add(connection);
+            Thread handler = new Thread(() -> serveTcp(connection), "dns-zone-tcp-connection");
+            handler.setDaemon(true);
+            handler.start();
+        }
+    }
+
+    private void serveTcp(Socket connection) {
+        try (Socket s = connection) {
+            DataInputStream input = new DataInputStream(s.getInputStream());
+            DataOutputStream output = new DataOutputStream(s.getOutputStream());
+            while (true) {
+                byte[] data = new byte[input.readUnsignedShort()];
+                input.readFully(data);
+                queriesReceived.incrementAndGet();
+                tcpQueriesReceived.incrementAndGet();
+                byte[] response = answer(data, data.length, true);
+                if (response == null) break;
+                int delay = latencyMillis + (jitterMillis > 0 ? random.nextInt(jitterMillis + 1) : 0);
+                if (delay > 0) Thread.sleep(delay);
+                output.writeShort(response.length);
+                output.write(response);
+                output.flush();
+            }
+        } catch (IOException ignored) {
+            // Closed by the client (or by close)
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            tcpConnections.remove(connection);
+        }
+    }
+
+    /**
+     * Builds the response to a query received over UDP.
+     *
+     * @param data   The received query.
+     * @param length The length of the query.
+     * @return The encoded response, or null if the query is malformed or is not a query.
+     */
+    byte[] answer(byte[] data, int length) {
+        return answer(data, length, false);
+    }
+
+    /**
+     * Builds the response to a query. Responses sent over UDP are truncated if they do not fit in the payload size
+     * accepted by the client (or randomly, see setTruncateRate).
+     *
+     * @param data   The received query.
+     * @param length The length of the query.
+     * @param tcp    True if the query was received over TCP.
+     * @return The encoded response, or null if the query is malformed or is not a query.
+     */
+    byte[] answer(byte[] data, int length, boolean tcp) {
+        DNSQuestion question;
+        DNSMessage query;
+        int ednsPayloadSize = 0;
+        try {
+            query = new DNSMessage(data, length);
+            if (query.getQR() || query.getQDCount() != 1) return null;
+            question = query.getQuestion();
+            DNSMessageView view = new DNSMessageView();
+            view.wrap(data, length);
+            while (view.next())
+                if (view.getSection() == DNSMessageView.ADDITIONAL && view.getTypeCode() == RecordType.OPT.getCode())
+                    ednsPayloadSize = Math.max(DNSMessage.MAX_DNS_MESSAGE_LENGTH, view.getClassCode());
+        } catch (RuntimeException e) {
+            return null;
+        }
+        int maxLength = tcp ? DNSMessage.MAX_TCP_MESSAGE_LENGTH : ednsPayloadSize > 0
+                ? Math.min(ednsPayloadSize, MAX_EDNS_PAYLOAD_SIZE) : DNSMessage.MAX_DNS_MESSAGE_LENGTH;
+        boolean edns = ednsPayloadSize > 0;
+
+        List<ResourceRecord> answers = new ArrayList<>();
+        List<ResourceRecord> authority = new ArrayList<>();
+        List<ResourceRecord> additional = new ArrayList<>();
+        boolean authoritative = true;
+        int rcode = 0;
+
+        String name = canonical(question.getHostName());
+        String delegation = findDelegation(name);
+        if (!isSubdomain(name, origin)) {
+            authoritative = false;
+            rcode = 5; // Refused
+        } else if (delegation != null) {
+            authoritative = false;
+            for (ZoneRecord ns : get(delegation, RecordType.NS)) {
+                authority.add(ns.toResourceRecord());
+                addAddresses(canonical(ns.textResult), additional);
+            }
+        } else {
+            // Follow CNAME records inside the zone, as real servers do
+            Set<String> seen = new HashSet<>();
+            while (seen.add(name)) {
+                List<ZoneRecord> direct = get(name, question.getRecordType());
+                if (!direct.isEmpty() || question.getRecordType() == RecordType.CNAME) {
+                    direct.forEach(r -> answers.add(r.toResourceRecord()));
+                    break;
+                }
+                List<ZoneRecord> cname = get(name, RecordType.CNAME);
+                if (cname.isEmpty()) break;
+                answers.add(cname.get(0).toResourceRecord());
+                name = canonical(cname.get(0).textResult);
+                if (!isSubdomain(name, origin) || findDelegation(name) != null) break;
+            }
+            if (answers.isEmpty()) {
+                if (!names.contains(name)) rcode = 3; // Name error
+                get(origin, RecordType.SOA).forEach(r -> authority.add(r.toResourceRecord()));
+            } else if (question.getRecordType() == RecordType.NS || question.getRecordType() == RecordType.MX) {
+                for (ResourceRecord record : answers)
+                    if (record.getRecordType() == question.getRecordType())
+                        addAddresses(canonical(record.getTextResult()), additional);
+            }
+        }
+
+        boolean truncate = !tcp && truncateRate > 0 && random.nextDouble() < truncateRate;
+        if (!truncate) {
+            try {
+                return buildResponse(query.getID(), question, authoritative, rcode, false, edns, maxLength, answers,
+                        authority, additional);
+            } catch (BufferOverflowException e) {
+                // Does not fit in a UDP message, so send a truncated response instead
+            }
+        }
+        responsesTruncated.incrementAndGet();
+        return buildResponse(query.getID(), question, authoritative, rcode, true, edns, maxLength,
+                Collections.emptyList(), Collections.emptyList(), Collections.emptyList());
+    }
+
+    private static byte[] buildResponse(int id, DNSQuestion question, boolean authoritative, int rcode,
+                                        boolean truncated, boolean edns, int maxLength, List<ResourceRecord> answers,
+                                        List<ResourceRecord> authority, List<ResourceRecord> additional) {
+        DNSMessage response = new DNSMessage((short) id, maxLength);
+        response.setQR(true);
+        response.setAA(authoritative);
+        response.setTC(truncated);
+        response.setRcode(rcode);
+        response.addQuestion(question);
+        answers.forEach(r -> response.addResourceRecord(r, "answer"));
+        authority.forEach(r -> response.addResourceRecord(r, "nameserver"));
+        additional.forEach(r -> response.addResourceRecord(r, "additional"));
+        if (edns)
+            response.addOpt(MAX_EDNS_PAYLOAD_SIZE);
+        return response.getUsed();
+    }
+
+    /**
+     * Returns the zone cut for a name: the name closest to the origin (but below it), among the name itself and its
+     * ancestors, that has NS records. Returns null if the name is not in a delegated part of the zone.
+     */
+    private String findDelegation(String name) {
+        String delegation = null;
+        for (String n = name; isSubdomain(n, origin) && !n.equals(origin); n = parent(n))
+            if (!get(n, RecordType.NS).isEmpty())
+                delegation = n;
+        return delegation;
+    }
+
+    private void addAddresses(String host, List<ResourceRecord> additional) {
+        get(host, RecordType.A).forEach(r -> additional.add(r.toResourceRecord()));
+        get(host, RecordType.AAAA).forEach(r -> additional.add(r.toResourceRecord()));
+    }
+
+    private List<ZoneRecord> get(String name, RecordType type) {
+        return records.getOrDefault(new DNSQuestion(name, type, RecordClass.IN), Collections.emptyList());
+    }
+
+    private static String canonical(String name) {
+        name = name.toLowerCase(Locale.ROOT);
+        return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    private static String parent(String name) {
+        int dot = name.indexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1);
+    }
+
+    private static boolean isSubdomain(String name, String zone) {
+        return zone.isEmpty() || name.equals(zone) || name.endsWith("." + zone);
+    }
+
+    /**
+     * Parses the zone file, adding all its records to the zone.
+     */
+    private void loadZone(BufferedReader reader) throws IOException {
+        String currentOrigin = origin;
+        int defaultTTL = DEFAULT_TTL;
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.split("[;#]", 2)[0].trim();
+            if (line.isEmpty()) continue;
+            String[] fields = line.split("\\s+");
+            try {
+                if (fields[0].equalsIgnoreCase("$ORIGIN")) {
+                    currentOrigin = canonical(fields[1]);
+                    continue;
+                } else if (fields[0].equalsIgnoreCase("$TTL")) {
+                    defaultTTL = Integer.parseInt(fields[1]);
+                    continue;
+                }
+                int f = 0;
+                String name = absolute(fields[f++], currentOrigin);
+                int ttl = defaultTTL;
+                if (fields[f].matches("\\d+")) ttl = Integer.parseInt(fields[f++]);
+                if (fields[f].equalsIgnoreCase("IN")) f++;
+                RecordType type = RecordType.valueOf(fields[f++].toUpperCase());
+                addRecord(name, ttl, type, Arrays.copyOfRange(fields, f, fields.length), currentOrigin);
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid zone file entry in line " + lineNumber + ": " + line, e);
+            }
+        }
+    }
+
+    private void addRecord(String name, int ttl, RecordType type, String[] data, String currentOrigin)
+            throws UnknownHostException {
+        DNSQuestion question = new DNSQuestion(name, type, RecordClass.IN);
+        ZoneRecord record;
+        switch (type) {
+            case A:
+            case AAAA:
+                record = new ZoneRecord(question, ttl, null, InetAddress.getByName(data[0]));
+                break;
+            case NS:
+            case CNAME:
+            case PTR:
+                record = new ZoneRecord(question, ttl, absolute(data[0], currentOrigin), null);
+                break;
+            case MX:
+                // The preference is not represented in resource records, see DNSMessage.getRR
+                record = new ZoneRecord(question, ttl, absolute(data[1], currentOrigin), null);
+                break;
+            case SOA:
+                record = new ZoneRecord(question, ttl, new RData.SOA(absolute(data[0], currentOrigin),
+                        absolute(data[1], currentOrigin), Long.parseLong(data[2]), Long.parseLong(data[3]),
+                        Long.parseLong(data[4]), Long.parseLong(data[5]), Long.parseLong(data[6])).toHexString(), null);
+                break;
+            case TXT:
+                List<String> strings = new ArrayList<>();
+                for (String string : data)
+                    strings.add(string.replaceAll("^\"|\"$", ""));
+                record = new ZoneRecord(question, ttl, new RData.TXT(strings).toHexString(), null);
+                break;
+            case SRV:
+                record = new ZoneRecord(question, ttl, new RData.SRV(Integer.parseInt(data[0]),
+                        Integer.parseInt(data[1]), Integer.parseInt(data[2]), absolute(data[3], currentOrigin))
+                        .toHexString(), null);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported record type " + type);
+        }
+        records.computeIfAbsent(question, q -> new ArrayList<>()).add(record);
+        // Ancestors of a name exist (empty non-terminals), so they must not receive a name error
+        String n = name;
+        while (isSubdomain(n, origin) && names.add(n) && !n.isEmpty())
+            n = parent(n);
+    }
+
+    private static String absolute(String name, String currentOrigin) {
+        if (name.equals("@")) return currentOrigin;
+        if (name.endsWith(".")) return canonical(name);
+        return canonical(currentOrigin.isEmpty() ? name : name + "." + currentOrigin);
+    }
+
+    /**
+     * Starts one server for each zone file given in the command line, and waits until the process is stopped.
+     * <p>
+     * Usage: java ca.ubc.cs.cs317.dnslookup.DNSZoneServer [-p port] [-latency ms] [-jitter ms] [-loss rate]
+     * [-truncate rate] address=origin=zoneFile...
+     * <p>
+     * For example, "127.0.0.2=.=root.zone 127.0.0.3=test=test.zone" serves the root zone on 127.0.0.2 and the test
+     * zone on 127.0.0.3, both on the same port (5353 by default).
+     *
+     * @param args list of arguments specified in the command line.
+     */
+    public static void main(String[] args) {
+        int port = 5353, latency = 0, jitter = 0;
+        double loss = 0, truncate = 0;
+        List<String[]> zones = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-p": port = Integer.parseInt(args[++i]); break;
+                    case "-latency": latency = Integer.parseInt(args[++i]); break;
+                    case "-jitter": jitter = Integer.parseInt(args[++i]); break;
+                    case "-loss": loss = Double.parseDouble(args[++i]); break;
+                    case "-truncate": truncate = Double.parseDouble(args[++i]); break;
+                    default:
+                        String[] zone = args[i].split("=", 3);
+                        if (zone.length != 3) throw new IllegalArgumentException(args[i]);
+                        zones.add(zone);
+                }
+            }
+            if (zones.isEmpty()) throw new IllegalArgumentException("no zones");
+        } catch (RuntimeException e) {
+            System.err.println("Invalid call. Usage:");
+            System.err.println("\tjava ca.ubc.cs.cs317.dnslookup.DNSZoneServer [-p port] [-latency ms] [-jitter ms] " +
+                    "[-loss rate] [-truncate rate] address=origin=zoneFile...");
+            System.exit(1);
+            return;
+        }
+
+        List<DNSZoneServer> servers = new ArrayList<>();
+        for (String[] zone : zones) {
+            try (Reader reader = Files.newBufferedReader(Paths.get(zone[2]))) {
+                DNSZoneServer server = new DNSZoneServer(new InetSocketAddress(zone[0], port),
+                        zone[1].equals(".") ? "" : zone[1], reader);
+                server.setLatency(latency, jitter);
+                server.setLossRate(loss);
+                server.setTruncateRate(truncate);
+                servers.add(server);
+                System.out.println("Serving zone " + (server.getOrigin().isEmpty() ? "<root>" : server.getOrigin()) +
+                        " on " + server.getAddress());
+            } catch (IOException e) {
+                System.err.println("Could not start server for " + zone[2] + " (" + e.getMessage() + ").");
+                servers.forEach(DNSZoneServer::close);
+                System.exit(1);
+            }
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> servers.forEach(DNSZoneServer::close)));
+        try {
+            Thread.currentThread().join();
+        } catch (InterruptedException ignored) {
+        }
+    }
+}
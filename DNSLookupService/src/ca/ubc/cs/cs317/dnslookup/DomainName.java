@@ -0,0 +1,152 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Serializable;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A canonical (lower-cased) domain name, such as "www.cs.ubc.ca", or "" for the root. Names are interned: there is a
+ * single instance of each name at a time (see of), so that names can be compared by identity, and each name links to
+ * the instance of its parent (e.g., "cs.ubc.ca", then "ubc.ca", "ca" and the root), so that a suffix shared by many
+ * names (such as "com") is stored once. The hash code is computed once, when the name is created.
+ * <p>
+ * The table of interned names only holds weak references, so names that are no longer used (e.g., once their records
+ * have been removed from the cache) can be garbage collected. A later use of the same name creates a new instance.
+ */
+public final class DomainName implements Comparable<DomainName>, Serializable {
+
+    // Fixed, since serialized names (e.g., in a DNSQuestion) may be read by a later version of the class
+    private static final long serialVersionUID = 1L;
+
+    private static final ConcurrentHashMap<String, NameReference> names = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<DomainName> collected = new ReferenceQueue<>();
+
+    public static final DomainName ROOT = of("");
+
+    private final String name;
+    private final DomainName parent;
+    private final int labels;
+    private final int hash;
+
+    private DomainName(String name, DomainName parent) {
+        this.name = name;
+        this.parent = parent;
+        this.labels = parent == null ? 0 : parent.labels + 1;
+        this.hash = name.hashCode();
+    }
+
+    /**
+     * Returns the interned instance of a domain name. Names that only differ in case are the same name.
+     *
+     * @param name The domain name, as a sequence of labels separated by dots, or "" for the root.
+     * @return The unique instance of the canonical (lower-cased) name.
+     */
+    public static DomainName of(String name) {
+        // Names are usually lower case already, and then found without converting them
+        DomainName interned = lookup(name);
+        if (interned != null) return interned;
+        String canonical = name.toLowerCase(Locale.ROOT);
+        if (!canonical.equals(name)) {
+            interned = lookup(canonical);
+            if (interned != null) return interned;
+        }
+
+        expungeCollectedNames();
+        int dot = canonical.indexOf('.');
+        DomainName parent = canonical.isEmpty() ? null : of(dot < 0 ? "" : canonical.substring(dot + 1));
+        DomainName created = new DomainName(canonical, parent);
+        while (true) {
+            NameReference reference = new NameReference(created);
+            NameReference existing = names.putIfAbsent(canonical, reference);
+            if (existing == null) return created;
+            // Created concurrently by another thread, unless it has just been collected
+            DomainName other = existing.get();
+            if (other != null) return other;
+            names.remove(canonical, existing);
+        }
+    }
+
+    private static DomainName lookup(String name) {
+        NameReference reference = names.get(name);
+        return reference != null ? reference.get() : null;
+    }
+
+    private static void expungeCollectedNames() {
+        NameReference reference;
+        while ((reference = (NameReference) collected.poll()) != null)
+            names.remove(reference.name, reference);
+    }
+
+    /**
+     * Returns the number of names currently interned, including names that are no longer used but have not yet been
+     * garbage collected. Only meant for monitoring and testing.
+     */
+    static int internedCount() {
+        expungeCollectedNames();
+        return names.size();
+    }
+
+    /**
+     * Returns the parent of this name (the name without its first label), or null for the root.
+     */
+    public DomainName getParent() {
+        return parent;
+    }
+
+    /**
+     * Returns the number of labels in this name (0 for the root).
+     */
+    public int getLabelCount() {
+        return labels;
+    }
+
+    /**
+     * Returns true if this name is the same as, or a subdomain of, another name. Every name is a subdomain of the root.
+     *
+     * @param ancestor The possible ancestor of this name.
+     * @return true if the ancestor is this name or one of its parents.
+     */
+    public boolean isSubdomainOf(DomainName ancestor) {
+        DomainName current = this;
+        while (current != null && current.labels > ancestor.labels)
+            current = current.parent;
+        return current == ancestor;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    @Override
+    public int compareTo(DomainName o) {
+        return name.compareTo(o.name);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        // Only possible for a name that was deserialized without going through readResolve
+        return o instanceof DomainName && hash == ((DomainName) o).hash && name.equals(((DomainName) o).name);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    private Object readResolve() {
+        return of(name);
+    }
+
+    private static class NameReference extends WeakReference<DomainName> {
+        private final String name;
+
+        private NameReference(DomainName referent) {
+            super(referent, collected);
+            this.name = referent.name;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/**
+ * An approximate, fixed-size record of how often each question has been used recently, as in the TinyLFU cache
+ * policy. The sketch is a count-min sketch: every question increments one small counter in each of four rows, and its
+ * frequency is estimated as the smallest of those counters. Counters saturate at 15, and all counters are halved once
+ * the number of increments reaches ten times the capacity, so that old popularity fades away.
+ * <p>
+ * Updates are not synchronized. Concurrent increments may occasionally be lost, which only makes the estimates
+ * slightly less accurate.
+ */
+class FrequencySketch {
+
+    private static final int ROWS = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0x5e2d58d9, 0x7b9c0b45, 0x3c6ef372};
+
+    private final byte[][] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * Creates a sketch for a cache holding up to a specific number of entries.
+     *
+     * @param capacity Maximum number of entries in the cache.
+     */
+    FrequencySketch(int capacity) {
+        int width = 16;
+        while (width < capacity && width < (1 << 24)) width <<= 1;
+        this.table = new byte[ROWS][width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * Math.max(capacity, 1);
+    }
+
+    private int index(DNSQuestion question, int row) {
+        int h = question.hashCode() * SEEDS[row];
+        return (h ^ (h >>> 17)) & mask;
+    }
+
+    /**
+     * Counts a use of a question.
+     */
+    void increment(DNSQuestion question) {
+        boolean added = false;
+        for (int row = 0; row < ROWS; row++) {
+            int i = index(question, row);
+            if (table[row][i] < MAX_COUNT) {
+                table[row][i]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize)
+            halve();
+    }
+
+    /**
+     * Returns the estimated number of recent uses of a question, between 0 and 15.
+     */
+    int frequency(DNSQuestion question) {
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < ROWS; row++)
+            frequency = Math.min(frequency, table[row][index(question, row)]);
+        return frequency;
+    }
+
+    private void halve() {
+        additions /= 2;
+        for (byte[] row : table)
+            for (int i = 0; i < row.length; i++)
+                row[i] >>= 1;
+    }
+}
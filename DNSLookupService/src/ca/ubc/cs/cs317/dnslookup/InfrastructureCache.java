@@ -0,0 +1,225 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * This class keeps track of how each nameserver has performed: its smoothed round-trip time (SRTT), the mean deviation
+ * of its round-trip time (RTTVAR), and the number of consecutive queries it failed to answer. These are used to rank
+ * the nameservers of a delegation, so the fastest ones are contacted first, and to compute a retransmission timeout
+ * (RTO) for each nameserver, instead of always waiting for the fixed SO_TIMEOUT.
+ * <p>
+ * Estimates are computed as in TCP's retransmission timer (RFC 6298). Measurements become less relevant as they age:
+ * the SRTT of a nameserver that has not been measured recently decays towards UNKNOWN_RTT_MILLIS (the value assumed for
+ * nameservers that were never contacted), and its failures are forgotten, halving every DECAY_HALF_LIFE_MILLIS. A
+ * nameserver that failed in the past is thus eventually tried again.
+ * <p>
+ * Like the DNS cache, a single instance is shared by all lookup services. Its methods are thread-safe, and it keeps at
+ * most MAX_SERVERS nameservers, forgetting the least recently used ones.
+ */
+public class InfrastructureCache {
+
+    static final long UNKNOWN_RTT_MILLIS = 50;
+    static final long MIN_RTO_MILLIS = 20;
+    static final long MAX_RTO_MILLIS = DNSLookupService.SO_TIMEOUT;
+    static final long INITIAL_RTO_MILLIS = 1000;
+    static final long MAX_RACING_DELAY_MILLIS = 1000;
+    static final long DECAY_HALF_LIFE_MILLIS = 10 * 60 * 1000;
+    private static final int MAX_SERVERS = 10000;
+
+    private static final InfrastructureCache instance = new InfrastructureCache(System::currentTimeMillis);
+
+    private final LongSupplier clock;
+
+    private final Map<InetAddress, Timing> servers = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetAddress, Timing> eldest) {
+            return size() > MAX_SERVERS;
+        }
+    };
+
+    /**
+     * Creates a new infrastructure cache. Only used directly by tests, other classes use the shared instance.
+     *
+     * @param clock Source of the current time, in milliseconds.
+     */
+    InfrastructureCache(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Singleton retrieval method.
+     *
+     * @return Instance of the infrastructure cache.
+     */
+    public static InfrastructureCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Records a response received from a nameserver. Following Karn's algorithm, callers should only report the
+     * round-trip time of queries that were transmitted once, since the response to a retransmitted query cannot be
+     * matched to a specific transmission.
+     *
+     * @param server Address of the nameserver.
+     * @param nanos  Time between sending the query and receiving the response, in nanoseconds.
+     */
+    public synchronized void recordResponse(InetAddress server, long nanos) {
+        long now = clock.getAsLong();
+        double rtt = nanos / 1e6;
+        Timing timing = servers.get(server);
+        if (timing == null) {
+            servers.put(server, new Timing(rtt, rtt / 2, now));
+        } else {
+            timing.decay(now);
+            timing.deviation += (Math.abs(timing.smoothed - rtt) - timing.deviation) / 4;
+            timing.smoothed += (rtt - timing.smoothed) / 8;
+            timing.failures = 0;
+            timing.updated = now;
+        }
+    }
+
+    /**
+     * Records that a nameserver did not answer a query within its retransmission timeout. The SRTT of the nameserver
+     * is raised to at least the timeout, so that it is ranked behind nameservers that do answer.
+     *
+     * @param server Address of the nameserver.
+     */
+    public synchronized void recordTimeout(InetAddress server) {
+        long now = clock.getAsLong();
+        Timing timing = servers.computeIfAbsent(server, s -> new Timing(INITIAL_RTO_MILLIS, 0, now));
+        timing.decay(now);
+        timing.smoothed = Math.max(timing.smoothed, timeout(timing));
+        timing.failures++;
+        timing.updated = now;
+    }
+
+    /**
+     * Returns the time to wait for a response from a nameserver before retransmitting a query: SRTT + 4 * RTTVAR (at
+     * least MIN_RTO_MILLIS), doubled for every consecutive failure of the nameserver and for every previous
+     * transmission of the same query, and at most MAX_RTO_MILLIS. For nameservers never contacted, INITIAL_RTO_MILLIS is
+     * used as the base timeout.
+     *
+     * @param server   Address of the nameserver.
+     * @param attempts Number of times the query was already sent to this nameserver.
+     * @return The retransmission timeout, in milliseconds.
+     */
+    public synchronized long getTimeoutMillis(InetAddress server, int attempts) {
+        Timing timing = servers.get(server);
+        double timeout = INITIAL_RTO_MILLIS;
+        if (timing != null) {
+            timing.decay(clock.getAsLong());
+            timeout = Math.max(MIN_RTO_MILLIS, timeout(timing)) * Math.pow(2, Math.min(timing.failures, 8));
+        }
+        timeout *= Math.pow(2, Math.min(attempts, 8));
+        return (long) Math.min(MAX_RTO_MILLIS, timeout);
+    }
+
+    /**
+     * Returns how long to wait for a response from a nameserver before also sending the query to another nameserver
+     * (see DNSLookupService.setRacing): SRTT + 4 * RTTVAR, without any backoff, bounded between MIN_RTO_MILLIS and
+     * MAX_RACING_DELAY_MILLIS. Nameservers never contacted are assumed to have an SRTT of UNKNOWN_RTT_MILLIS.
+     *
+     * @param server Address of the nameserver.
+     * @return The racing delay, in milliseconds.
+     */
+    public synchronized long getRacingDelayMillis(InetAddress server) {
+        Timing timing = servers.get(server);
+        double delay = 4 * UNKNOWN_RTT_MILLIS;
+        if (timing != null) {
+            timing.decay(clock.getAsLong());
+            delay = timeout(timing);
+        }
+        return (long) Math.max(MIN_RTO_MILLIS, Math.min(MAX_RACING_DELAY_MILLIS, delay));
+    }
+
+    private static double timeout(Timing timing) {
+        return timing.smoothed + 4 * timing.deviation;
+    }
+
+    /**
+     * Returns the expected round-trip time of a nameserver, used to rank nameservers.
+     *
+     * @param server Address of the nameserver.
+     * @return The SRTT of the nameserver, or UNKNOWN_RTT_MILLIS if it was never contacted, in milliseconds.
+     */
+    public synchronized double getSmoothedRTT(InetAddress server) {
+        Timing timing = servers.get(server);
+        if (timing == null) return UNKNOWN_RTT_MILLIS;
+        timing.decay(clock.getAsLong());
+        return timing.smoothed;
+    }
+
+    /**
+     * Sorts a list of nameserver addresses from the lowest to the highest SRTT. Nameservers with the same SRTT
+     * (including those never contacted) keep their relative order.
+     *
+     * @param addresses List of nameserver addresses, sorted in place.
+     */
+    public synchronized void rank(List<InetAddress> addresses) {
+        Map<InetAddress, Double> rtt = new HashMap<>();
+        for (InetAddress address : addresses)
+            rtt.put(address, getSmoothedRTT(address));
+        addresses.sort(Comparator.comparingDouble(rtt::get));
+    }
+
+    /**
+     * Perform a specific action for each nameserver and its (decayed) timing information: SRTT, RTTVAR and failure
+     * count, in this order. Nameservers are visited from the lowest to the highest SRTT.
+     *
+     * @param consumer Action to be performed for each nameserver.
+     */
+    public void forEachServer(BiConsumer<InetAddress, double[]> consumer) {
+        List<Map.Entry<InetAddress, double[]>> snapshot = new ArrayList<>();
+        synchronized (this) {
+            long now = clock.getAsLong();
+            for (Map.Entry<InetAddress, Timing> entry : servers.entrySet()) {
+                Timing timing = entry.getValue();
+                timing.decay(now);
+                snapshot.add(new AbstractMap.SimpleEntry<>(entry.getKey(),
+                        new double[]{timing.smoothed, timing.deviation, timing.failures}));
+            }
+        }
+        snapshot.sort(Comparator.comparingDouble(e -> e.getValue()[0]));
+        snapshot.forEach(e -> consumer.accept(e.getKey(), e.getValue()));
+    }
+
+    /**
+     * Forgets all timing information.
+     */
+    public synchronized void reset() {
+        servers.clear();
+    }
+
+    /**
+     * Timing information for a single nameserver, in milliseconds.
+     */
+    private static class Timing {
+        private double smoothed;
+        private double deviation;
+        private int failures = 0;
+        private long updated;
+
+        private Timing(double smoothed, double deviation, long updated) {
+            this.smoothed = smoothed;
+            this.deviation = deviation;
+            this.updated = updated;
+        }
+
+        /**
+         * Moves the SRTT towards UNKNOWN_RTT_MILLIS and halves the failure count once per DECAY_HALF_LIFE_MILLIS
+         * elapsed since the last update.
+         */
+        private void decay(long now) {
+            long halfLives = (now - updated) / DECAY_HALF_LIFE_MILLIS;
+            if (halfLives <= 0) return;
+            double factor = Math.pow(0.5, halfLives);
+            smoothed = UNKNOWN_RTT_MILLIS + (smoothed - UNKNOWN_RTT_MILLIS) * factor;
+            deviation *= factor;
+            failures >>= Math.min(halfLives, 31);
+            updated += halfLives * DECAY_HALF_LIFE_MILLIS;
+        }
+    }
+}
@@ -0,0 +1,508 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The data (RDATA) of a resource record, decoded into the fields of its record type, such as the serial number and
+ * timers of an SOA record or the strings of a TXT record (see ResourceRecord.getData).
+ * <p>
+ * Data is decoded by the decoder registered for its record type (see register). Types without a decoder, and data
+ * that cannot be decoded, are represented by Unknown, which only keeps the raw bytes, and formats them as a hex string
+ * when needed. Decoders are registered for NS, CNAME, PTR, MX, SOA, TXT and SRV.
+ */
+public abstract class RData {
+
+    /**
+     * Decodes the data of a record of a specific type.
+     */
+    public interface Decoder {
+        /**
+         * Decodes the data of a record. Names in the data may be compressed, and are read from the whole message.
+         *
+         * @param reader A reader positioned at the start of the data.
+         * @return The decoded data.
+         * @throws IllegalArgumentException If the data is malformed.
+         */
+        RData decode(Reader reader);
+    }
+
+    private static final Map<RecordType, Decoder> decoders = Collections.synchronizedMap(
+            new EnumMap<>(RecordType.class));
+
+    static {
+        register(RecordType.NS, reader -> new Name(reader.readName()));
+        register(RecordType.CNAME, reader -> new Name(reader.readName()));
+        register(RecordType.PTR, reader -> new Name(reader.readName()));
+        register(RecordType.MX, reader -> new MX(reader.readUnsignedShort(), reader.readName()));
+        register(RecordType.SOA, reader -> new SOA(reader.readName(), reader.readName(), reader.readUnsignedInt(),
+                reader.readUnsignedInt(), reader.readUnsignedInt(), reader.readUnsignedInt(),
+                reader.readUnsignedInt()));
+        register(RecordType.TXT, reader -> {
+            List<String> strings = new ArrayList<>();
+            while (reader.remaining() > 0)
+                strings.add(reader.readCharacterString());
+            return new TXT(strings);
+        });
+        register(RecordType.SRV, reader -> new SRV(reader.readUnsignedShort(), reader.readUnsignedShort(),
+                reader.readUnsignedShort(), reader.readName()));
+    }
+
+    /**
+     * Registers the decoder of a record type, replacing any decoder registered earlier for the same type.
+     *
+     * @param type    The record type.
+     * @param decoder The decoder of its data, or null to represent its data as Unknown.
+     */
+    public static void register(RecordType type, Decoder decoder) {
+        if (decoder == null) decoders.remove(type);
+        else decoders.put(type, decoder);
+    }
+
+    /**
+     * Decodes the data of a record with the decoder registered for its type.
+     *
+     * @param type          The type of the record.
+     * @param message       The message that contains the record, used to follow compression pointers.
+     * @param messageLength The length of the message.
+     * @param offset        The offset of the data in the message.
+     * @param length        The length of the data.
+     * @return The decoded data, or Unknown if there is no decoder for the type or the data is malformed.
+     */
+    public static RData decode(RecordType type, byte[] message, int messageLength, int offset, int length) {
+        Decoder decoder = decoders.get(type);
+        if (decoder != null) {
+            try {
+                Reader reader = new Reader(message, messageLength, offset, length);
+                RData data = decoder.decode(reader);
+                if (data != null && reader.remaining() == 0) return data;
+            } catch (IllegalArgumentException | IndexOutOfBoundsException ignored) {
+            }
+        }
+        return new Unknown(Arrays.copyOfRange(message, offset, offset + length));
+    }
+
+    /**
+     * Returns the text result of a record whose data is represented as a hex string (see ResourceRecord): the hex
+     * string of its data, but with any compressed name in the data of an SOA record decompressed, as they are only
+     * valid in the message they were read from. SOA is the only such type whose data may contain compressed names
+     * (RFC 3597, section 4).
+     */
+    static String toTextResult(RecordType type, byte[] message, int messageLength, int offset, int length) {
+        if (type == RecordType.SOA) {
+            RData data = decode(type, message, messageLength, offset, length);
+            if (!(data instanceof Unknown)) return data.toHexString();
+        }
+        return DNSMessage.byteArrayToHexString(message, offset, length);
+    }
+
+    /**
+     * Decodes the data of an existing record, from its address or its text result.
+     */
+    static RData of(ResourceRecord record) {
+        RecordType type = record.getRecordType();
+        switch (type) {
+            case A:
+            case AAAA:
+                if (record.getInetResult() != null) return new Unknown(record.getInetResult().getAddress());
+                break;
+            case NS:
+            case CNAME:
+            case PTR:
+                return new Name(record.getTextResult());
+            case MX:
+                // The preference is not represented in resource records, see DNSMessage.getRR
+                return new MX(0, record.getTextResult());
+        }
+        try {
+            byte[] data = DNSMessage.hexStringToByteArray(record.getTextResult());
+            return decode(type, data, data.length, 0, data.length);
+        } catch (NumberFormatException e) {
+            return new Unknown(new byte[0]);
+        }
+    }
+
+    /**
+     * Encodes the data in wire format, with uncompressed names.
+     */
+    public abstract byte[] toWire();
+
+    /**
+     * Returns the hex string of the data in wire format, as used for the text result of records of types not fully
+     * supported by the application (see DNSMessage.byteArrayToHexString).
+     */
+    public String toHexString() {
+        return DNSMessage.byteArrayToHexString(toWire());
+    }
+
+    private static void writeName(ByteArrayOutputStream out, String name) {
+        if (!name.isEmpty()) {
+            for (String label : name.split("\\.")) {
+                byte[] encoded = label.getBytes(StandardCharsets.UTF_8);
+                out.write(encoded.length);
+                out.write(encoded, 0, encoded.length);
+            }
+        }
+        out.write(0);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, long value) {
+        writeShort(out, (int) (value >> 16));
+        writeShort(out, (int) value);
+    }
+
+    /**
+     * Reads the fields of the data of a record. Every read fails with an IllegalArgumentException if it goes past the
+     * end of the data.
+     */
+    public static final class Reader {
+        private static final int MAX_POINTERS = 16;
+
+        private final byte[] message;
+        private final int messageLength;
+        private final int end;
+        private int position;
+
+        private Reader(byte[] message, int messageLength, int offset, int length) {
+            if (offset < 0 || length < 0 || offset + length > messageLength || messageLength > message.length)
+                throw new IllegalArgumentException("Record data out of bounds");
+            this.message = message;
+            this.messageLength = messageLength;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        /**
+         * Returns the number of bytes of the data not read yet.
+         */
+        public int remaining() {
+            return end - position;
+        }
+
+        private void require(int count) {
+            if (count > end - position) throw new IllegalArgumentException("Truncated record data");
+        }
+
+        public int readUnsignedByte() {
+            require(1);
+            return message[position++] & 0xff;
+        }
+
+        public int readUnsignedShort() {
+            require(2);
+            int value = ((message[position] & 0xff) << 8) | (message[position + 1] & 0xff);
+            position += 2;
+            return value;
+        }
+
+        public long readUnsignedInt() {
+            return ((long) readUnsignedShort() << 16) | readUnsignedShort();
+        }
+
+        /**
+         * Reads a character string: a length byte followed by up to 255 bytes, decoded one character per byte so that
+         * any byte is represented (and encoded again) as is.
+         */
+        public String readCharacterString() {
+            int length = readUnsignedByte();
+            require(length);
+            String string = new String(message, position, length, StandardCharsets.ISO_8859_1);
+            position += length;
+            return string;
+        }
+
+        /**
+         * Reads a domain name, following compression pointers anywhere in the message.
+         */
+        public String readName() {
+            StringBuilder name = new StringBuilder();
+            int offset = position;
+            int jumps = 0;
+            boolean inData = true;
+            while (true) {
+                if (offset >= (inData ? end : messageLength)) throw new IllegalArgumentException("Truncated name");
+                int length = message[offset] & 0xff;
+                if ((length & 0xc0) == 0xc0) {
+                    if (offset + 1 >= (inData ? end : messageLength) || jumps++ == MAX_POINTERS)
+                        throw new IllegalArgumentException("Invalid compression pointer");
+                    if (inData) position = offset + 2;
+                    inData = false;
+                    offset = ((length & 0x3f) << 8) | (message[offset + 1] & 0xff);
+                    continue;
+                }
+                if (length == 0) {
+                    if (inData) position = offset + 1;
+                    return name.toString();
+                }
+                if (offset + 1 + length > (inData ? end : messageLength))
+                    throw new IllegalArgumentException("Truncated name");
+                if (name.length() > 0) name.append('.');
+                name.append(new String(message, offset + 1, length, StandardCharsets.UTF_8));
+                offset += length + 1;
+            }
+        }
+    }
+
+    /**
+     * The data of a record that only holds a domain name (NS, CNAME and PTR).
+     */
+    public static final class Name extends RData {
+        private final String name;
+
+        public Name(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public byte[] toWire() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(name.length() + 2);
+            writeName(out, name);
+            return out.toByteArray();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * The data of an MX record.
+     */
+    public static final class MX extends RData {
+        private final int preference;
+        private final String exchange;
+
+        public MX(int preference, String exchange) {
+            this.preference = preference;
+            this.exchange = exchange;
+        }
+
+        public int getPreference() {
+            return preference;
+        }
+
+        public String getExchange() {
+            return exchange;
+        }
+
+        @Override
+        public byte[] toWire() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(exchange.length() + 4);
+            writeShort(out, preference);
+            writeName(out, exchange);
+            return out.toByteArray();
+        }
+
+        @Override
+        public String toString() {
+            return preference + " " + exchange;
+        }
+    }
+
+    /**
+     * The data of an SOA record (RFC 1035, section 3.3.13). The minimum field is also the TTL of negative answers
+     * (RFC 2308).
+     */
+    public static final class SOA extends RData {
+        private final String mname;
+        private final String rname;
+        private final long serial;
+        private final long refresh;
+        private final long retry;
+        private final long expire;
+        private final long minimum;
+
+        public SOA(String mname, String rname, long serial, long refresh, long retry, long expire, long minimum) {
+            this.mname = mname;
+            this.rname = rname;
+            this.serial = serial;
+            this.refresh = refresh;
+            this.retry = retry;
+            this.expire = expire;
+            this.minimum = minimum;
+        }
+
+        /** Returns the name of the primary nameserver of the zone. */
+        public String getMName() {
+            return mname;
+        }
+
+        /** Returns the mailbox of the person responsible for the zone, encoded as a domain name. */
+        public String getRName() {
+            return rname;
+        }
+
+        public long getSerial() {
+            return serial;
+        }
+
+        public long getRefresh() {
+            return refresh;
+        }
+
+        public long getRetry() {
+            return retry;
+        }
+
+        public long getExpire() {
+            return expire;
+        }
+
+        public long getMinimum() {
+            return minimum;
+        }
+
+        @Override
+        public byte[] toWire() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(mname.length() + rname.length() + 24);
+            writeName(out, mname);
+            writeName(out, rname);
+            for (long value : new long[]{serial, refresh, retry, expire, minimum})
+                writeInt(out, value);
+            return out.toByteArray();
+        }
+
+        @Override
+        public String toString() {
+            return mname + " " + rname + " " + serial + " " + refresh + " " + retry + " " + expire + " " + minimum;
+        }
+    }
+
+    /**
+     * The data of a TXT record: one or more character strings.
+     */
+    public static final class TXT extends RData {
+        private final List<String> strings;
+
+        public TXT(List<String> strings) {
+            this.strings = Collections.unmodifiableList(new ArrayList<>(strings));
+        }
+
+        public List<String> getStrings() {
+            return strings;
+        }
+
+        @Override
+        public byte[] toWire() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(StandardCharsets.ISO_8859_1);
+                if (bytes.length > 255) throw new IllegalArgumentException("TXT string longer than 255 bytes");
+                out.write(bytes.length);
+                out.write(bytes, 0, bytes.length);
+            }
+            return out.toByteArray();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (String string : strings) {
+                if (sb.length() > 0) sb.append(' ');
+                sb.append('"').append(string.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The data of an SRV record (RFC 2782).
+     */
+    public static final class SRV extends RData {
+        private final int priority;
+        private final int weight;
+        private final int port;
+        private final String target;
+
+        public SRV(int priority, int weight, int port, String target) {
+            this.priority = priority;
+            this.weight = weight;
+            this.port = port;
+            this.target = target;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        @Override
+        public byte[] toWire() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(target.length() + 8);
+            writeShort(out, priority);
+            writeShort(out, weight);
+            writeShort(out, port);
+            writeName(out, target);
+            return out.toByteArray();
+        }
+
+        @Override
+        public String toString() {
+            return priority + " " + weight + " " + port + " " + target;
+        }
+    }
+
+    /**
+     * The data of a record whose type has no decoder, or that could not be decoded. Only the raw bytes are kept, and
+     * their hex string is only created the first time it is used.
+     */
+    public static final class Unknown extends RData {
+        private final byte[] data;
+        private volatile String hex;
+
+        public Unknown(byte[] data) {
+            this.data = data;
+        }
+
+        /**
+         * Returns the raw data (not a copy).
+         */
+        public byte[] getBytes() {
+            return data;
+        }
+
+        @Override
+        public byte[] toWire() {
+            return data.clone();
+        }
+
+        @Override
+        public String toHexString() {
+            String result = hex;
+            if (result == null) hex = result = DNSMessage.byteArrayToHexString(data);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return toHexString();
+        }
+    }
+}
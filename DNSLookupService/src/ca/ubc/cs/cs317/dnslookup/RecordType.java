@@ -1,13 +1,14 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import java.util.Arrays;
-
 /**
  * Record types supported by the application. Includes a few common record types that are not
- * fully supported by this application, but that are sometimes returned by nameservers for regular DNS queries.
+ * fully supported by this application, but that are sometimes returned by nameservers for regular DNS queries. The data
+ * of those records is represented as a hex string, and can be decoded with RData.
  */
 public enum RecordType {
-    A(1), NS(2), CNAME(5), SOA(6), MX(15), AAAA(28), OTHER(0);
+    A(1), NS(2), CNAME(5), SOA(6), PTR(12), MX(15), TXT(16), AAAA(28), SRV(33), OPT(41), OTHER(0);
+
+    private static final RecordType[] VALUES = values();
 
     private final int code;
 
@@ -27,6 +28,8 @@ public enum RecordType {
      * @return A record type that uses the specified code, or OTHER if no record type uses the code.
      */
     public static RecordType getByCode(int code) {
-        return Arrays.stream(values()).filter(v -> v.code == code).findFirst().orElse(OTHER);
+        for (RecordType value : VALUES)
+            if (value.code == code) return value;
+        return OTHER;
     }
 }
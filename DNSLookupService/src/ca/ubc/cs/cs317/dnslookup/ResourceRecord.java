@@ -2,23 +2,26 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Serializable;
 import java.net.InetAddress;
-import java.nio.charset.StandardCharsets;
 import java.util.Date;
 import java.util.Objects;
-import java.util.stream.IntStream;
 
 /**
  * A resource record corresponds to each individual result returned by a DNS response. It links a DNS question (host
  * name, type and class) to either an IP address (e.g., for A or AAAA records) or a textual response (e.g., for CNAME or
  * NS records). An expiration time is also specified, and computed based on the TTL provided when the record is
  * created.
+ * <p>
+ * Records of types that are not fully supported by the application (e.g., SOA or TXT records) have the hex string of
+ * their data as their textual response. Their data can be decoded into typed fields with getData.
  */
 public class ResourceRecord implements Serializable {
 
     private final DNSQuestion question;
-    private Date expirationTime;
+    private volatile Date expirationTime;
     private final String textResult;
     private InetAddress inetResult;
+    // Decoded on demand from the results, see getData
+    private transient volatile RData data;
 
     /**
      * Creates a new resource record based on a string result, without an InetAddress.
@@ -48,6 +51,22 @@ public class ResourceRecord implements Serializable {
         this.inetResult = result;
     }
 
+    /**
+     * Creates a new resource record that expires at a specific time, instead of after a number of seconds. Used to
+     * restore records saved earlier.
+     *
+     * @param question         Question object containing the host name (FQDN), type and class associated to this record.
+     * @param expirationMillis The time when this record expires, in milliseconds since the epoch.
+     * @param textResult       The string representation associated to the record's result.
+     * @param inetResult       The InetAddress object associated to the record's result, or null if there is none.
+     */
+    ResourceRecord(DNSQuestion question, long expirationMillis, String textResult, InetAddress inetResult) {
+        this.question = question;
+        this.expirationTime = new Date(expirationMillis);
+        this.textResult = textResult;
+        this.inetResult = inetResult;
+    }
+
     public DNSQuestion getQuestion() {
         return question;
     }
@@ -75,6 +94,15 @@ public class ResourceRecord implements Serializable {
         return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
     }
 
+    /**
+     * The time when this record expires, in milliseconds since the epoch (as in System.currentTimeMillis).
+     *
+     * @return The expiration time of this record.
+     */
+    public long getExpirationMillis() {
+        return expirationTime.getTime();
+    }
+
     /**
      * Returns true if this record has expired, and false otherwise. An expired record should not be maintained in
      * cache, instead a new record should be retrieved from an appropriate nameserver.
@@ -82,7 +110,7 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has expired, and false otherwise.
      */
     public boolean isExpired() {
-        return !expirationTime.after(new Date());
+        return expirationTime.getTime() <= System.currentTimeMillis();
     }
 
     /**
@@ -91,7 +119,7 @@ public class ResourceRecord implements Serializable {
      *
      * @param record Another resource record with potentially new information.
      */
-    public void update(ResourceRecord record) {
+    public synchronized void update(ResourceRecord record) {
         if (this.expirationTime.before(record.expirationTime))
             this.expirationTime = record.expirationTime;
     }
@@ -104,6 +132,19 @@ public class ResourceRecord implements Serializable {
         return inetResult;
     }
 
+    /**
+     * Returns the data of this record decoded into the fields of its type (see RData), e.g. RData.SOA for an SOA
+     * record. The data is decoded the first time this method is called. Types without a registered decoder, and data
+     * that cannot be decoded, return RData.Unknown, with the raw data.
+     *
+     * @return The decoded data of this record.
+     */
+    public RData getData() {
+        RData result = data;
+        if (result == null) data = result = RData.of(this);
+        return result;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,38 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+
+/**
+ * A verbose printer that prints nothing. Used where tracing every query would be useless or confusing: by a server,
+ * which answers far too many queries to trace them (see DNSResolverServer), and by the lookups that resolve the
+ * nameservers of a delegation concurrently (see DNSLookupService.resolveNameServers), whose traces would interleave
+ * with the trace of the main lookup.
+ */
+class SilentPrinter implements DNSVerbosePrinter {
+
+    static final SilentPrinter INSTANCE = new SilentPrinter();
+
+    @Override
+    public void printQueryToSend(DNSQuestion question, InetAddress server, int transactionID) {
+    }
+
+    @Override
+    public void printResponseHeaderInfo(int receivedTransactionId, boolean authoritative, int error) {
+    }
+
+    @Override
+    public void printAnswersHeader(int num) {
+    }
+
+    @Override
+    public void printNameserversHeader(int num) {
+    }
+
+    @Override
+    public void printAdditionalInfoHeader(int num) {
+    }
+
+    @Override
+    public void printIndividualResourceRecord(ResourceRecord record, int rtype, int rclass) {
+    }
+}
@@ -0,0 +1,166 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The cached records of a question (an RRset), already encoded in wire format, so that a response can be assembled by
+ * copying them instead of encoding each record again (see DNSCache.getWireRRset and DNSResolverServer).
+ * <p>
+ * The encoded records do not depend on their position in a message: the owner name of each record is a compression
+ * pointer, set when the records are copied to point to an earlier occurrence of the name (e.g., the question, at
+ * offset 12), and names in the record data are not compressed. The TTL of each record is also set when the records
+ * are copied, from the expiration time of the record, so the same bytes can be used until the first record expires.
+ */
+final class WireRRset {
+
+    private static final int POINTER = 0xc000;
+    /** Compression pointers only have 14 bits for the offset. */
+    static final int MAX_POINTER_OFFSET = 0x3fff;
+
+    private final RecordType type;
+    private final byte[] data;
+    private final int[] recordOffsets;
+    private final long[] expirations;
+    private final long firstExpiration;
+    private final DomainName target;
+    private final int targetOffset;
+
+    private WireRRset(RecordType type, byte[] data, int[] recordOffsets, long[] expirations, DomainName target,
+                      int targetOffset) {
+        this.type = type;
+        this.data = data;
+        this.recordOffsets = recordOffsets;
+        this.expirations = expirations;
+        long first = Long.MAX_VALUE;
+        for (long expiration : expirations)
+            first = Math.min(first, expiration);
+        this.firstExpiration = first;
+        this.target = target;
+        this.targetOffset = targetOffset;
+    }
+
+    /**
+     * Encodes a set of records, all for the same question. The encoding matches DNSMessage.addResourceRecord.
+     *
+     * @param records The records, in the order in which they will be copied to responses.
+     * @return The encoded records.
+     */
+    static WireRRset encode(List<ResourceRecord> records) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(records.size() * 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        int[] recordOffsets = new int[records.size()];
+        long[] expirations = new long[records.size()];
+        DomainName target = null;
+        int targetOffset = -1;
+        try {
+            for (int i = 0; i < records.size(); i++) {
+                ResourceRecord record = records.get(i);
+                recordOffsets[i] = out.size();
+                expirations[i] = record.getExpirationMillis();
+                out.writeShort(POINTER);
+                out.writeShort(record.getRecordType().getCode());
+                out.writeShort(record.getRecordClass().getCode());
+                out.writeInt(0);
+                byte[] rdata;
+                switch (record.getRecordType()) {
+                    case A:
+                    case AAAA:
+                        rdata = record.getInetResult().getAddress();
+                        break;
+                    case MX:
+                        byte[] exchange = encodeName(record.getTextResult());
+                        rdata = new byte[exchange.length + 2];
+                        System.arraycopy(exchange, 0, rdata, 2, exchange.length);
+                        break;
+                    case NS:
+                    case CNAME:
+                    case PTR:
+                        rdata = encodeName(record.getTextResult());
+                        if (record.getRecordType() == RecordType.CNAME && records.size() == 1) {
+                            target = DomainName.of(record.getTextResult());
+                            targetOffset = out.size() + 2;
+                        }
+                        break;
+                    default:
+                        rdata = DNSMessage.hexStringToByteArray(record.getTextResult());
+                }
+                out.writeShort(rdata.length);
+                out.write(rdata);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        RecordType type = records.isEmpty() ? RecordType.OTHER : records.get(0).getRecordType();
+        return new WireRRset(type, bytes.toByteArray(), recordOffsets, expirations, target, targetOffset);
+    }
+
+    private static byte[] encodeName(String name) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(name.length() + 2);
+        if (!name.isEmpty()) {
+            for (String label : name.split("\\.")) {
+                byte[] encoded = label.getBytes(StandardCharsets.UTF_8);
+                out.write(encoded.length);
+                out.write(encoded, 0, encoded.length);
+            }
+        }
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    RecordType getRecordType() {
+        return type;
+    }
+
+    int getCount() {
+        return recordOffsets.length;
+    }
+
+    /**
+     * Returns the time (in milliseconds since the epoch) when the first record of the set expires, after which the
+     * encoded records must not be used.
+     */
+    long getFirstExpiration() {
+        return firstExpiration;
+    }
+
+    /**
+     * Returns the canonical name of a set with a single CNAME record, or null for any other set.
+     */
+    DomainName getTarget() {
+        return target;
+    }
+
+    /**
+     * Copies the records to a message at its current position, and sets their owner names and TTLs. The records are
+     * rotated, starting at any of them, so that clients that use the first record of a response spread their load
+     * over all of them (as DNSCache does by shuffling the records it returns).
+     *
+     * @param buffer      The message being built.
+     * @param ownerOffset Offset of the owner name in the message (at most MAX_POINTER_OFFSET).
+     * @param now         The current time, in milliseconds since the epoch, used to compute the TTLs.
+     * @param first       Index of the record copied first (modulo the number of records).
+     * @return The offset of the canonical name of a single CNAME record in the message (see getTarget), or -1.
+     * @throws java.nio.BufferOverflowException If the records do not fit in the message.
+     */
+    int appendTo(ByteBuffer buffer, int ownerOffset, long now, int first) {
+        int base = buffer.position();
+        int split = recordOffsets.length == 0 ? 0 : recordOffsets[Math.floorMod(first, recordOffsets.length)];
+        buffer.put(data, split, data.length - split);
+        buffer.put(data, 0, split);
+        for (int i = 0; i < recordOffsets.length; i++) {
+            int offset = base + (recordOffsets[i] >= split ? recordOffsets[i] - split
+                    : recordOffsets[i] + data.length - split);
+            buffer.putShort(offset, (short) (POINTER | ownerOffset));
+            // Same rounding as ResourceRecord.getRemainingTTL
+            buffer.putInt(offset + 6, (int) Math.max(0, (expirations[i] - now + 999) / 1000));
+        }
+        // Only set for a single record, which is never rotated
+        return targetOffset < 0 ? -1 : base + targetOffset;
+    }
+}
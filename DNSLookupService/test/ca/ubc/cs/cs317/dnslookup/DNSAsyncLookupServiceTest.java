@@ -0,0 +1,254 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class DNSAsyncLookupServiceTest {
+
+    // Number of records of big1.example.test, too many for a 512-byte UDP response
+    private static final int LARGE_RRSET_SIZE = 40;
+
+    private static final String ROOT_ZONE = String.join("\n",
+            "@ SOA a.root. nstld. 1 1800 900 604800 86400",
+            "test. 172800 NS ns.nic.test.",
+            "ns.nic.test. 172800 A 127.0.0.3");
+    private static final String TEST_ZONE = String.join("\n",
+            "$ORIGIN test.",
+            "@ SOA ns.nic hostmaster.nic 1 1800 900 604800 900",
+            "example NS ns1.example",
+            "ns1.example A 127.0.0.4",
+            "racing NS ns1.racing",
+            "racing NS ns2.racing",
+            "ns1.racing A 127.0.0.5",
+            "ns2.racing A 127.0.0.6",
+            "glueless NS ns.example",
+            "glueless NS ns.slow.example");
+    private static final String RACING_ZONE = String.join("\n",
+            "$ORIGIN racing.test.",
+            "@ SOA ns1 hostmaster 1 3600 600 86400 300",
+            "www A 10.0.0.2");
+    private static final String GLUELESS_ZONE = String.join("\n",
+            "$ORIGIN glueless.test.",
+            "@ SOA ns.example.test. hostmaster 1 3600 600 86400 300",
+            "www A 10.0.0.3");
+    private static final String EXAMPLE_ZONE = String.join("\n",
+            "$ORIGIN example.test.",
+            "$TTL 300",
+            "@ SOA ns1 hostmaster 1 3600 600 86400 300",
+            "@ NS ns1",
+            "ns1 A 127.0.0.4",
+            "ns A 127.0.0.6",
+            "slow NS ns1.slow",
+            "ns1.slow A 127.0.0.5",
+            "www A 10.0.0.1",
+            "alias 60 CNAME www",
+            IntStream.range(0, LARGE_RRSET_SIZE).mapToObj(i -> "big1 A 10.1.0." + i)
+                    .collect(Collectors.joining("\n")));
+
+    private final List<DNSZoneServer> servers = new ArrayList<>();
+    private DNSAsyncLookupService async;
+    private DNSCache cache;
+    private int port;
+
+    @BeforeEach
+    public void startServers() throws IOException {
+        DNSZoneServer root = new DNSZoneServer(new InetSocketAddress("127.0.0.2", 0), "", new StringReader(ROOT_ZONE));
+        servers.add(root);
+        port = root.getAddress().getPort();
+        servers.add(new DNSZoneServer(new InetSocketAddress("127.0.0.3", port), "test", new StringReader(TEST_ZONE)));
+        servers.add(new DNSZoneServer(new InetSocketAddress("127.0.0.4", port), "example.test",
+                new StringReader(EXAMPLE_ZONE)));
+
+        cache = DNSCache.getInstance();
+        cache.setRootNameServers(Collections.singletonList("127.0.0.2"));
+        async = new DNSAsyncLookupService("127.0.0.2", new DNSLookupCUI());
+        async.setPort(port);
+    }
+
+    @AfterEach
+    public void stopServers() {
+        async.close();
+        servers.forEach(DNSZoneServer::close);
+        cache.setRootNameServers(null);
+        InfrastructureCache.getInstance().reset();
+    }
+
+    @Test
+    public void testLookupStartsAtClosestCachedDelegation() throws Exception {
+        async.getResults(new DNSQuestion("www.example.test", RecordType.A, RecordClass.IN)).get();
+        Assertions.assertEquals(1, async.getResults(
+                new DNSQuestion("ns.example.test", RecordType.A, RecordClass.IN)).get().size());
+        // The second lookup goes straight to the nameserver of example.test
+        Assertions.assertEquals(1, servers.get(0).getQueriesReceived());
+        Assertions.assertEquals(1, servers.get(1).getQueriesReceived());
+        Assertions.assertEquals(2, servers.get(2).getQueriesReceived());
+    }
+
+    @Test
+    public void testFailedTaskDoesNotStopLookups() throws Exception {
+        CompletableFuture<Void> failed = async.submit(() -> {
+            throw new IllegalStateException("Task failed");
+        });
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class, failed::get);
+        Assertions.assertTrue(e.getCause() instanceof IllegalStateException);
+        Assertions.assertEquals(1, async.getResults(
+                new DNSQuestion("www.example.test", RecordType.A, RecordClass.IN)).get().size());
+        Assertions.assertEquals(0, async.getInFlightCount());
+    }
+
+    @Test
+    public void testCloseFromCallback() throws Exception {
+        DNSAsyncLookupService other = new DNSAsyncLookupService("127.0.0.2", new DNSLookupCUI());
+        other.setPort(port);
+        // The lookup is not cached, so the action runs on the I/O thread, which must not wait for itself
+        CompletableFuture<Void> closed = other.getResults(
+                new DNSQuestion("www.example.test", RecordType.A, RecordClass.IN)).thenRun(other::close);
+        closed.get(5, TimeUnit.SECONDS);
+        DNSQuestion question = new DNSQuestion("alias.example.test", RecordType.A, RecordClass.IN);
+        Assertions.assertTrue(other.getResults(question).get(5, TimeUnit.SECONDS).isEmpty());
+    }
+
+    @Test
+    public void testRefreshQueriesAuthoritativeServer() throws Exception {
+        DNSQuestion question = new DNSQuestion("www.example.test", RecordType.A, RecordClass.IN);
+        async.getResults(question).get();
+        Assertions.assertEquals(1, servers.get(2).getQueriesReceived());
+
+        async.refresh(question).get();
+        Assertions.assertEquals(2, servers.get(2).getQueriesReceived());
+        Assertions.assertEquals(1, cache.getCachedResults(question, false).size());
+    }
+
+    /**
+     * Starts the two nameservers of racing.test, where the first one drops every query.
+     */
+    private void startRacingServers() throws IOException {
+        DNSZoneServer dead = new DNSZoneServer(new InetSocketAddress("127.0.0.5", port), "racing.test",
+                new StringReader(RACING_ZONE));
+        dead.setLossRate(1);
+        servers.add(dead);
+        servers.add(new DNSZoneServer(new InetSocketAddress("127.0.0.6", port), "racing.test",
+                new StringReader(RACING_ZONE)));
+    }
+
+    @Test
+    public void testRacingSkipsDeadServer() throws Exception {
+        startRacingServers();
+        async.setRacing(true);
+        DNSQuestion question = new DNSQuestion("www.racing.test", RecordType.A, RecordClass.IN);
+        long start = System.nanoTime();
+        Collection<ResourceRecord> results = async.getResults(question).get();
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000L;
+        Assertions.assertEquals(Collections.singletonList("10.0.0.2"),
+                results.stream().map(ResourceRecord::getTextResult).collect(Collectors.toList()));
+        Assertions.assertTrue(elapsedMillis < DNSLookupService.SO_TIMEOUT, "Took " + elapsedMillis + " ms");
+    }
+
+    /**
+     * Starts the nameserver of glueless.test, whose delegation has no glue. Its nameservers are ns.example.test, and
+     * ns.slow.example.test, which can only be resolved through the slow.example.test server, which drops every query.
+     */
+    private void startGluelessServers() throws IOException {
+        DNSZoneServer dead = new DNSZoneServer(new InetSocketAddress("127.0.0.5", port), "slow.example.test",
+                new StringReader(""));
+        dead.setLossRate(1);
+        servers.add(dead);
+        servers.add(new DNSZoneServer(new InetSocketAddress("127.0.0.6", port), "glueless.test",
+                new StringReader(GLUELESS_ZONE)));
+    }
+
+    @Test
+    public void testGluelessDelegationResolvesNameServersConcurrently() throws Exception {
+        startGluelessServers();
+        DNSQuestion question = new DNSQuestion("www.glueless.test", RecordType.A, RecordClass.IN);
+        long start = System.nanoTime();
+        Collection<ResourceRecord> results = async.getResults(question).get();
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000L;
+        Assertions.assertEquals(Collections.singletonList("10.0.0.3"),
+                results.stream().map(ResourceRecord::getTextResult).collect(Collectors.toList()));
+        Assertions.assertTrue(elapsedMillis < DNSLookupService.SO_TIMEOUT, "Took " + elapsedMillis + " ms");
+        // The nameservers are looked up from the cached delegation of test, not from the root
+        Assertions.assertEquals(1, servers.get(0).getQueriesReceived());
+    }
+
+    @Test
+    public void testConcurrentLookupsAreCoalesced() throws Exception {
+        servers.get(2).setLatency(200, 0);
+        DNSQuestion question = new DNSQuestion("www.example.test", RecordType.A, RecordClass.IN);
+        List<CompletableFuture<Collection<ResourceRecord>>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            results.add(async.getResults(question));
+        for (CompletableFuture<Collection<ResourceRecord>> result : results)
+            Assertions.assertEquals(Collections.singletonList("10.0.0.1"),
+                    result.get().stream().map(ResourceRecord::getTextResult).collect(Collectors.toList()));
+        Assertions.assertEquals(1, servers.get(0).getQueriesReceived());
+        Assertions.assertEquals(1, servers.get(2).getQueriesReceived());
+    }
+
+    @Test
+    public void testResolveAllLimitsParallelLookups() throws Exception {
+        List<DNSQuestion> questions = Arrays.asList(
+                new DNSQuestion("www.example.test", RecordType.A, RecordClass.IN),
+                new DNSQuestion("ns.example.test", RecordType.A, RecordClass.IN),
+                new DNSQuestion("ns1.example.test", RecordType.A, RecordClass.IN),
+                new DNSQuestion("alias.example.test", RecordType.A, RecordClass.IN),
+                new DNSQuestion("www.example.test", RecordType.AAAA, RecordClass.IN),
+                new DNSQuestion("missing.example.test", RecordType.A, RecordClass.IN));
+        // Caches the delegation, so each lookup then sends a single query, to the slow server
+        async.getResults(new DNSQuestion("ns1.example.test", RecordType.NS, RecordClass.IN)).get();
+        servers.get(2).setLatency(100, 0);
+
+        Map<DNSQuestion, Collection<ResourceRecord>> results = new HashMap<>();
+        List<Integer> inFlight = new ArrayList<>();
+        long start = System.nanoTime();
+        DNSAsyncLookupService.BatchStatistics statistics = async.resolveAll(questions, 2, (question, records) -> {
+            inFlight.add(async.getInFlightCount());
+            Assertions.assertNull(results.put(question, records));
+        });
+        // Three rounds of two lookups, each waiting for the server
+        Assertions.assertTrue((System.nanoTime() - start) / 1_000_000L >= 300);
+        Assertions.assertTrue(inFlight.stream().allMatch(count -> count <= 2));
+
+        Assertions.assertEquals(new HashSet<>(questions), results.keySet());
+        Assertions.assertEquals(1, results.get(questions.get(0)).size());
+        Assertions.assertEquals(2, results.get(questions.get(3)).size());
+        Assertions.assertTrue(results.get(questions.get(4)).isEmpty());
+        Assertions.assertTrue(results.get(questions.get(5)).isEmpty());
+        Assertions.assertEquals(6, statistics.getCount());
+        Assertions.assertEquals(4, statistics.getResolvedCount());
+    }
+
+    @Test
+    public void testBatchLatencyPercentiles() {
+        DNSAsyncLookupService.BatchStatistics statistics = new DNSAsyncLookupService.BatchStatistics(10);
+        Assertions.assertEquals(0, statistics.getLatencyPercentile(50));
+        for (int millis : new int[]{7, 3, 10, 1, 5, 9, 2, 8, 4, 6})
+            statistics.add(millis * 1_000_000L, millis % 2 == 0);
+        statistics.finish();
+        Assertions.assertEquals(10, statistics.getCount());
+        Assertions.assertEquals(5, statistics.getResolvedCount());
+        // Nearest rank: the smallest latency such that at least the given percentage of lookups are no slower
+        Assertions.assertEquals(1, statistics.getLatencyPercentile(0));
+        Assertions.assertEquals(1, statistics.getLatencyPercentile(10));
+        Assertions.assertEquals(2, statistics.getLatencyPercentile(11));
+        Assertions.assertEquals(5, statistics.getLatencyPercentile(50));
+        Assertions.assertEquals(9, statistics.getLatencyPercentile(90));
+        Assertions.assertEquals(10, statistics.getLatencyPercentile(99));
+        Assertions.assertEquals(10, statistics.getLatencyPercentile(100));
+    }
+
+    @Test
+    public void testTruncatedResponseRetriedOverTcp() throws Exception {
+        DNSQuestion question = new DNSQuestion("big1.example.test", RecordType.A, RecordClass.IN);
+        async.setEdnsBufferSize(0);
+        Assertions.assertEquals(LARGE_RRSET_SIZE, async.getResults(question).get().size());
+        Assertions.assertEquals(1, servers.get(2).getTcpQueriesReceived());
+    }
+}
@@ -0,0 +1,357 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DNSCacheTest {
+
+    private static final int THREADS = 8;
+    private static final int RECORDS_PER_THREAD = 5000;
+
+    private DNSCache cache;
+
+    @BeforeEach
+    public void createCache() {
+        this.cache = new DNSCache();
+    }
+
+    private static ResourceRecord record(int thread, int i) throws UnknownHostException {
+        DNSQuestion question = new DNSQuestion("host" + (i % 500) + ".example.com", RecordType.A, RecordClass.IN);
+        byte[] address = {10, (byte) thread, (byte) (i >> 8), (byte) i};
+        return new ResourceRecord(question, 3600, InetAddress.getByAddress(address));
+    }
+
+    private static void runConcurrently(int threads, Callable<Void> task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++)
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return task.call();
+                }));
+            start.countDown();
+            for (Future<Void> future : futures)
+                future.get(60, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCaseInsensitiveHash() {
+        DNSQuestion lower = new DNSQuestion("www.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        DNSQuestion upper = new DNSQuestion("WWW.CS.UBC.CA", RecordType.A, RecordClass.IN);
+        Assertions.assertEquals(lower.hashCode(), upper.hashCode());
+        Assertions.assertNotEquals(lower.hashCode(),
+                new DNSQuestion("www.cs.ubc.ca", RecordType.AAAA, RecordClass.IN).hashCode());
+    }
+
+    @Test
+    public void testUpdateKeepsLongestExpiration() throws UnknownHostException {
+        DNSQuestion question = new DNSQuestion("www.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        InetAddress address = InetAddress.getByName("142.103.6.5");
+        cache.addResult(new ResourceRecord(question, 10, address));
+        cache.addResult(new ResourceRecord(question, 3600, address));
+        cache.addResult(new ResourceRecord(question, 20, address));
+        List<ResourceRecord> results = cache.getCachedResults(question, false);
+        Assertions.assertEquals(1, results.size());
+        Assertions.assertTrue(results.get(0).getRemainingTTL() > 3000);
+    }
+
+    @Test
+    public void testConcurrentAddsAreNotLost() throws Exception {
+        AtomicInteger nextThread = new AtomicInteger();
+        runConcurrently(THREADS, () -> {
+            int thread = nextThread.getAndIncrement();
+            for (int i = 0; i < RECORDS_PER_THREAD; i++) {
+                ResourceRecord record = record(thread, i);
+                cache.addResult(record);
+                Assertions.assertTrue(cache.getCachedResults(record.getQuestion(), false).contains(record));
+            }
+            return null;
+        });
+
+        Set<ResourceRecord> all = new HashSet<>();
+        cache.forEachRecord((question, record) -> all.add(record));
+        for (int thread = 0; thread < THREADS; thread++)
+            for (int i = 0; i < RECORDS_PER_THREAD; i++)
+                Assertions.assertTrue(all.contains(record(thread, i)), "Lost update for thread " + thread + ", record " + i);
+    }
+
+    @Test
+    public void testConcurrentReadsDuringWrites() throws Exception {
+        DNSQuestion hot = new DNSQuestion("hot.example.com", RecordType.A, RecordClass.IN);
+        cache.addResult(new ResourceRecord(hot, 3600, InetAddress.getByName("10.0.0.1")));
+        AtomicInteger nextThread = new AtomicInteger();
+        runConcurrently(THREADS, () -> {
+            int thread = nextThread.getAndIncrement();
+            for (int i = 0; i < RECORDS_PER_THREAD; i++) {
+                if (thread % 2 == 0)
+                    cache.addResult(record(thread, i));
+                else
+                    Assertions.assertFalse(cache.getCachedResults(hot, true).isEmpty());
+            }
+            return null;
+        });
+    }
+
+    @Test
+    public void testConcurrentReadsOfSeparateQuestions() throws Exception {
+        // Readers look up 500 questions spread over the segments, while a writer keeps adding records to another one
+        DNSQuestion busy = new DNSQuestion("busy.example.com", RecordType.A, RecordClass.IN);
+        cache.addResult(new ResourceRecord(busy, 3600, InetAddress.getByName("10.255.0.0")));
+        for (int thread = 1; thread < THREADS; thread++)
+            for (int i = 0; i < 500; i++)
+                cache.addResult(record(thread, i));
+        AtomicInteger nextThread = new AtomicInteger();
+        runConcurrently(THREADS, () -> {
+            int thread = nextThread.getAndIncrement();
+            for (int i = 0; i < RECORDS_PER_THREAD; i++) {
+                if (thread == 0) {
+                    cache.addResult(new ResourceRecord(busy, 3600,
+                            InetAddress.getByAddress(new byte[]{10, (byte) 255, (byte) (i >> 8), (byte) i})));
+                } else {
+                    ResourceRecord expected = record(thread, i % 500);
+                    List<ResourceRecord> results = cache.getCachedResults(expected.getQuestion(), false);
+                    // Each question has one record per reader thread, added above
+                    Assertions.assertEquals(THREADS - 1, results.size());
+                    Assertions.assertTrue(results.contains(expected));
+                }
+            }
+            return null;
+        });
+        // The first record written is the one added at the start
+        Assertions.assertEquals(RECORDS_PER_THREAD, cache.getCachedResults(busy, false).size());
+    }
+
+    @Test
+    public void testServeStaleTriggersSingleRefresh() throws Exception {
+        DNSQuestion question = new DNSQuestion("stale.example.com", RecordType.A, RecordClass.IN);
+        cache.addResult(new ResourceRecord(question, 1, InetAddress.getByName("10.0.0.1")));
+        AtomicInteger refreshes = new AtomicInteger();
+        CompletableFuture<Void> pending = new CompletableFuture<>();
+        cache.setRefresher(q -> {
+            refreshes.incrementAndGet();
+            return pending;
+        });
+        cache.setServeStale(60);
+        Thread.sleep(1100);
+
+        Assertions.assertTrue(cache.getCachedResults(question, false).isEmpty());
+        Assertions.assertEquals(1, cache.getClientResults(question, false).size());
+        Assertions.assertEquals(1, cache.getClientResults(question, false).size());
+        Assertions.assertEquals(1, refreshes.get());
+
+        pending.complete(null);
+        cache.getClientResults(question, false);
+        Assertions.assertEquals(2, refreshes.get());
+
+        cache.setServeStale(0);
+        Assertions.assertTrue(cache.getClientResults(question, false).isEmpty());
+    }
+
+    @Test
+    public void testPrefetchPopularQuestions() throws Exception {
+        DNSQuestion question = new DNSQuestion("popular.example.com", RecordType.A, RecordClass.IN);
+        cache.addResult(new ResourceRecord(question, 5, InetAddress.getByName("10.0.0.1")));
+        List<DNSQuestion> refreshed = new ArrayList<>();
+        cache.setRefresher(q -> {
+            refreshed.add(q);
+            return CompletableFuture.completedFuture(null);
+        });
+
+        cache.setPrefetch(3, 1);
+        for (int i = 0; i < 5; i++) cache.getClientResults(question, false);
+        Assertions.assertTrue(refreshed.isEmpty(), "Prefetched outside the window");
+
+        cache.setPrefetch(3, 10);
+        cache.getClientResults(question, false);
+        cache.getCachedResults(question, false);
+        Assertions.assertEquals(Collections.singletonList(question), refreshed);
+
+        // Hits are counted again from zero after a refresh
+        cache.getClientResults(question, false);
+        cache.getClientResults(question, false);
+        Assertions.assertEquals(1, refreshed.size());
+        cache.getClientResults(question, false);
+        Assertions.assertEquals(2, refreshed.size());
+    }
+
+    @Test
+    public void testCNameChainExpiresWithFirstRecord() throws Exception {
+        DNSQuestion question = new DNSQuestion("www.example.com", RecordType.A, RecordClass.IN);
+        DNSQuestion target = new DNSQuestion("www.cdn.example.net", RecordType.A, RecordClass.IN);
+        List<ResourceRecord> chain = Arrays.asList(
+                new ResourceRecord(question.withType(RecordType.CNAME), 3600, "web.example.com"),
+                new ResourceRecord(new DNSQuestion("web.example.com", RecordType.CNAME, RecordClass.IN), 1,
+                        "www.cdn.example.net"),
+                new ResourceRecord(target, 3600, InetAddress.getByName("10.0.0.1")),
+                new ResourceRecord(target, 3600, InetAddress.getByName("10.0.0.2")));
+        cache.addCNameChain(question, chain);
+        List<ResourceRecord> results = cache.getCNameChain(question);
+        Assertions.assertEquals(chain.subList(0, 2), results.subList(0, 2));
+        Assertions.assertEquals(new HashSet<>(chain), new HashSet<>(results));
+        Assertions.assertNull(cache.getCNameChain(target));
+        Assertions.assertTrue(cache.getCachedResults(question, true).isEmpty());
+        Thread.sleep(1100);
+        Assertions.assertNull(cache.getCNameChain(question));
+
+        // Records of the question itself replace the chain
+        cache.addCNameChain(question, chain.subList(2, 4));
+        Assertions.assertNotNull(cache.getCNameChain(question));
+        cache.addResult(new ResourceRecord(question, 3600, InetAddress.getByName("10.0.0.3")));
+        Assertions.assertNull(cache.getCNameChain(question));
+    }
+
+    @Test
+    public void testNegativeResultExpiresOrIsReplaced() throws Exception {
+        DNSQuestion question = new DNSQuestion("missing.example.com", RecordType.A, RecordClass.IN);
+        cache.addNegativeResult(question, 1);
+        Assertions.assertTrue(cache.hasNegativeResult(question));
+        Assertions.assertTrue(cache.getCachedResults(question, true).isEmpty());
+        Thread.sleep(1100);
+        Assertions.assertFalse(cache.hasNegativeResult(question));
+
+        cache.addNegativeResult(question, 3600);
+        cache.addResult(new ResourceRecord(question, 3600, InetAddress.getByName("10.0.0.1")));
+        Assertions.assertFalse(cache.hasNegativeResult(question));
+    }
+
+    @Test
+    public void testEvictionKeepsFrequentlyUsedQuestions() throws Exception {
+        cache = new DNSCache(1);
+        cache.setMaximumSize(100);
+        DNSQuestion hot = new DNSQuestion("hot.example.com", RecordType.A, RecordClass.IN);
+        cache.addResult(new ResourceRecord(hot, 3600, InetAddress.getByName("10.0.0.1")));
+        for (int i = 0; i < 10000; i++) {
+            Assertions.assertFalse(cache.getClientResults(hot, false).isEmpty(), "Hot question evicted at " + i);
+            DNSQuestion cold = new DNSQuestion("cold" + i + ".example.com", RecordType.A, RecordClass.IN);
+            cache.getClientResults(cold, false);
+            cache.addResult(new ResourceRecord(cold, 3600, InetAddress.getByName("10.1.0.1")));
+        }
+        Assertions.assertFalse(cache.getCachedResults(DNSCache.rootQuestion, false).isEmpty());
+
+        DNSCache.Statistics statistics = cache.getStatistics();
+        Assertions.assertTrue(statistics.getSize() <= 100);
+        Assertions.assertTrue(statistics.getEvictions() >= 9900);
+        Assertions.assertEquals(10000, statistics.getHits());
+        Assertions.assertEquals(10000, statistics.getMisses());
+        Assertions.assertEquals(0.5, statistics.getHitRatio());
+    }
+
+    @Test
+    public void testSweepRemovesExpiredQuestions() throws Exception {
+        int initialSize = cache.size();
+        for (int i = 0; i < 10; i++)
+            cache.addResult(new ResourceRecord(new DNSQuestion("short" + i + ".example.com", RecordType.A,
+                    RecordClass.IN), 1, InetAddress.getByName("10.0.0.1")));
+        Assertions.assertEquals(initialSize + 10, cache.size());
+        Thread.sleep(1100);
+        cache.sweep();
+        Assertions.assertEquals(initialSize, cache.size());
+        Assertions.assertEquals(10, cache.getStatistics().getExpirations());
+    }
+
+    @Test
+    public void testWireRRsetMatchesEncodedRecords() throws Exception {
+        DNSQuestion question = new DNSQuestion("www.example.com", RecordType.A, RecordClass.IN);
+        cache.addResult(new ResourceRecord(question, 3600, InetAddress.getByName("10.0.0.1")));
+        cache.addResult(new ResourceRecord(question, 3600, InetAddress.getByName("10.0.0.2")));
+        WireRRset wire = cache.getWireRRset(question);
+        Assertions.assertEquals(2, wire.getCount());
+        Assertions.assertSame(wire, cache.getWireRRset(question));
+
+        // Results are shuffled, so encode them in a known order
+        List<ResourceRecord> records = cache.getCachedResults(question, false);
+        wire = WireRRset.encode(records);
+        DNSMessage expected = new DNSMessage((short) 1);
+        expected.addQuestion(question);
+        int questionEnd = expected.getUsed().length;
+        records.forEach(r -> expected.addResourceRecord(r, "answer"));
+        ByteBuffer buffer = ByteBuffer.allocate(DNSMessage.MAX_DNS_MESSAGE_LENGTH);
+        buffer.put(expected.getUsed(), 0, questionEnd);
+        Assertions.assertEquals(-1, wire.appendTo(buffer, 12, System.currentTimeMillis(), 0));
+        Assertions.assertArrayEquals(expected.getUsed(), Arrays.copyOf(buffer.array(), buffer.position()));
+
+        // Rotated, starting with the second record
+        DNSMessage rotated = new DNSMessage((short) 1);
+        rotated.addQuestion(question);
+        rotated.addResourceRecord(records.get(1), "answer");
+        rotated.addResourceRecord(records.get(0), "answer");
+        buffer.position(questionEnd);
+        wire.appendTo(buffer, 12, System.currentTimeMillis(), 3);
+        Assertions.assertArrayEquals(rotated.getUsed(), Arrays.copyOf(buffer.array(), buffer.position()));
+
+        // Changing the records drops the encoding
+        cache.addResult(new ResourceRecord(question, 3600, InetAddress.getByName("10.0.0.3")));
+        Assertions.assertEquals(3, cache.getWireRRset(question).getCount());
+
+        // Questions with no records of their type return their CNAME record, with the position of its target
+        DNSQuestion alias = new DNSQuestion("alias.example.org", RecordType.CNAME, RecordClass.IN);
+        cache.addResult(new ResourceRecord(alias, 3600, "www.example.com"));
+        wire = cache.getWireRRset(new DNSQuestion("alias.example.org", RecordType.A, RecordClass.IN));
+        Assertions.assertEquals(RecordType.CNAME, wire.getRecordType());
+        Assertions.assertSame(question.getName(), wire.getTarget());
+        buffer.clear().position(100);
+        int target = wire.appendTo(buffer, 12, System.currentTimeMillis(), 1);
+        Assertions.assertEquals(100 + 12, target);
+        Assertions.assertEquals(3, buffer.get(target));
+
+        Assertions.assertNull(cache.getWireRRset(new DNSQuestion("missing.example.com", RecordType.A,
+                RecordClass.IN)));
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws Exception {
+        DNSQuestion a = new DNSQuestion("www.example.com", RecordType.A, RecordClass.IN);
+        DNSQuestion aaaa = new DNSQuestion("www.example.com", RecordType.AAAA, RecordClass.IN);
+        DNSQuestion cname = new DNSQuestion("alias.example.com", RecordType.CNAME, RecordClass.IN);
+        DNSQuestion missing = new DNSQuestion("missing.example.com", RecordType.A, RecordClass.IN);
+        DNSQuestion shortLived = new DNSQuestion("short.example.com", RecordType.A, RecordClass.IN);
+        cache.addResult(new ResourceRecord(a, 3600, InetAddress.getByName("10.0.0.1")));
+        cache.addResult(new ResourceRecord(aaaa, 3600, InetAddress.getByName("2001:db8::1")));
+        cache.addResult(new ResourceRecord(cname, 600, "www.example.com"));
+        ResourceRecord soa = new ResourceRecord(new DNSQuestion("example.com", RecordType.SOA, RecordClass.IN), 3600,
+                new RData.SOA("ns.example.com", "hostmaster.example.com", 1, 3600, 600, 86400, 600).toHexString());
+        cache.addNegativeResult(missing, 600, 3, soa);
+        // The SOA record is kept with the TTL of the negative result
+        Assertions.assertTrue(cache.getNegativeResult(missing).getSOA().getRemainingTTL() <= 600);
+        cache.addResult(new ResourceRecord(shortLived, System.currentTimeMillis() + 300, "10.0.0.2",
+                InetAddress.getByName("10.0.0.2")));
+
+        Path file = Files.createTempFile("dnscache", ".snapshot");
+        try {
+            Assertions.assertEquals(cache.size(), cache.saveSnapshot(file));
+            Thread.sleep(400);
+
+            DNSCache loaded = new DNSCache();
+            loaded.loadSnapshot(file);
+            Assertions.assertEquals(cache.getCachedResults(a, false), loaded.getCachedResults(a, false));
+            Assertions.assertEquals(InetAddress.getByName("2001:db8::1"),
+                    loaded.getCachedResults(aaaa, false).get(0).getInetResult());
+            ResourceRecord alias = loaded.getCachedResults(cname, false).get(0);
+            Assertions.assertEquals("www.example.com", alias.getTextResult());
+            Assertions.assertEquals(cache.getCachedResults(cname, false).get(0).getExpirationMillis(),
+                    alias.getExpirationMillis());
+            Assertions.assertTrue(loaded.hasNegativeResult(missing));
+            DNSCache.NegativeResult negative = loaded.getNegativeResult(missing);
+            Assertions.assertEquals(3, negative.getRcode());
+            Assertions.assertEquals(soa.getTextResult(), negative.getSOA().getTextResult());
+            Assertions.assertEquals(cache.getNegativeResult(missing).getSOA().getExpirationMillis(),
+                    negative.getSOA().getExpirationMillis());
+            Assertions.assertTrue(loaded.getCachedResults(shortLived, false).isEmpty());
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -3,16 +3,58 @@ package ca.ubc.cs.cs317.dnslookup;
 import org.junit.jupiter.api.*;
 
 import java.io.IOException;
+import java.io.StringReader;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 public class DNSLookupServiceTest {
 
+    // Number of records of big1.example.test and big2.example.test, too many for a 512-byte UDP response
+    private static final int LARGE_RRSET_SIZE = 40;
+
+    private static final String ROOT_ZONE = String.join("\n",
+            "@ SOA a.root. nstld. 1 1800 900 604800 86400",
+            "test. 172800 NS ns.nic.test.",
+            "ns.nic.test. 172800 A 127.0.0.3");
+    private static final String TEST_ZONE = String.join("\n",
+            "$ORIGIN test.",
+            "@ SOA ns.nic hostmaster.nic 1 1800 900 604800 900",
+            "example NS ns1.example",
+            "ns1.example A 127.0.0.4",
+            "racing NS ns1.racing",
+            "racing NS ns2.racing",
+            "ns1.racing A 127.0.0.5",
+            "ns2.racing A 127.0.0.6",
+            "glueless NS ns.example",
+            "glueless NS ns.slow.example");
+    private static final String RACING_ZONE = String.join("\n",
+            "$ORIGIN racing.test.",
+            "@ SOA ns1 hostmaster 1 3600 600 86400 300",
+            "www A 10.0.0.2");
+    private static final String GLUELESS_ZONE = String.join("\n",
+            "$ORIGIN glueless.test.",
+            "@ SOA ns.example.test. hostmaster 1 3600 600 86400 300",
+            "www A 10.0.0.3");
+    private static final String EXAMPLE_ZONE = String.join("\n",
+            "$ORIGIN example.test.",
+            "$TTL 300",
+            "@ SOA ns1 hostmaster 1 3600 600 86400 300",
+            "@ NS ns1",
+            "ns1 A 127.0.0.4",
+            "ns A 127.0.0.6",
+            "slow NS ns1.slow",
+            "ns1.slow A 127.0.0.5",
+            "www A 10.0.0.1",
+            IntStream.range(0, LARGE_RRSET_SIZE).mapToObj(i -> "big1 A 10.1.0." + i + "\nbig2 A 10.2.0." + i)
+                    .collect(Collectors.joining("\n")));
+
+    private final List<DNSZoneServer> servers = new ArrayList<>();
     private DNSLookupService service;
     private Random random;
     private DNSCache cache;
@@ -24,6 +66,59 @@ public class DNSLookupServiceTest {
         this.random = new Random();
     }
 
+    @AfterEach
+    public void stopServers() {
+        service.close();
+        servers.forEach(DNSZoneServer::close);
+        cache.setRootNameServers(null);
+        InfrastructureCache.getInstance().reset();
+    }
+
+    /**
+     * Starts the nameservers of the root, test and example.test zones on a common port, and points the service at
+     * them instead of the (unreachable) nameserver of the unit tests.
+     */
+    private void startZoneServers() throws IOException {
+        DNSZoneServer root = new DNSZoneServer(new InetSocketAddress("127.0.0.2", 0), "", new StringReader(ROOT_ZONE));
+        servers.add(root);
+        int port = root.getAddress().getPort();
+        servers.add(new DNSZoneServer(new InetSocketAddress("127.0.0.3", port), "test", new StringReader(TEST_ZONE)));
+        servers.add(new DNSZoneServer(new InetSocketAddress("127.0.0.4", port), "example.test",
+                new StringReader(EXAMPLE_ZONE)));
+
+        cache.setRootNameServers(Collections.singletonList("127.0.0.2"));
+        service.close();
+        service = new DNSLookupService("root", new DNSLookupCUI());
+        service.setPort(port);
+    }
+
+    /**
+     * Starts the two nameservers of racing.test, where the first one drops every query.
+     */
+    private void startRacingServers() throws IOException {
+        int port = service.getPort();
+        DNSZoneServer dead = new DNSZoneServer(new InetSocketAddress("127.0.0.5", port), "racing.test",
+                new StringReader(RACING_ZONE));
+        dead.setLossRate(1);
+        servers.add(dead);
+        servers.add(new DNSZoneServer(new InetSocketAddress("127.0.0.6", port), "racing.test",
+                new StringReader(RACING_ZONE)));
+    }
+
+    /**
+     * Starts the nameserver of glueless.test, whose delegation has no glue. Its nameservers are ns.example.test, and
+     * ns.slow.example.test, which can only be resolved through the slow.example.test server, which drops every query.
+     */
+    private void startGluelessServers() throws IOException {
+        int port = service.getPort();
+        DNSZoneServer dead = new DNSZoneServer(new InetSocketAddress("127.0.0.5", port), "slow.example.test",
+                new StringReader(""));
+        dead.setLossRate(1);
+        servers.add(dead);
+        servers.add(new DNSZoneServer(new InetSocketAddress("127.0.0.6", port), "glueless.test",
+                new StringReader(GLUELESS_ZONE)));
+    }
+
     private void buildQueryCommonTest(DNSQuestion question) {
         DNSMessage message = service.buildQuery(question);
 
@@ -126,4 +221,247 @@ public class DNSLookupServiceTest {
                 Collections.singleton(new ResourceRecord(question, 16482, InetAddress.getByName("103.233.44.22"))),
                 Collections.emptySet(), Collections.emptySet());
     }
+
+    @Test
+    public void testFlattensCNameChainFromSingleResponse() throws Exception {
+        DNSQuestion question = new DNSQuestion("www.chain.test", RecordType.A, RecordClass.IN);
+        DNSQuestion target = new DNSQuestion("www.cdn.chain.test", RecordType.A, RecordClass.IN);
+        // Answers out of order, and an unrelated record, as some servers send them
+        List<ResourceRecord> answers = Arrays.asList(
+                new ResourceRecord(target, 600, InetAddress.getByName("10.0.0.1")),
+                new ResourceRecord(new DNSQuestion("web.chain.test", RecordType.CNAME, RecordClass.IN), 300,
+                        "www.cdn.chain.test"),
+                new ResourceRecord(new DNSQuestion("other.chain.test", RecordType.A, RecordClass.IN), 600,
+                        InetAddress.getByName("10.0.0.9")),
+                new ResourceRecord(question.withType(RecordType.CNAME), 3600, "web.chain.test"));
+        List<ResourceRecord> chain = DNSLookupService.flattenCNameChain(question, answers);
+        Assertions.assertEquals(Arrays.asList(answers.get(3), answers.get(1), answers.get(0)), chain);
+        Assertions.assertNull(DNSLookupService.flattenCNameChain(target, answers));
+        Assertions.assertNull(DNSLookupService.flattenCNameChain(question, answers.subList(1, 4)));
+        List<ResourceRecord> loop = Arrays.asList(
+                new ResourceRecord(question.withType(RecordType.CNAME), 3600, "web.chain.test"),
+                new ResourceRecord(new DNSQuestion("web.chain.test", RecordType.CNAME, RecordClass.IN), 300,
+                        "www.chain.test"));
+        Assertions.assertNull(DNSLookupService.flattenCNameChain(question, loop));
+
+        service.processResponse(turnaround(buildResponse(1, true, 0, Collections.singleton(question), answers,
+                Collections.emptySet(), Collections.emptySet())));
+        List<ResourceRecord> cached = cache.getCNameChain(question);
+        Assertions.assertEquals(chain, cached);
+        // The chain expires with its first record
+        long remaining = (cached.get(1).getExpirationMillis() - System.currentTimeMillis()) / 1000;
+        Assertions.assertTrue(remaining > 290 && remaining <= 300);
+        // Answered from the chain, without any query to the (unreachable) nameserver
+        Assertions.assertEquals(chain, service.getResultsFollowingCNames(question, 10));
+        Assertions.assertThrows(DNSLookupService.CNameIndirectionLimitException.class,
+                () -> service.getResultsFollowingCNames(question, 1));
+    }
+
+    private static byte[] answer(int id, DNSQuestion question, String address) throws UnknownHostException {
+        DNSMessage response = new DNSMessage((short) id);
+        response.setQR(true);
+        response.addQuestion(question);
+        response.addResourceRecord(new ResourceRecord(question, 3600, InetAddress.getByName(address)), "answer");
+        return response.getUsed();
+    }
+
+    @Test
+    public void testIsResponseTo() throws UnknownHostException {
+        DNSQuestion question = new DNSQuestion("www.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        DNSMessageView view = new DNSMessageView();
+        byte[] data = answer(1234, question, "10.0.0.1");
+        Assertions.assertTrue(DNSLookupService.isResponseTo(view, data, data.length, 1234, question));
+        Assertions.assertFalse(DNSLookupService.isResponseTo(view, data, data.length, 1235, question));
+        Assertions.assertFalse(DNSLookupService.isResponseTo(view, data, data.length, 1234,
+                new DNSQuestion("www.cs.ubc.ca", RecordType.AAAA, RecordClass.IN)));
+        Assertions.assertFalse(DNSLookupService.isResponseTo(view, data, data.length, 1234,
+                new DNSQuestion("ww.cs.ubc.ca", RecordType.A, RecordClass.IN)));
+        Assertions.assertFalse(DNSLookupService.isResponseTo(view, data, 11, 1234, question));
+        Assertions.assertFalse(DNSLookupService.isResponseTo(view, data, 20, 1234, question));
+
+        // The question is compared ignoring case, as servers may echo it in the case of the query
+        data[13] = 'W';
+        Assertions.assertTrue(DNSLookupService.isResponseTo(view, data, data.length, 1234, question));
+        data[2] &= 0x7f;
+        Assertions.assertFalse(DNSLookupService.isResponseTo(view, data, data.length, 1234, question));
+    }
+
+    @Test
+    public void testIgnoresSpoofedResponses() throws Exception {
+        DNSQuestion question = new DNSQuestion("spoofed.example.test", RecordType.A, RecordClass.IN);
+        InetAddress serverAddress = InetAddress.getByName("127.0.0.5");
+        try (DatagramSocket server = new DatagramSocket(0, serverAddress);
+             DatagramSocket attacker = new DatagramSocket(0, serverAddress)) {
+            AtomicInteger queries = new AtomicInteger();
+            Thread thread = new Thread(() -> {
+                try {
+                    DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+                    server.receive(packet);
+                    queries.incrementAndGet();
+                    int id = ((packet.getData()[0] & 0xff) << 8) | (packet.getData()[1] & 0xff);
+                    SocketAddress client = packet.getSocketAddress();
+                    // From another port, then for another question, and only then the actual response
+                    byte[] data = answer(id, question, "10.6.6.6");
+                    attacker.send(new DatagramPacket(data, data.length, client));
+                    data = answer(id, new DNSQuestion("other.example.test", RecordType.A, RecordClass.IN), "10.6.6.6");
+                    server.send(new DatagramPacket(data, data.length, client));
+                    data = answer(id, question, "10.0.0.1");
+                    server.send(new DatagramPacket(data, data.length, client));
+                    server.setSoTimeout(500);
+                    server.receive(packet);
+                    queries.incrementAndGet();
+                } catch (IOException ignored) {
+                }
+            });
+            thread.start();
+            service.setPort(server.getLocalPort());
+            Assertions.assertNotNull(service.individualQueryProcess(question, serverAddress));
+            thread.join();
+            Assertions.assertEquals(1, queries.get());
+            List<ResourceRecord> results = cache.getCachedResults(question, false);
+            Assertions.assertEquals(1, results.size());
+            Assertions.assertEquals("10.0.0.1", results.get(0).getTextResult());
+        }
+    }
+
+    @Test
+    public void testLookupStartsAtClosestCachedDelegation() throws Exception {
+        startZoneServers();
+        service.getResults(new DNSQuestion("www.example.test", RecordType.A, RecordClass.IN));
+        Collection<ResourceRecord> results = service.getResults(
+                new DNSQuestion("ns.example.test", RecordType.A, RecordClass.IN));
+        Assertions.assertEquals(Collections.singletonList("127.0.0.6"),
+                results.stream().map(ResourceRecord::getTextResult).collect(Collectors.toList()));
+        // The second lookup goes straight to the nameserver of example.test
+        Assertions.assertEquals(1, servers.get(0).getQueriesReceived());
+        Assertions.assertEquals(1, servers.get(1).getQueriesReceived());
+        Assertions.assertEquals(2, servers.get(2).getQueriesReceived());
+    }
+
+    @Test
+    public void testNegativeAnswersAreCached() throws Exception {
+        startZoneServers();
+        DNSQuestion missing = new DNSQuestion("missing.example.test", RecordType.A, RecordClass.IN);
+        DNSQuestion noData = new DNSQuestion("www.example.test", RecordType.MX, RecordClass.IN);
+        Assertions.assertTrue(service.getResults(missing).isEmpty());
+        Assertions.assertTrue(service.getResults(noData).isEmpty());
+        Assertions.assertTrue(cache.hasNegativeResult(missing));
+        Assertions.assertTrue(cache.hasNegativeResult(noData));
+        long queries = servers.stream().mapToLong(DNSZoneServer::getQueriesReceived).sum();
+
+        Assertions.assertTrue(service.getResults(missing).isEmpty());
+        Assertions.assertTrue(service.getResults(noData).isEmpty());
+        Assertions.assertEquals(queries, servers.stream().mapToLong(DNSZoneServer::getQueriesReceived).sum());
+    }
+
+    @Test
+    public void testRacingSkipsDeadServer() throws Exception {
+        startZoneServers();
+        startRacingServers();
+        service.setRacing(true);
+        DNSQuestion question = new DNSQuestion("www.racing.test", RecordType.A, RecordClass.IN);
+        long start = System.nanoTime();
+        Collection<ResourceRecord> results = service.getResults(question);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000L;
+        Assertions.assertEquals(Collections.singletonList("10.0.0.2"),
+                results.stream().map(ResourceRecord::getTextResult).collect(Collectors.toList()));
+        Assertions.assertTrue(elapsedMillis < DNSLookupService.SO_TIMEOUT, "Took " + elapsedMillis + " ms");
+        Assertions.assertEquals(1, servers.get(4).getQueriesReceived());
+    }
+
+    @Test
+    public void testFailedServerIsAvoided() throws Exception {
+        startZoneServers();
+        startRacingServers();
+        InfrastructureCache.getInstance().recordTimeout(InetAddress.getByName("127.0.0.5"));
+        DNSQuestion question = new DNSQuestion("www.racing.test", RecordType.A, RecordClass.IN);
+        Assertions.assertFalse(service.getResults(question).isEmpty());
+        Assertions.assertEquals(0, servers.get(3).getQueriesReceived());
+        Assertions.assertEquals(1, servers.get(4).getQueriesReceived());
+    }
+
+    @Test
+    public void testGluelessDelegationResolvesNameServersConcurrently() throws Exception {
+        startZoneServers();
+        startGluelessServers();
+        DNSQuestion question = new DNSQuestion("www.glueless.test", RecordType.A, RecordClass.IN);
+        long start = System.nanoTime();
+        Collection<ResourceRecord> results = service.getResults(question);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000L;
+        Assertions.assertEquals(Collections.singletonList("10.0.0.3"),
+                results.stream().map(ResourceRecord::getTextResult).collect(Collectors.toList()));
+        Assertions.assertTrue(elapsedMillis < DNSLookupService.SO_TIMEOUT, "Took " + elapsedMillis + " ms");
+        Assertions.assertFalse(cache.getCachedResults(
+                new DNSQuestion("ns.example.test", RecordType.A, RecordClass.IN), false).isEmpty());
+        // The nameservers are looked up from the cached delegation of test, not from the root
+        Assertions.assertEquals(1, servers.get(0).getQueriesReceived());
+    }
+
+    @Test
+    public void testCloseStopsGlueLookups() throws Exception {
+        startZoneServers();
+        startGluelessServers();
+        DNSZoneServer dead = servers.get(servers.size() - 2);
+        Assertions.assertEquals(1, service.getResults(
+                new DNSQuestion("www.glueless.test", RecordType.A, RecordClass.IN)).size());
+        // The lookup of ns.slow.example.test is still retrying the dead server, until the service is closed
+        long start = System.nanoTime();
+        service.close();
+        Assertions.assertTrue((System.nanoTime() - start) / 1_000_000L < DNSLookupService.SO_TIMEOUT);
+        long queries = dead.getQueriesReceived();
+        Thread.sleep(InfrastructureCache.INITIAL_RTO_MILLIS + 200);
+        Assertions.assertEquals(queries, dead.getQueriesReceived());
+    }
+
+    @Test
+    public void testConcurrentLookupsAreCoalesced() throws Exception {
+        startZoneServers();
+        servers.get(2).setLatency(200, 0);
+        DNSQuestion question = new DNSQuestion("www.example.test", RecordType.A, RecordClass.IN);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Collection<ResourceRecord>>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> {
+                    DNSLookupService client = new DNSLookupService("127.0.0.2", new DNSLookupCUI());
+                    try {
+                        client.setPort(service.getPort());
+                        return client.getResults(question);
+                    } finally {
+                        client.close();
+                    }
+                }));
+            }
+            for (Future<Collection<ResourceRecord>> result : results)
+                Assertions.assertEquals(Collections.singletonList("10.0.0.1"),
+                        result.get().stream().map(ResourceRecord::getTextResult).collect(Collectors.toList()));
+        } finally {
+            executor.shutdown();
+        }
+        Assertions.assertEquals(1, servers.get(2).getQueriesReceived());
+    }
+
+    @Test
+    public void testLargeResponseFitsWithEdns() throws Exception {
+        startZoneServers();
+        DNSQuestion question = new DNSQuestion("big1.example.test", RecordType.A, RecordClass.IN);
+        Assertions.assertEquals(LARGE_RRSET_SIZE, service.getResults(question).size());
+        Assertions.assertEquals(0, servers.get(2).getResponsesTruncated());
+        Assertions.assertEquals(0, servers.get(2).getTcpQueriesReceived());
+    }
+
+    @Test
+    public void testTruncatedResponseRetriedOverTcp() throws Exception {
+        startZoneServers();
+        service.setEdnsBufferSize(0);
+        for (String name : new String[]{"big1.example.test", "big2.example.test"}) {
+            DNSQuestion question = new DNSQuestion(name, RecordType.A, RecordClass.IN);
+            Assertions.assertEquals(LARGE_RRSET_SIZE, service.getResults(question).size());
+        }
+        Assertions.assertEquals(2, servers.get(2).getResponsesTruncated());
+        Assertions.assertEquals(2, servers.get(2).getTcpQueriesReceived());
+        // The second query reuses the connection opened for the first one
+        Assertions.assertEquals(1, servers.get(2).getTcpConnectionsAccepted());
+        Assertions.assertEquals(1, service.getTcpConnectionsOpened());
+    }
 }
@@ -2,6 +2,10 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import org.junit.jupiter.api.Test;
 
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public class DNSMessageTest {
@@ -60,4 +64,217 @@ public class DNSMessageTest {
         ResourceRecord replyRR = reply.getRR();
         assertEquals(rr, replyRR);
     }
+    @Test
+    public void testViewMatchesDecoder() throws Exception {
+        DNSMessage response = new DNSMessage((short)42);
+        response.setQR(true);
+        DNSQuestion question = new DNSQuestion("www.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        DNSQuestion nsQuestion = new DNSQuestion("cs.ubc.ca", RecordType.NS, RecordClass.IN);
+        DNSQuestion glueQuestion = new DNSQuestion("ns1.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        response.addQuestion(question);
+        response.addResourceRecord(new ResourceRecord(question, 300, InetAddress.getByName("142.103.6.5")), "answer");
+        response.addResourceRecord(new ResourceRecord(nsQuestion, 3600, "ns1.cs.ubc.ca"), "nameserver");
+        response.addResourceRecord(new ResourceRecord(glueQuestion, 3600, InetAddress.getByName("142.103.6.6")), "additional");
+        byte[] content = response.getUsed();
+
+        DNSMessage decoded = new DNSMessage(content, content.length);
+        DNSMessageView view = new DNSMessageView();
+        assertTrue(view.wrap(content, content.length));
+        assertEquals(42, view.getID());
+        assertTrue(view.getQR());
+
+        assertTrue(view.next());
+        assertEquals(DNSMessageView.QUESTION, view.getSection());
+        assertTrue(view.nameEquals("WWW.cs.ubc.ca"));
+        assertFalse(view.nameEquals("www.cs.ubc"));
+        assertEquals(decoded.getQuestion(), view.toQuestion());
+        int[] sections = {DNSMessageView.ANSWER, DNSMessageView.NAMESERVER, DNSMessageView.ADDITIONAL};
+        for (int section : sections) {
+            assertTrue(view.next());
+            assertEquals(section, view.getSection());
+            ResourceRecord expected = decoded.getRR();
+            assertTrue(view.nameEquals(expected.getHostName()));
+            assertEquals(expected, view.toResourceRecord());
+        }
+        assertFalse(view.next());
+    }
+
+    @Test
+    public void testViewStopsOnTruncatedMessage() {
+        DNSMessage request = new DNSMessage((short)23);
+        request.addQuestion(new DNSQuestion("norm.cs.ubc.ca", RecordType.A, RecordClass.IN));
+        request.setANCount(1);
+        byte[] content = request.getUsed();
+
+        DNSMessageView view = new DNSMessageView();
+        assertTrue(view.wrap(content, content.length));
+        assertTrue(view.next());
+        assertFalse(view.next());
+        assertFalse(view.wrap(content, 6));
+        assertFalse(view.next());
+    }
+
+    @Test
+    public void testAddOpt() {
+        DNSMessage request = new DNSMessage((short)24);
+        request.addQuestion(new DNSQuestion("norm.cs.ubc.ca", RecordType.A, RecordClass.IN));
+        request.addOpt(1232);
+        byte[] content = request.getUsed();
+
+        DNSMessage decoded = new DNSMessage(content, content.length);
+        assertEquals(1, decoded.getARCount());
+        decoded.getQuestion();
+        assertEquals(RecordType.OPT, decoded.getRR().getRecordType());
+
+        DNSMessageView view = new DNSMessageView();
+        assertTrue(view.wrap(content, content.length));
+        assertTrue(view.next());
+        assertTrue(view.next());
+        assertEquals(DNSMessageView.ADDITIONAL, view.getSection());
+        assertTrue(view.nameEquals(""));
+        assertEquals(1232, view.getClassCode());
+        assertEquals(0, view.getRDataLength());
+    }
+    @Test
+    public void testNameCompression() {
+        DNSMessage message = new DNSMessage((short)23);
+        message.addName("www.cs.ubc.ca");
+        message.addName("cs.ubc.ca");
+        message.addName("ns1.cs.ubc.ca");
+        message.addName("ubc.ca.example");
+        byte[] content = message.getUsed();
+        // 12 (header) + 15 + pointer + label "ns1" and pointer + uncompressed name
+        assertEquals(12 + 15 + 2 + 6 + 16, content.length);
+        assertEquals((byte) 0xc0, content[27]);
+        assertEquals(16, content[28]);
+
+        DNSMessage reply = new DNSMessage(content, content.length);
+        assertEquals("www.cs.ubc.ca", reply.getName());
+        assertEquals("cs.ubc.ca", reply.getName());
+        assertEquals("ns1.cs.ubc.ca", reply.getName());
+        assertEquals("ubc.ca.example", reply.getName());
+    }
+    @Test
+    public void testResetReusesMessage() {
+        DNSMessagePool pool = new DNSMessagePool(1, DNSMessage.MAX_DNS_MESSAGE_LENGTH, false);
+        DNSMessage message = pool.acquire((short)23);
+        message.setQR(true);
+        message.addQuestion(new DNSQuestion("www.cs.ubc.ca", RecordType.A, RecordClass.IN));
+        pool.release(message);
+
+        DNSMessage reused = pool.acquire((short)24);
+        assertSame(message, reused);
+        assertEquals(1, pool.getCreated());
+        assertEquals(24, reused.getID());
+        assertFalse(reused.getQR());
+        assertEquals(0, reused.getQDCount());
+        DNSQuestion question = new DNSQuestion("norm.cs.ubc.ca", RecordType.AAAA, RecordClass.IN);
+        reused.addQuestion(question);
+        DNSMessage expected = new DNSMessage((short)24);
+        expected.addQuestion(question);
+        assertArrayEquals(expected.getUsed(), reused.getUsed());
+        assertEquals(expected.getUsed().length, reused.getLength());
+
+        // Receiving into the same array
+        byte[] content = expected.getUsed();
+        System.arraycopy(content, 0, reused.getData(), 0, content.length);
+        reused.resetReceived(content.length);
+        assertEquals(24, reused.getID());
+        assertEquals(question, reused.getQuestion());
+
+        // Messages from other pools, or not from a pool, are not kept
+        pool.release(new DNSMessage((short)25));
+        pool.acquire((short)26);
+        assertEquals(2, pool.getCreated());
+    }
+
+    @Test
+    public void testDecodesCompressedSOA() {
+        DNSQuestion question = new DNSQuestion("ubc.ca", RecordType.SOA, RecordClass.IN);
+        DNSMessage response = new DNSMessage((short)25);
+        response.setQR(true);
+        response.addQuestion(question);
+        response.setANCount(1);
+        ByteBuffer buffer = ByteBuffer.allocate(DNSMessage.MAX_DNS_MESSAGE_LENGTH);
+        buffer.put(response.getUsed());
+        // Both names in the data point to the question
+        buffer.putShort((short)0xc00c).putShort((short)6).putShort((short)1).putInt(3600).putShort((short)39);
+        buffer.put(new byte[]{3, 'n', 's', '1', (byte)0xc0, 12});
+        buffer.put(new byte[]{10, 'h', 'o', 's', 't', 'm', 'a', 's', 't', 'e', 'r', (byte)0xc0, 12});
+        buffer.putInt(2023010101).putInt(3600).putInt(600).putInt(86400).putInt(-1);
+        byte[] content = Arrays.copyOf(buffer.array(), buffer.position());
+
+        DNSMessage decoded = new DNSMessage(content, content.length);
+        decoded.getQuestion();
+        ResourceRecord record = decoded.getRR();
+        RData.SOA soa = (RData.SOA)record.getData();
+        assertEquals("ns1.ubc.ca", soa.getMName());
+        assertEquals("hostmaster.ubc.ca", soa.getRName());
+        assertEquals(2023010101, soa.getSerial());
+        assertEquals(86400, soa.getExpire());
+        assertEquals(0xffffffffL, soa.getMinimum());
+        // The text result has the names decompressed, so it can be decoded (and encoded) outside of the message
+        assertEquals(new RData.SOA("ns1.ubc.ca", "hostmaster.ubc.ca", 2023010101, 3600, 600, 86400, 0xffffffffL)
+                .toHexString(), record.getTextResult());
+        assertEquals(0xffffffffL, DNSLookupService.soaMinimumTTL(new ResourceRecord(question, 3600,
+                record.getTextResult())));
+
+        DNSMessageView view = new DNSMessageView();
+        assertTrue(view.wrap(content, content.length));
+        assertTrue(view.next());
+        assertTrue(view.next());
+        assertEquals(record, view.toResourceRecord());
+    }
+
+    @Test
+    public void testRDataRoundTrip() {
+        DNSQuestion txtQuestion = new DNSQuestion("cs.ubc.ca", RecordType.TXT, RecordClass.IN);
+        DNSQuestion srvQuestion = new DNSQuestion("_ldap._tcp.cs.ubc.ca", RecordType.SRV, RecordClass.IN);
+        DNSQuestion ptrQuestion = new DNSQuestion("5.6.103.142.in-addr.arpa", RecordType.PTR, RecordClass.IN);
+        DNSQuestion otherQuestion = new DNSQuestion("cs.ubc.ca", RecordType.OTHER, RecordClass.IN);
+        byte[] raw = new byte[256];
+        for (int i = 0; i < raw.length; i++)
+            raw[i] = (byte)i;
+        String hex = DNSMessage.byteArrayToHexString(raw);
+        assertEquals(512, hex.length());
+        assertTrue(hex.startsWith("000102") && hex.endsWith("fdfeff"));
+        assertArrayEquals(raw, DNSMessage.hexStringToByteArray(hex));
+        assertArrayEquals(raw, DNSMessage.hexStringToByteArray(hex.toUpperCase()));
+        assertThrows(NumberFormatException.class, () -> DNSMessage.hexStringToByteArray("0g"));
+
+        ResourceRecord[] records = {
+                new ResourceRecord(txtQuestion, 300,
+                        new RData.TXT(Arrays.asList("v=spf1 -all", "\"quoted\"", "")).toHexString()),
+                new ResourceRecord(srvQuestion, 300, new RData.SRV(0, 5, 389, "ldap.cs.ubc.ca").toHexString()),
+                new ResourceRecord(ptrQuestion, 300, "www.cs.ubc.ca"),
+                new ResourceRecord(otherQuestion, 300, hex),
+        };
+        DNSMessage response = new DNSMessage((short)26, DNSMessage.MAX_TCP_MESSAGE_LENGTH);
+        for (ResourceRecord record : records)
+            response.addResourceRecord(record, "answer");
+        byte[] content = response.getUsed();
+        DNSMessage decoded = new DNSMessage(content, content.length);
+        DNSMessageView view = new DNSMessageView();
+        assertTrue(view.wrap(content, content.length));
+        for (ResourceRecord record : records) {
+            ResourceRecord received = decoded.getRR();
+            assertEquals(record, received);
+            assertTrue(view.next());
+            assertEquals(record, view.toResourceRecord());
+        }
+
+        RData.TXT txt = (RData.TXT)records[0].getData();
+        assertEquals(Arrays.asList("v=spf1 -all", "\"quoted\"", ""), txt.getStrings());
+        assertEquals("\"v=spf1 -all\" \"\\\"quoted\\\"\" \"\"", txt.toString());
+        RData.SRV srv = (RData.SRV)records[1].getData();
+        assertEquals(5, srv.getWeight());
+        assertEquals(389, srv.getPort());
+        assertEquals("ldap.cs.ubc.ca", srv.getTarget());
+        assertEquals("www.cs.ubc.ca", ((RData.Name)records[2].getData()).getName());
+        RData.Unknown unknown = (RData.Unknown)records[3].getData();
+        assertArrayEquals(raw, unknown.getBytes());
+        assertEquals(hex, unknown.toString());
+        // Data that does not match its type is kept as is
+        assertTrue(new ResourceRecord(srvQuestion, 300, "0001").getData() instanceof RData.Unknown);
+    }
 }
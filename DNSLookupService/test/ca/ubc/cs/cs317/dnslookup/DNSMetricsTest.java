@@ -0,0 +1,124 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.*;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class DNSMetricsTest {
+
+    @Test
+    public void testDisabledMetricsRecordNothing() {
+        DNSMetrics metrics = new DNSMetrics();
+        Assertions.assertFalse(metrics.isEnabled());
+        Assertions.assertEquals(0, metrics.startTimer());
+        metrics.querySent(40, false);
+        metrics.queryTimedOut();
+        metrics.responseReceived(100, 1_000_000);
+        metrics.lookupCompleted(System.nanoTime(), 2);
+        Assertions.assertEquals(0, metrics.getQueriesSent());
+        Assertions.assertEquals(0, metrics.getTimeouts());
+        Assertions.assertEquals(0, metrics.getBytesReceived());
+        Assertions.assertEquals(0, metrics.getQueryLatency().getCount());
+        Assertions.assertEquals(0, metrics.getLookups());
+    }
+
+    @Test
+    public void testCounters() {
+        DNSMetrics metrics = new DNSMetrics();
+        metrics.setEnabled(true);
+        metrics.querySent(40, false);
+        metrics.queryTimedOut();
+        metrics.querySent(40, true);
+        metrics.responseReceived(100, -1);
+        metrics.tcpQuerySent(40, 1000);
+        Assertions.assertEquals(2, metrics.getQueriesSent());
+        Assertions.assertEquals(1, metrics.getRetransmissions());
+        Assertions.assertEquals(1, metrics.getTimeouts());
+        Assertions.assertEquals(1, metrics.getTcpQueries());
+        Assertions.assertEquals(120, metrics.getBytesSent());
+        Assertions.assertEquals(1100, metrics.getBytesReceived());
+        // A retransmitted query cannot be timed
+        Assertions.assertEquals(0, metrics.getQueryLatency().getCount());
+
+        metrics.reset();
+        Assertions.assertEquals(0, metrics.getQueriesSent());
+        Assertions.assertEquals(0, metrics.getBytesSent());
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        DNSMetrics.Histogram histogram = new DNSMetrics.Histogram();
+        for (int i = 1; i <= 1000; i++)
+            histogram.record(i);
+        DNSMetrics.Distribution distribution = histogram.snapshot();
+        Assertions.assertEquals(1000, distribution.getCount());
+        Assertions.assertEquals(500.5, distribution.getMean(), 1e-9);
+        Assertions.assertEquals(1000, distribution.getMax());
+        // Percentiles are the upper limit of their bucket, within 12.5% of the exact value
+        Assertions.assertTrue(distribution.getP50() >= 500 && distribution.getP50() <= 500 * 1.125);
+        Assertions.assertTrue(distribution.getP90() >= 900 && distribution.getP90() <= 900 * 1.125);
+        Assertions.assertTrue(distribution.getP99() >= 990 && distribution.getP99() <= 1000);
+
+        histogram.record(0);
+        histogram.record(Long.MAX_VALUE);
+        Assertions.assertEquals(Long.MAX_VALUE, histogram.snapshot().getMax());
+        histogram.reset();
+        Assertions.assertEquals(0, histogram.snapshot().getCount());
+        Assertions.assertEquals(0, histogram.snapshot().getP50());
+    }
+
+    @Test
+    public void testMetricsRecordedAndExposedThroughJmx() throws Exception {
+        List<DNSZoneServer> servers = new ArrayList<>();
+        DNSCache cache = DNSCache.getInstance();
+        DNSMetrics metrics = DNSMetrics.getInstance();
+        metrics.reset();
+        metrics.setEnabled(true);
+        try {
+            DNSZoneServer root = new DNSZoneServer(new InetSocketAddress("127.0.0.2", 0), "",
+                    new StringReader("test. NS ns.nic.test.\nns.nic.test. A 127.0.0.3"));
+            servers.add(root);
+            int port = root.getAddress().getPort();
+            servers.add(new DNSZoneServer(new InetSocketAddress("127.0.0.3", port), "test",
+                    new StringReader("example.test. NS ns1.example.test.\nns1.example.test. A 127.0.0.4")));
+            servers.add(new DNSZoneServer(new InetSocketAddress("127.0.0.4", port), "example.test",
+                    new StringReader("www.example.test. A 10.0.0.1")));
+            cache.setRootNameServers(Collections.singletonList("127.0.0.2"));
+
+            DNSLookupService service = new DNSLookupService("root", new DNSLookupCUI());
+            try {
+                service.setPort(port);
+                DNSQuestion question = new DNSQuestion("www.example.test", RecordType.A, RecordClass.IN);
+                Assertions.assertEquals(1, service.getResults(question).size());
+            } finally {
+                service.close();
+            }
+            Assertions.assertEquals(3, metrics.getQueriesSent());
+            Assertions.assertEquals(3, metrics.getResponsesReceived());
+            Assertions.assertEquals(3, metrics.getQueryLatency().getCount());
+            Assertions.assertEquals(1, metrics.getLookups());
+            // Referrals from the root and test servers
+            Assertions.assertEquals(2, metrics.getDelegationDepth().getMax());
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DNSMetrics.OBJECT_NAME);
+            Assertions.assertEquals(3L, server.getAttribute(name, "QueriesSent"));
+            CompositeData latency = (CompositeData) server.getAttribute(name, "LookupLatency");
+            Assertions.assertEquals(1L, latency.get("count"));
+        } finally {
+            metrics.setEnabled(false);
+            metrics.reset();
+            servers.forEach(DNSZoneServer::close);
+            cache.setRootNameServers(null);
+            InfrastructureCache.getInstance().reset();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class DNSResolverServerTest {
+
+    // Number of records of big1.example.test, too many for a 512-byte UDP response
+    private static final int LARGE_RRSET_SIZE = 40;
+
+    private static final String ROOT_ZONE = String.join("\n",
+            "@ SOA a.root. nstld. 1 1800 900 604800 86400",
+            "test. 172800 NS ns.nic.test.",
+            "ns.nic.test. 172800 A 127.0.0.3");
+    private static final String TEST_ZONE = String.join("\n",
+            "$ORIGIN test.",
+            "@ SOA ns.nic hostmaster.nic 1 1800 900 604800 900",
+            "example NS ns1.example",
+            "ns1.example A 127.0.0.4");
+    private static final String EXAMPLE_ZONE = String.join("\n",
+            "$ORIGIN example.test.",
+            "$TTL 300",
+            "@ SOA ns1 hostmaster 1 3600 600 86400 300",
+            "@ NS ns1",
+            "ns1 A 127.0.0.4",
+            "ns A 127.0.0.6",
+            "www A 10.0.0.1",
+            "alias 60 CNAME www",
+            IntStream.range(0, LARGE_RRSET_SIZE).mapToObj(i -> "big1 A 10.1.0." + i)
+                    .collect(Collectors.joining("\n")));
+
+    private final List<DNSZoneServer> servers = new ArrayList<>();
+    private DNSCache cache;
+    private int port;
+
+    @BeforeEach
+    public void startServers() throws IOException {
+        DNSZoneServer root = new DNSZoneServer(new InetSocketAddress("127.0.0.2", 0), "", new StringReader(ROOT_ZONE));
+        servers.add(root);
+        port = root.getAddress().getPort();
+        servers.add(new DNSZoneServer(new InetSocketAddress("127.0.0.3", port), "test", new StringReader(TEST_ZONE)));
+        servers.add(new DNSZoneServer(new InetSocketAddress("127.0.0.4", port), "example.test",
+                new StringReader(EXAMPLE_ZONE)));
+
+        cache = DNSCache.getInstance();
+        cache.setRootNameServers(Collections.singletonList("127.0.0.2"));
+    }
+
+    @AfterEach
+    public void stopServers() {
+        servers.forEach(DNSZoneServer::close);
+        cache.setRootNameServers(null);
+        InfrastructureCache.getInstance().reset();
+    }
+
+    private static DNSMessage resolverQuery(short id, String name) {
+        DNSMessage query = new DNSMessage(id);
+        query.setRD(true);
+        query.addQuestion(new DNSQuestion(name, RecordType.A, RecordClass.IN));
+        return query;
+    }
+
+    private static DNSMessage exchangeUdp(InetSocketAddress server, DNSMessage query) throws IOException {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(5000);
+            byte[] data = query.getUsed();
+            socket.send(new DatagramPacket(data, data.length, server));
+            DatagramPacket packet = new DatagramPacket(new byte[4096], 4096);
+            socket.receive(packet);
+            return new DNSMessage(packet.getData(), packet.getLength());
+        }
+    }
+
+    @Test
+    public void testResolverServerAnswersOverUdp() throws Exception {
+        try (DNSResolverServer resolver = new DNSResolverServer(new InetSocketAddress("127.0.0.1", 0), "root",
+                port, 2)) {
+            DNSMessage response = exchangeUdp(resolver.getAddress(), resolverQuery((short) 21, "alias.example.test"));
+            Assertions.assertEquals(21, response.getID());
+            Assertions.assertTrue(response.getQR());
+            Assertions.assertTrue(response.getRD());
+            Assertions.assertTrue(response.getRA());
+            Assertions.assertEquals(0, response.getRcode());
+            Assertions.assertEquals("alias.example.test", response.getQuestion().getHostName());
+            Assertions.assertEquals(2, response.getANCount());
+            Set<String> values = new HashSet<>();
+            for (int i = 0; i < response.getANCount(); i++)
+                values.add(response.getRR().getTextResult());
+            Assertions.assertEquals(new HashSet<>(Arrays.asList("www.example.test", "10.0.0.1")), values);
+
+            // The second query is answered from the cache
+            long queries = servers.stream().mapToLong(DNSZoneServer::getQueriesReceived).sum();
+            response = exchangeUdp(resolver.getAddress(), resolverQuery((short) 22, "www.example.test"));
+            Assertions.assertEquals(1, response.getANCount());
+            Assertions.assertEquals(queries, servers.stream().mapToLong(DNSZoneServer::getQueriesReceived).sum());
+
+            // A name error is passed on to the client, with the SOA record of the zone
+            response = exchangeUdp(resolver.getAddress(), resolverQuery((short) 23, "missing.example.test"));
+            Assertions.assertEquals(3, response.getRcode());
+            Assertions.assertEquals(0, response.getANCount());
+            Assertions.assertEquals(1, response.getNSCount());
+            response.getQuestion();
+            ResourceRecord soa = response.getRR();
+            Assertions.assertEquals(RecordType.SOA, soa.getRecordType());
+            Assertions.assertEquals("example.test", soa.getHostName());
+            Assertions.assertTrue(soa.getRemainingTTL() <= 300);
+            Assertions.assertEquals(3, resolver.getResponsesSent());
+        }
+    }
+
+    @Test
+    public void testResolverServerAssemblesCachedResponses() throws Exception {
+        try (DNSResolverServer resolver = new DNSResolverServer(new InetSocketAddress("127.0.0.1", 0), "root",
+                port, 2)) {
+            resolver.setWireAnswers(false);
+            DNSMessage query = resolverQuery((short) 24, "alias.example.test");
+            query.addOpt(1232);
+            DNSMessage encoded = exchangeUdp(resolver.getAddress(), query);
+
+            resolver.setWireAnswers(true);
+            query = resolverQuery((short) 25, "alias.example.test");
+            query.addOpt(1232);
+            byte[] data = query.getUsed();
+            data[13] = 'A'; // Names are encoded in lower case, but clients may use any case
+            byte[] assembled = resolver.answer(data, data.length, false);
+            DNSMessage response = new DNSMessage(assembled, assembled.length);
+            Assertions.assertEquals(25, response.getID());
+            Assertions.assertTrue(response.getQR());
+            Assertions.assertTrue(response.getRD());
+            Assertions.assertTrue(response.getRA());
+            Assertions.assertEquals(0, response.getRcode());
+            // The question is copied from the query, unlike in responses encoded by DNSMessage
+            Assertions.assertEquals('A', assembled[13]);
+            Assertions.assertEquals(encoded.getANCount(), response.getANCount());
+            Assertions.assertEquals(1, response.getARCount());
+            Assertions.assertEquals(encoded.getQuestion(), response.getQuestion());
+            for (int i = 0; i < response.getANCount(); i++) {
+                ResourceRecord expected = encoded.getRR(), actual = response.getRR();
+                Assertions.assertEquals(expected.getQuestion(), actual.getQuestion());
+                Assertions.assertEquals(expected.getTextResult(), actual.getTextResult());
+                Assertions.assertTrue(Math.abs(expected.getRemainingTTL() - actual.getRemainingTTL()) <= 1);
+            }
+        }
+    }
+
+    @Test
+    public void testResolverServerTruncatesLargeUdpResponses() throws Exception {
+        try (DNSResolverServer resolver = new DNSResolverServer(new InetSocketAddress("127.0.0.1", 0), "root",
+                port, 2)) {
+            DNSMessage response = exchangeUdp(resolver.getAddress(), resolverQuery((short) 31, "big1.example.test"));
+            Assertions.assertTrue(response.getTC());
+            Assertions.assertEquals(0, response.getANCount());
+            Assertions.assertEquals(1, resolver.getResponsesTruncated());
+
+            try (DNSTcpTransport tcp = new DNSTcpTransport()) {
+                byte[] data = tcp.exchange(resolverQuery((short) 32, "big1.example.test").getUsed(),
+                        resolver.getAddress(), 5000);
+                response = new DNSMessage(data, data.length);
+            }
+            Assertions.assertFalse(response.getTC());
+            Assertions.assertEquals(LARGE_RRSET_SIZE, response.getANCount());
+        }
+    }
+
+    @Test
+    public void testResolverServerWithThreadPerQuery() throws Exception {
+        servers.get(2).setLatency(100, 0);
+        try (DNSResolverServer resolver = new DNSResolverServer(new InetSocketAddress("127.0.0.1", 0), "root",
+                port, 0)) {
+            String[] names = {"www.example.test", "alias.example.test", "ns.example.test", "ns1.example.test"};
+            ExecutorService clients = Executors.newFixedThreadPool(names.length);
+            try {
+                List<Future<DNSMessage>> responses = new ArrayList<>();
+                for (int i = 0; i < names.length; i++) {
+                    DNSMessage query = resolverQuery((short) (40 + i), names[i]);
+                    responses.add(clients.submit(() -> exchangeUdp(resolver.getAddress(), query)));
+                }
+                for (int i = 0; i < names.length; i++) {
+                    DNSMessage response = responses.get(i).get();
+                    Assertions.assertEquals(40 + i, response.getID());
+                    Assertions.assertEquals(0, response.getRcode());
+                    Assertions.assertTrue(response.getANCount() > 0);
+                }
+            } finally {
+                clients.shutdown();
+            }
+            Assertions.assertEquals(0, resolver.getQueriesDropped());
+        }
+    }
+}
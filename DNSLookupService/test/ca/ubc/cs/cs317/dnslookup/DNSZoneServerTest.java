@@ -0,0 +1,106 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.*;
+import java.util.*;
+import java.util.stream.Collectors;
+
+public class DNSZoneServerTest {
+
+    private static final String ROOT_ZONE = String.join("\n",
+            "@ SOA a.root. nstld. 1 1800 900 604800 86400",
+            "test. 172800 NS ns.nic.test.",
+            "ns.nic.test. 172800 A 127.0.0.3");
+    private static final String TEST_ZONE = String.join("\n",
+            "$ORIGIN test.",
+            "@ SOA ns.nic hostmaster.nic 1 1800 900 604800 900",
+            "example NS ns1.example",
+            "ns1.example A 127.0.0.4");
+    private static final String EXAMPLE_ZONE = String.join("\n",
+            "$ORIGIN example.test.",
+            "$TTL 300",
+            "@ SOA ns1 hostmaster 1 3600 600 86400 300",
+            "@ NS ns1",
+            "ns1 A 127.0.0.4",
+            "www A 10.0.0.1",
+            "alias 60 CNAME www");
+
+    private final List<DNSZoneServer> servers = new ArrayList<>();
+    private DNSLookupService service;
+    private DNSCache cache;
+
+    @BeforeEach
+    public void startServers() throws IOException {
+        DNSZoneServer root = new DNSZoneServer(new InetSocketAddress("127.0.0.2", 0), "", new StringReader(ROOT_ZONE));
+        servers.add(root);
+        int port = root.getAddress().getPort();
+        servers.add(new DNSZoneServer(new InetSocketAddress("127.0.0.3", port), "test", new StringReader(TEST_ZONE)));
+        servers.add(new DNSZoneServer(new InetSocketAddress("127.0.0.4", port), "example.test",
+                new StringReader(EXAMPLE_ZONE)));
+
+        cache = DNSCache.getInstance();
+        cache.setRootNameServers(Collections.singletonList("127.0.0.2"));
+        service = new DNSLookupService("root", new DNSLookupCUI());
+        service.setPort(port);
+    }
+
+    @AfterEach
+    public void stopServers() {
+        service.close();
+        servers.forEach(DNSZoneServer::close);
+        cache.setRootNameServers(null);
+        InfrastructureCache.getInstance().reset();
+    }
+
+    @Test
+    public void testDelegationFromRoot() throws Exception {
+        Assertions.assertEquals("127.0.0.2", service.getNameServer());
+        DNSQuestion question = new DNSQuestion("www.example.test", RecordType.A, RecordClass.IN);
+        Collection<ResourceRecord> results = service.getResultsFollowingCNames(question, 10);
+        Assertions.assertEquals(Collections.singletonList("10.0.0.1"),
+                results.stream().map(ResourceRecord::getTextResult).collect(Collectors.toList()));
+        Assertions.assertEquals(1, servers.get(0).getQueriesReceived());
+        Assertions.assertEquals(1, servers.get(1).getQueriesReceived());
+        Assertions.assertEquals(1, servers.get(2).getQueriesReceived());
+    }
+
+    @Test
+    public void testCnameAnsweredWithinZone() throws Exception {
+        DNSQuestion question = new DNSQuestion("alias.example.test", RecordType.A, RecordClass.IN);
+        Collection<ResourceRecord> results = service.getResultsFollowingCNames(question, 10);
+        Set<String> values = results.stream().map(ResourceRecord::getTextResult).collect(Collectors.toSet());
+        Assertions.assertEquals(new HashSet<>(Arrays.asList("www.example.test", "10.0.0.1")), values);
+        Assertions.assertEquals(1, servers.get(2).getQueriesReceived());
+    }
+
+    @Test
+    public void testNameErrorIncludesSOA() throws Exception {
+        DNSMessage query = new DNSMessage((short) 7);
+        query.addQuestion(new DNSQuestion("missing.example.test", RecordType.A, RecordClass.IN));
+        byte[] data = query.getUsed();
+        byte[] responseData = servers.get(2).answer(data, data.length);
+        DNSMessage response = new DNSMessage(responseData, responseData.length);
+        Assertions.assertEquals(7, response.getID());
+        Assertions.assertTrue(response.getAA());
+        Assertions.assertEquals(3, response.getRcode());
+        Assertions.assertEquals(1, response.getNSCount());
+        response.getQuestion();
+        Assertions.assertEquals(RecordType.SOA, response.getRR().getRecordType());
+    }
+
+    @Test
+    public void testTruncation() throws Exception {
+        servers.get(2).setTruncateRate(1);
+        DNSMessage query = new DNSMessage((short) 8);
+        query.addQuestion(new DNSQuestion("www.example.test", RecordType.A, RecordClass.IN));
+        byte[] data = query.getUsed();
+        byte[] responseData = servers.get(2).answer(data, data.length);
+        DNSMessage response = new DNSMessage(responseData, responseData.length);
+        Assertions.assertTrue(response.getTC());
+        Assertions.assertEquals(0, response.getANCount());
+        Assertions.assertEquals(1, servers.get(2).getResponsesTruncated());
+    }
+}
@@ -0,0 +1,52 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.*;
+
+public class DomainNameTest {
+
+    @Test
+    public void testNamesAreInternedIgnoringCase() {
+        DomainName lower = DomainName.of("www.cs.ubc.ca");
+        Assertions.assertSame(lower, DomainName.of("www.cs.ubc.ca"));
+        Assertions.assertSame(lower, DomainName.of("WWW.CS.UBC.CA"));
+        Assertions.assertEquals("www.cs.ubc.ca", DomainName.of("Www.Cs.Ubc.Ca").toString());
+        Assertions.assertSame(DomainName.ROOT, DomainName.of(""));
+    }
+
+    @Test
+    public void testParentsAreShared() {
+        DomainName www = DomainName.of("www.cs.ubc.ca");
+        DomainName ugrad = DomainName.of("ugrad.cs.ubc.ca");
+        Assertions.assertSame(www.getParent(), ugrad.getParent());
+        Assertions.assertEquals("cs.ubc.ca", www.getParent().toString());
+        Assertions.assertSame(DomainName.of("ca"), www.getParent().getParent().getParent());
+        Assertions.assertSame(DomainName.ROOT, DomainName.of("ca").getParent());
+        Assertions.assertNull(DomainName.ROOT.getParent());
+        Assertions.assertEquals(4, www.getLabelCount());
+        Assertions.assertEquals(0, DomainName.ROOT.getLabelCount());
+    }
+
+    @Test
+    public void testIsSubdomainOf() {
+        DomainName www = DomainName.of("www.cs.ubc.ca");
+        Assertions.assertTrue(www.isSubdomainOf(www));
+        Assertions.assertTrue(www.isSubdomainOf(DomainName.of("UBC.ca")));
+        Assertions.assertTrue(www.isSubdomainOf(DomainName.ROOT));
+        Assertions.assertFalse(www.isSubdomainOf(DomainName.of("ubc.com")));
+        Assertions.assertFalse(www.isSubdomainOf(DomainName.of("xwww.cs.ubc.ca")));
+        Assertions.assertFalse(DomainName.of("ca").isSubdomainOf(www));
+    }
+
+    @Test
+    public void testQuestionsShareNames() {
+        DNSQuestion a = new DNSQuestion("www.cs.ubc.ca", RecordType.A, RecordClass.IN);
+        DNSQuestion upper = new DNSQuestion("WWW.CS.UBC.CA", RecordType.A, RecordClass.IN);
+        Assertions.assertEquals(a, upper);
+        Assertions.assertEquals(0, a.compareTo(upper));
+        Assertions.assertSame(a.getName(), upper.getName());
+        DNSQuestion cname = a.withType(RecordType.CNAME);
+        Assertions.assertSame(a.getName(), cname.getName());
+        Assertions.assertEquals(new DNSQuestion("www.cs.ubc.ca", RecordType.CNAME, RecordClass.IN), cname);
+        Assertions.assertSame(a, a.withType(RecordType.A));
+    }
+}
@@ -0,0 +1,78 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.*;
+
+import java.net.InetAddress;
+import java.util.*;
+
+public class InfrastructureCacheTest {
+
+    private long now;
+    private InfrastructureCache servers;
+    private InetAddress fast, slow, dead, unknown;
+
+    @BeforeEach
+    public void createCache() throws Exception {
+        now = 1_000_000;
+        servers = new InfrastructureCache(() -> now);
+        fast = InetAddress.getByName("10.0.0.1");
+        slow = InetAddress.getByName("10.0.0.2");
+        dead = InetAddress.getByName("10.0.0.3");
+        unknown = InetAddress.getByName("10.0.0.4");
+    }
+
+    private static long millis(long millis) {
+        return millis * 1_000_000L;
+    }
+
+    @Test
+    public void testRankBySmoothedRTT() {
+        for (int i = 0; i < 5; i++) {
+            servers.recordResponse(fast, millis(10));
+            servers.recordResponse(slow, millis(300));
+        }
+        servers.recordTimeout(dead);
+        List<InetAddress> addresses = new ArrayList<>(Arrays.asList(dead, slow, unknown, fast));
+        servers.rank(addresses);
+        Assertions.assertEquals(Arrays.asList(fast, unknown, slow, dead), addresses);
+    }
+
+    @Test
+    public void testTimeoutAdaptsAndBacksOff() {
+        Assertions.assertEquals(InfrastructureCache.INITIAL_RTO_MILLIS, servers.getTimeoutMillis(unknown, 0));
+        for (int i = 0; i < 20; i++)
+            servers.recordResponse(fast, millis(10));
+        long timeout = servers.getTimeoutMillis(fast, 0);
+        Assertions.assertTrue(timeout >= InfrastructureCache.MIN_RTO_MILLIS && timeout < 50, "RTO " + timeout);
+        long backedOff = servers.getTimeoutMillis(fast, 1);
+        Assertions.assertTrue(backedOff > timeout && backedOff <= 2 * timeout + 1, "Backed off RTO " + backedOff);
+
+        servers.recordTimeout(slow);
+        servers.recordTimeout(slow);
+        Assertions.assertEquals(4 * InfrastructureCache.INITIAL_RTO_MILLIS, servers.getTimeoutMillis(slow, 0));
+        Assertions.assertEquals(InfrastructureCache.MAX_RTO_MILLIS, servers.getTimeoutMillis(slow, 1));
+        Assertions.assertEquals(InfrastructureCache.MAX_RACING_DELAY_MILLIS, servers.getRacingDelayMillis(slow));
+        Assertions.assertEquals(4 * InfrastructureCache.UNKNOWN_RTT_MILLIS, servers.getRacingDelayMillis(unknown));
+
+        // A response clears the failures
+        servers.recordResponse(slow, millis(10));
+        Assertions.assertTrue(servers.getTimeoutMillis(slow, 0) < InfrastructureCache.MAX_RTO_MILLIS);
+    }
+
+    @Test
+    public void testStaleMeasurementsDecay() {
+        servers.recordTimeout(dead);
+        servers.recordTimeout(dead);
+        double failedRtt = servers.getSmoothedRTT(dead);
+        Assertions.assertTrue(failedRtt >= InfrastructureCache.INITIAL_RTO_MILLIS);
+
+        now += InfrastructureCache.DECAY_HALF_LIFE_MILLIS;
+        double decayedRtt = servers.getSmoothedRTT(dead);
+        Assertions.assertEquals(InfrastructureCache.UNKNOWN_RTT_MILLIS +
+                (failedRtt - InfrastructureCache.UNKNOWN_RTT_MILLIS) / 2, decayedRtt, 0.001);
+
+        now += 20 * InfrastructureCache.DECAY_HALF_LIFE_MILLIS;
+        Assertions.assertEquals(InfrastructureCache.UNKNOWN_RTT_MILLIS, servers.getSmoothedRTT(dead), 0.01);
+        servers.forEachServer((server, timing) -> Assertions.assertEquals(0, timing[2]));
+    }
+}